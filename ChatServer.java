@@ -1,8 +1,27 @@
 import java.io.*;
 import java.net.*;
-import java.sql.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import protocol.BinaryCodec;
+import protocol.Conversation;
+import protocol.Cursors;
+import protocol.FileTransfer;
+import protocol.Frame;
+import protocol.FrameBatch;
+import protocol.FrameCompressor;
+import protocol.FrameDispatcher;
+import protocol.Handshake;
+import protocol.MessageId;
+import protocol.MessageType;
+import protocol.TextCodec;
+import protocol.WireFormat;
 
 public class ChatServer {
     private static final int PORT = 12345;
@@ -10,363 +29,1384 @@ public class ChatServer {
     private Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
     // In-memory groups map, loaded from DB and updated as needed
     private Map<String, Set<String>> groups = new ConcurrentHashMap<>();
-    private GroupDatabase groupDB = new GroupDatabase();
-    // Offline group messages: for any member not connected, store messages per
-    // group.
-    private Map<String, Map<String, List<String>>> offlineGroupMessages = new ConcurrentHashMap<>();
+    // Reverse index of groups: username -> names of the groups they are in.
+    // Kept in step with groups so that a connecting user costs O(own groups)
+    // rather than a scan of every group on the server.
+    private final Map<String, Set<String>> userGroups = new ConcurrentHashMap<>();
+    private final GroupDatabase groupDB;
+    // Messages for users who are not connected (or cannot keep up), on disk.
+    private final OfflineStore offlineStore;
+    // Files sent with the chunked transfer protocol, on disk.
+    private final FileStore fileStore;
+    // Sequence numbers of messages within their conversation, and the
+    // DELIVERED/READ watermarks clients report against them.
+    private final Sequencer sequencer;
+    private final ReceiptRouter receipts;
+    // Ids of recent messages, so that retransmitted ones are not relayed twice.
+    private final DuplicateFilter duplicates;
+    private final HistoryStore history;
+    private final int historyMaxPage;
+    private final int syncMaxMessages;
+    private final SearchIndex search;
+    private final int searchPageSize;
+    // Ids of the transfers the server makes for single-frame files.
+    private final MessageId transferIds = MessageId.randomNode();
+    private final ServerConfig config;
+    private final int outboundCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final FlushPolicy flushPolicy;
+    private final int offlineBatchBytes;
+    private final boolean offlineBatchDeflate;
+    // Download chunks for binary clients go from the file to the socket
+    // without being read into the heap.
+    private final boolean zeroCopy;
+    // Version 1 clients get a file as one frame; larger files are not sent to
+    // them.
+    private static final int LEGACY_FILE_BYTES = 32 * 1024 * 1024;
+    // Optional features a client may ask for in its HELLO (see Handshake).
+    private final Set<String> features = new HashSet<>();
+    // Creates the per-connection writer threads in threaded/virtual mode.
+    private ThreadFactory writerThreadFactory = Thread::new;
+    // What the server does with each frame type a logged-in client sends.
+    private final FrameDispatcher<ClientHandler> dispatcher = new FrameDispatcher<ClientHandler>()
+            .on(MessageType.MSG, ClientHandler::relayDirect)
+            .on(MessageType.FILE, ClientHandler::storeFile)
+            .on(MessageType.CREATE_GROUP, ClientHandler::createGroup)
+            .on(MessageType.GROUP_MSG, ClientHandler::relayToGroup)
+            .on(MessageType.GROUP_FILE, ClientHandler::storeFile)
+            .on(MessageType.LEAVE_GROUP, ClientHandler::leaveGroup)
+            .on(MessageType.UPDATE_GROUP, ClientHandler::renameGroup)
+            .on(MessageType.ADD_TO_GROUP, ClientHandler::addToGroup)
+            .on(MessageType.GROUP_INFO, ClientHandler::groupInfo)
+            .on(MessageType.ACK, ClientHandler::logAck)
+            .on(MessageType.RECEIPT, ClientHandler::receipt)
+            .on(MessageType.HISTORY, ClientHandler::history)
+            .on(MessageType.SYNC, ClientHandler::sync)
+            .on(MessageType.SEARCH, ClientHandler::search)
+            .on(MessageType.FILE_START, ClientHandler::startUpload)
+            .on(MessageType.FILE_CHUNK, ClientHandler::receiveChunk)
+            .on(MessageType.FILE_ACK, ClientHandler::sendChunks)
+            .on(MessageType.BATCH, ClientHandler::unpackBatch);
+
+    // How client sockets are served: one platform thread per socket, one
+    // virtual thread per socket (JDK 21+), or a fixed pool of selector loops
+    // (see NioServer).
+    public enum Mode {
+        THREADED, VIRTUAL, NIO
+    }
+
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.outboundCapacity = config.getInt("outbound.capacity", 1024);
+        this.overflowPolicy = config.getEnum("outbound.overflow", OutboundQueue.OverflowPolicy.class,
+                OutboundQueue.OverflowPolicy.SPILL);
+        this.flushPolicy = FlushPolicy.fromConfig(config);
+        this.offlineStore = OfflineStore.fromConfig(config);
+        this.groupDB = GroupDatabase.fromConfig(config);
+        this.fileStore = FileStore.fromConfig(config);
+        this.sequencer = Sequencer.fromConfig(config);
+        this.receipts = ReceiptRouter.fromConfig(config, this::deliver);
+        this.duplicates = DuplicateFilter.fromConfig(config);
+        this.history = HistoryStore.fromConfig(config);
+        this.historyMaxPage = config.getInt("history.maxPage", 200);
+        this.syncMaxMessages = config.getInt("sync.maxMessages", 500);
+        this.search = SearchIndex.fromConfig(config);
+        this.searchPageSize = config.getInt("search.pageSize", 20);
+        this.offlineBatchBytes = config.getInt("offline.batchBytes", 256 * 1024);
+        this.offlineBatchDeflate = config.getBoolean("offline.batchDeflate", true);
+        this.zeroCopy = config.getBoolean("files.zeroCopy", true);
+        features.add(Handshake.BINARY);
+        features.add(Handshake.BATCHING);
+        features.add(Handshake.CHUNKED_FILES);
+        features.add(Handshake.SEQUENCES);
+        features.add(Handshake.HISTORY);
+        features.add(Handshake.SYNC);
+        features.add(Handshake.SEARCH);
+        if (config.getBoolean("compression", true)) {
+            features.add(Handshake.COMPRESSION);
+        }
+    }
 
     public static void main(String[] args) {
-        new ChatServer().startServer();
+        new ChatServer(ServerConfig.fromArgs(args)).startServer();
     }
 
     public void startServer() {
         groups = groupDB.loadGroups();
+        for (Map.Entry<String, Set<String>> group : groups.entrySet()) {
+            indexMembers(group.getKey(), group.getValue());
+        }
         System.out.println("Loaded groups: " + groups);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("ChatServer started on port " + PORT);
-            while (true) {
-                Socket socket = serverSocket.accept();
-                new Thread(new ClientHandler(socket)).start();
+        // Group changes are written behind; get the last ones to disk.
+        Runtime.getRuntime().addShutdownHook(new Thread(groupDB::close, "group-db-shutdown"));
+        int port = config.getInt("port", PORT);
+        Mode mode = config.getEnum("mode", Mode.class, Mode.THREADED);
+        ServerMetrics.startReporter(config.getInt("metrics.interval", 0), mode.name().toLowerCase(),
+                config.getBoolean("metrics.gcBeforeHeap", false));
+        System.out.println("Flush policy: " + flushPolicy);
+        try {
+            if (mode == Mode.NIO) {
+                int loops = config.getInt("nio.loops", Runtime.getRuntime().availableProcessors());
+                new NioServer(this, port, loops).start();
+            } else if (mode == Mode.VIRTUAL) {
+                ThreadFactory factory = virtualThreadFactory();
+                if (factory == null) {
+                    System.out.println("Virtual threads need JDK 21 or later; falling back to platform threads.");
+                    startThreaded(port, Thread::new);
+                } else {
+                    reportPinningSites();
+                    startThreaded(port, factory);
+                }
+            } else {
+                startThreaded(port, Thread::new);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Helper class to persist groups in the SQLite database.
-    private class GroupDatabase {
-        private final String DB_URL = "jdbc:sqlite:chatapp.db";
-
-        public GroupDatabase() {
-            try {
-                Class.forName("org.sqlite.JDBC");
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void startThreaded(int port, ThreadFactory threadFactory) throws IOException {
+        writerThreadFactory = threadFactory;
+        // Opened as a channel so that each socket has one for transferTo();
+        // it stays in blocking mode and is otherwise used through its streams.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("ChatServer started on port " + port);
+            while (true) {
+                Socket socket = serverChannel.accept().socket();
+                threadFactory.newThread(new ClientHandler(socket)).start();
             }
-            initialize();
         }
+    }
 
-        public void initialize() {
-            String sql = "CREATE TABLE IF NOT EXISTS groups (" +
-                    "group_name TEXT PRIMARY KEY, " +
-                    "members TEXT" +
-                    ")";
-            try (Connection conn = DriverManager.getConnection(DB_URL);
-                    Statement stmt = conn.createStatement()) {
-                stmt.execute(sql);
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+    // Looked up reflectively so the server still builds and runs on JDKs
+    // without Thread.ofVirtual(); returns null there.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
+    }
 
-        public Map<String, Set<String>> loadGroups() {
-            Map<String, Set<String>> groupMap = new HashMap<>();
-            String sql = "SELECT * FROM groups";
-            try (Connection conn = DriverManager.getConnection(DB_URL);
-                    Statement stmt = conn.createStatement();
-                    ResultSet rs = stmt.executeQuery(sql)) {
-                while (rs.next()) {
-                    String groupName = rs.getString("group_name");
-                    String membersStr = rs.getString("members");
-                    Set<String> members = new HashSet<>(Arrays.asList(membersStr.split(",")));
-                    groupMap.put(groupName, members);
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            return groupMap;
+    // A virtual thread that blocks while pinned holds its carrier thread, so
+    // these spots cost a whole carrier for the duration of the call. The JVM
+    // is asked to print a stack trace whenever that actually happens.
+    private void reportPinningSites() {
+        if (System.getProperty("jdk.tracePinnedThreads") == null) {
+            System.setProperty("jdk.tracePinnedThreads", config.get("virtual.tracePinned", "short"));
+        }
+        System.out.println("Virtual thread mode; known carrier-pinning sites:");
+        System.out.println("  ClientHandler.sendChunks - synchronized (downloads) around the file reads of chunks");
+        System.out.println("  FileStore.start/write/finish - synchronized (upload) around the part file's I/O");
+        System.out.println("  OfflineStore.append/replay - synchronized (log) around segment writes and reads");
+        System.out.println("  HistoryStore.append/page/since - synchronized (partition) around segment I/O");
+        System.out.println("  (monitors pin the carrier on JDK < 24)");
+        System.out.println("Pinned blocking is traced with -Djdk.tracePinnedThreads="
+                + System.getProperty("jdk.tracePinnedThreads"));
+    }
+
+    FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    ClientHandler newHandler(NioServer.Connection connection) {
+        return new ClientHandler(connection);
+    }
+
+    private void indexMembers(String groupName, Collection<String> members) {
+        for (String member : members) {
+            userGroups.computeIfAbsent(member, k -> ConcurrentHashMap.newKeySet()).add(groupName);
         }
+    }
 
-        public void saveGroup(String groupName, Set<String> members) {
-            String sql = "INSERT OR REPLACE INTO groups(group_name, members) VALUES(?,?)";
-            try (Connection conn = DriverManager.getConnection(DB_URL);
-                    PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, groupName);
-                pstmt.setString(2, String.join(",", members));
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+    private void unindexMembers(String groupName, Collection<String> members) {
+        for (String member : members) {
+            // computeIfPresent keeps the removal of an emptied set atomic with
+            // a concurrent indexMembers() for the same user.
+            userGroups.computeIfPresent(member, (k, names) -> {
+                names.remove(groupName);
+                return names.isEmpty() ? null : names;
+            });
         }
+    }
 
-        public void deleteGroup(String groupName) {
-            String sql = "DELETE FROM groups WHERE group_name = ?";
-            try (Connection conn = DriverManager.getConnection(DB_URL);
-                    PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, groupName);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+    private Set<String> groupsOf(String username) {
+        Set<String> names = userGroups.get(username);
+        return names != null ? names : Collections.<String>emptySet();
+    }
+
+    // Queues a frame for one user. Users who are not connected, or whose
+    // outbound queue spilled or disconnected, get it in the offline store
+    // instead; that is reported as SPILLED.
+    private OutboundQueue.Result deliver(String recipient, Frame frame) {
+        ClientHandler handler = clients.get(recipient);
+        if (handler != null) {
+            OutboundQueue.Result result = handler.send(frame, handler.spillToOffline);
+            if (result != OutboundQueue.Result.DISCONNECTED)
+                return result;
         }
+        offlineStore.append(recipient, frame);
+        return OutboundQueue.Result.SPILLED;
     }
 
-    private class ClientHandler implements Runnable {
+    class ClientHandler implements Runnable {
+        // Threaded mode reads and writes the socket directly; in NIO mode the
+        // event loop owns the channel and only calls onLine/onFrame/onDisconnect.
+        // A connection speaks text lines unless it opens with
+        // BinaryCodec.PREAMBLE.
         private Socket socket;
-        private PrintWriter out;
+        private OutputStream out;
         private BufferedReader in;
+        private NioServer.Connection connection;
         private String username;
+        private volatile WireFormat format = WireFormat.TEXT;
+        // What the client agreed on in its HELLO; version 1 without one.
+        private volatile Handshake handshake = Handshake.legacy();
+        // Set once a client that agreed on SYNC has sent it; until then the
+        // offline store is left for the SYNC to deliver.
+        private volatile boolean synced;
+        // Per conversation, the highest sequence number the client had or
+        // was sent by its SYNC; stored frames up to it are dropped. Guarded
+        // by the queue lock.
+        private Map<String, Long> syncCovered = Collections.emptyMap();
+        // Set if the client agreed on compression; used only by the writer.
+        private volatile FrameCompressor compressor;
+        // Threaded mode: frames are encoded here, then copied into out.
+        private ByteBuffer writeBuffer;
+        // Where group frames go when this client's queue spills; one instance
+        // per client rather than a new callback for every frame.
+        private final Consumer<Frame> spillToOffline = frame -> offlineStore.append(username, frame);
+        private final OutboundQueue outbound = new OutboundQueue(outboundCapacity, overflowPolicy);
+        // Files this client is downloading, by transfer id. Guarded by itself.
+        private final Map<String, Download> downloads = new HashMap<>();
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            ServerMetrics.connections.incrementAndGet();
+        }
+
+        public ClientHandler(NioServer.Connection connection) {
+            this.connection = connection;
+            ServerMetrics.connections.incrementAndGet();
         }
 
         public void run() {
             try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                // First message is the username for identification.
-                username = in.readLine();
-                if (username == null)
-                    return;
-                clients.put(username, this);
-                System.out.println(username + " connected.");
+                BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                // No auto-flush: writeLoop flushes once per batch of frames.
+                out = new BufferedOutputStream(socket.getOutputStream(), flushPolicy.maxBytes);
+                input.mark(1);
+                int first = input.read();
+                input.reset();
+                if (first == BinaryCodec.PREAMBLE[0]) {
+                    format = WireFormat.BINARY;
+                    writerThreadFactory.newThread(this::writeLoop).start();
+                    readBinary(new DataInputStream(input));
+                } else if (first >= 0) {
+                    in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                    writerThreadFactory.newThread(this::writeLoop).start();
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        onLine(line);
+                    }
+                }
+            } catch (EOFException e) {
+                // Binary client closed the connection between frames.
+            } catch (ClosedChannelException e) {
+                // Closed by the server: a refused login or a slow consumer.
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                onDisconnect();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
 
-                // When a user connects, send them any offline group messages for groups they
-                // belong to.
-                for (String groupName : groups.keySet()) {
-                    Set<String> mem = groups.get(groupName);
-                    if (mem.contains(username)) {
-                        Map<String, List<String>> userMap = offlineGroupMessages.get(groupName);
-                        if (userMap != null) {
-                            List<String> offlineMsgs = userMap.get(username);
-                            if (offlineMsgs != null) {
-                                for (String msg : offlineMsgs) {
-                                    out.println(msg);
-                                }
-                                offlineMsgs.clear();
-                            }
+        private void readBinary(DataInputStream input) throws IOException {
+            byte[] preamble = new byte[BinaryCodec.PREAMBLE.length];
+            input.readFully(preamble);
+            if (!Arrays.equals(preamble, BinaryCodec.PREAMBLE))
+                throw new IOException("Unsupported binary protocol preamble");
+            while (true) {
+                Frame frame = BinaryCodec.read(input, maxFrameLength());
+                if (frame != null) {
+                    onFrame(frame);
+                }
+            }
+        }
+
+        // Drains the outbound queue to the socket so that senders never block
+        // on this client's TCP window (threaded and virtual modes). Frames that
+        // are already queued are gathered into one buffer and flushed together,
+        // as the flush policy allows.
+        private void writeLoop() {
+            try {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    long batchStart = System.nanoTime();
+                    int batchBytes = 0;
+                    int batchFrames = 0;
+                    while (frame != null) {
+                        batchBytes += writeFrame(frame);
+                        batchFrames++;
+                        if (!flushPolicy.batched() || batchBytes >= flushPolicy.maxBytes
+                                || System.nanoTime() - batchStart >= flushPolicy.maxDelayNanos)
+                            break;
+                        frame = outbound.poll();
+                        if (frame == null && flushPolicy.lingerNanos > 0) {
+                            frame = outbound.poll(flushPolicy.lingerNanos);
                         }
-                        // Notify client of group membership.
-                        out.println("GROUP_CREATED|" + groupName + "|" + String.join(",", mem));
                     }
+                    out.flush();
+                    ServerMetrics.recordFlush(batchFrames);
+                    if (outbound.isEmpty()) {
+                        onOutboundDrained();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Writes one frame into the buffered socket stream; returns its size.
+        // The encode buffer is reused for every frame; only frames larger than
+        // a whole flush (file data) get a buffer of their own. Shared frames
+        // are already encoded and are written as they are.
+        private int writeFrame(Frame frame) throws IOException {
+            frame = toWire(frame);
+            if (frame == null)
+                return 0;
+            WireFormat wire = format;
+            int size = wire.encodedSize(frame);
+            if (frame.isShared()) {
+                wire.writeShared(frame, out);
+                return size;
+            }
+            if (wire.transfersFileRegion(frame) && socket.getChannel() != null) {
+                writeFileRegion(frame, wire);
+                return size;
+            }
+            ByteBuffer buf = writeBuffer;
+            if (buf == null || buf.capacity() < size) {
+                buf = ByteBuffer.allocate(Math.max(size, 1024));
+                if (size <= flushPolicy.maxBytes) {
+                    writeBuffer = buf;
                 }
+            }
+            buf.clear();
+            wire.encode(frame, buf);
+            out.write(buf.array(), 0, buf.position());
+            return size;
+        }
 
-                String message;
-                while ((message = in.readLine()) != null) {
-                    // Protocol: TYPE|... (varies by command)
-                    String[] parts = message.split("\\|", 7);
-                    if (parts.length < 1)
-                        continue;
-                    String type = parts[0];
+        // The header goes through the stream, then the kernel copies the
+        // region from the file to the socket.
+        private void writeFileRegion(Frame frame, WireFormat wire) throws IOException {
+            ByteBuffer buf = writeBuffer;
+            if (buf == null) {
+                buf = writeBuffer = ByteBuffer.allocate(1024);
+            }
+            buf.clear();
+            wire.encodeHeader(frame, buf);
+            out.write(buf.array(), 0, buf.position());
+            out.flush();
+            SocketChannel channel = socket.getChannel();
+            FileChannel file = frame.getFile();
+            long position = frame.getFilePosition();
+            long end = position + frame.getFileLength();
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n == 0 && position >= file.size())
+                    throw new IOException("File shorter than expected");
+                position += n;
+            }
+        }
 
-                    // --- Direct messaging or file transfer ---
-                    if (type.equals("MSG") || type.equals("FILE")) {
-                        if (parts.length < 5)
-                            continue;
-                        String msgId = parts[1];
-                        String sender = parts[2];
-                        String recipient = parts[3];
-                        ClientHandler recipientHandler = clients.get(recipient);
-                        if (recipientHandler != null) {
-                            recipientHandler.out.println(message);
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|DELIVERED");
-                            }
-                        } else {
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|FAILED");
-                            }
-                        }
+        // The frame as it goes on the wire to this client: without sequence
+        // numbers for a client that did not agree on them (and then without
+        // receipts at all), a file offer becomes the whole file for a client
+        // without chunked files, and frames are compressed if the client
+        // agreed on it and the frame is worth it. Called by the writer after
+        // the outbound queue has picked the frame's turn. Returns null if
+        // there is nothing to send.
+        Frame toWire(Frame frame) {
+            frame = adapt(frame);
+            if (frame == null)
+                return null;
+            FrameCompressor c = compressor;
+            return c == null ? frame : c.compress(frame);
+        }
+
+        // The part of toWire that depends on the agreed features; null if the
+        // client gets nothing.
+        private Frame adapt(Frame frame) {
+            if (frame == null)
+                return null;
+            if (!handshake.has(Handshake.SEQUENCES)) {
+                if (frame.getType() == MessageType.RECEIPT)
+                    return null;
+                frame = frame.withSeq(0);
+            }
+            if (frame.getType() == MessageType.FILE_START && !handshake.has(Handshake.CHUNKED_FILES)) {
+                frame = wholeFile(frame);
+            }
+            return frame;
+        }
+
+        WireFormat wireFormat() {
+            return format;
+        }
+
+        // NIO mode: the event loop saw the binary preamble.
+        // The longest frame the client may send now.
+        int maxFrameLength() {
+            return username == null ? BinaryCodec.MAX_LOGIN_FRAME_LENGTH : BinaryCodec.MAX_CLIENT_FRAME_LENGTH;
+        }
+
+        void useBinary() {
+            format = WireFormat.BINARY;
+        }
+
+        // Queues a frame for this client; never blocks the calling thread.
+        OutboundQueue.Result send(Frame frame) {
+            return send(frame, null);
+        }
+
+        OutboundQueue.Result send(Frame frame, Consumer<Frame> spill) {
+            OutboundQueue.Result result = outbound.offer(frame, spill);
+            if (result == OutboundQueue.Result.QUEUED) {
+                if (connection != null) {
+                    connection.requestFlush();
+                }
+            } else if (result == OutboundQueue.Result.DISCONNECTED) {
+                if (username != null) {
+                    System.out.println(username + " is too slow to keep up; disconnecting.");
+                }
+                close();
+            }
+            return result;
+        }
+
+        OutboundQueue pendingFrames() {
+            return outbound;
+        }
+
+        // Called by the writer once the queue is empty: a client that had
+        // frames spilled to the offline store gets them back now, and
+        // downloads that waited for room continue.
+        void onOutboundDrained() {
+            if (outbound.isSpilled()) {
+                outbound.resume(this::replayOfflineMessages);
+            }
+            sendChunks();
+        }
+
+        void close() {
+            outbound.close();
+            if (connection != null) {
+                connection.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // Text protocol: the first line is a HELLO, or from older clients just
+        // the username.
+        void onLine(String line) {
+            if (username == null) {
+                Frame hello = line.startsWith(MessageType.HELLO.name() + "|") ? TextCodec.parse(line) : null;
+                if (hello != null && hello.getSender() != null) {
+                    hello(hello);
+                } else {
+                    login(line);
+                }
+                return;
+            }
+            Frame frame = TextCodec.parse(line);
+            if (frame != null) {
+                handleFrame(frame);
+            }
+        }
+
+        // Binary protocol: the first frame must be a HELLO or LOGIN.
+        void onFrame(Frame frame) {
+            if (username == null) {
+                if (frame.getType() == MessageType.HELLO && frame.getSender() != null) {
+                    hello(frame);
+                } else if (frame.getType() == MessageType.LOGIN && frame.getSender() != null) {
+                    login(frame.getSender());
+                }
+                return;
+            }
+            handleFrame(frame);
+        }
+
+        void onDisconnect() {
+            ServerMetrics.connections.decrementAndGet();
+            outbound.close();
+            synchronized (downloads) {
+                for (Download download : downloads.values()) {
+                    download.close();
+                }
+                downloads.clear();
+            }
+            if (username != null) {
+                clients.remove(username, this);
+                System.out.println(username + " disconnected.");
+            }
+        }
+
+        // --- Handshake (see Handshake) ---
+        // Format: HELLO|username|version|feature feature...
+        // Answered with WELCOME|version|the features the server supports too,
+        // before anything else; then the client is logged in. A HELLO without
+        // a valid version gets version 1.
+        private void hello(Frame frame) {
+            Handshake offered = Handshake.fromFrame(frame);
+            Handshake agreed = offered == null ? Handshake.legacy() : offered.agree(Handshake.VERSION, features);
+            handshake = agreed;
+            send(agreed.toWelcome());
+            if (agreed.has(Handshake.COMPRESSION)) {
+                compressor = new FrameCompressor();
+            }
+            login(frame.getSender());
+        }
+
+        private void login(String name) {
+            if (!Conversation.isUserName(name)) {
+                System.out.println("Refused login as \"" + name + "\".");
+                close();
+                return;
+            }
+            username = name;
+            clients.put(username, this);
+            System.out.println(username + " connected (" + handshake + ").");
+
+            // Notify the client of its groups, then send it everything stored
+            // while it was away. Holding the queue lock keeps live messages
+            // from overtaking the stored ones.
+            outbound.runLocked(() -> {
+                for (String groupName : groupsOf(username)) {
+                    Set<String> mem = groups.get(groupName);
+                    if (mem != null && mem.contains(username)) {
+                        send(Frame.groupCreated(groupName, String.join(",", mem)));
                     }
-                    // --- Group chat creation ---
-                    else if (type.equals("CREATE_GROUP")) {
-                        // Format: CREATE_GROUP|groupName|creator|user1,user2,...
-                        if (parts.length < 4)
-                            continue;
-                        String groupName = parts[1];
-                        String creator = parts[2];
-                        String membersStr = parts[3];
-                        Set<String> groupMembers = new HashSet<>(Arrays.asList(membersStr.split(",")));
-                        groupMembers.add(creator); // Ensure creator is included
-                        groups.put(groupName, groupMembers);
-                        groupDB.saveGroup(groupName, groupMembers);
-                        System.out.println("Group created: " + groupName + " with members " + groupMembers);
-                        // Notify all connected group members
-                        for (String member : groupMembers) {
-                            ClientHandler handler = clients.get(member);
-                            if (handler != null) {
-                                handler.out.println("GROUP_CREATED|" + groupName + "|" + membersStr);
-                            }
-                        }
+                }
+                replayOfflineMessages();
+            });
+        }
+
+        // Queues stored messages as BATCH frames of up to offline.batchBytes,
+        // so the client can apply them in one go, until the outbound queue is
+        // full; the rest follow once it drains (see onOutboundDrained). Runs
+        // under the queue lock, so a batch started with room is always queued.
+        // Clients without batching get them one frame at a time, and clients
+        // with SYNC as SYNC_DATA (see sync).
+        private void replayOfflineMessages() {
+            if (handshake.has(Handshake.SYNC) && !synced)
+                return;
+            if (!handshake.has(Handshake.BATCHING) && !handshake.has(Handshake.SYNC)) {
+                offlineStore.replay(username, record -> {
+                    try {
+                        Frame frame = BinaryCodec.decode(record.duplicate());
+                        return frame == null || send(frame) == OutboundQueue.Result.QUEUED;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return true;
                     }
-                    // --- Group messaging ---
-                    else if (type.equals("GROUP_MSG")) {
-                        // Format: GROUP_MSG|msgId|sender|groupName|content
-                        if (parts.length < 5)
-                            continue;
-                        String msgId = parts[1];
-                        String sender = parts[2];
-                        String groupName = parts[3];
-                        String content = parts[4];
-                        Set<String> members = groups.get(groupName);
-                        if (members != null) {
-                            String groupMsg = "GROUP_MSG|" + msgId + "|" + sender + "|" + groupName + "|" + content;
-                            for (String member : members) {
-                                if (!member.equals(sender)) {
-                                    ClientHandler memberHandler = clients.get(member);
-                                    if (memberHandler != null) {
-                                        memberHandler.out.println(groupMsg);
-                                    } else {
-                                        // Store offline message for that member.
-                                        offlineGroupMessages
-                                                .computeIfAbsent(groupName, k -> new ConcurrentHashMap<>())
-                                                .computeIfAbsent(member, k -> new ArrayList<>())
-                                                .add(groupMsg);
-                                    }
-                                }
-                            }
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|DELIVERED");
-                            }
-                        } else {
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|FAILED");
+                });
+                return;
+            }
+            FrameBatch batch = new FrameBatch(offlineBatchBytes);
+            // Stored frames go into the batch as they are unless the client
+            // lacks a feature they use (see adapt).
+            boolean asStored = handshake.has(Handshake.SEQUENCES) && handshake.has(Handshake.CHUNKED_FILES);
+            boolean sync = handshake.has(Handshake.SYNC);
+            offlineStore.replay(username, record -> {
+                if (batch.isEmpty() && !outbound.hasRoom(OutboundQueue.Lane.CHAT))
+                    return false;
+                if (asStored && !sync) {
+                    batch.add(record);
+                } else {
+                    try {
+                        Frame frame = BinaryCodec.decode(record.duplicate());
+                        if (frame == null || covered(frame))
+                            return true;
+                        if (frame.getType() == MessageType.SYNC_DATA
+                                || frame.getType() == MessageType.HISTORY_PAGE) {
+                            // Part of a SYNC answer that was spilled; it goes
+                            // on its own.
+                            if (!batch.isEmpty()) {
+                                send(offlineBatch(batch));
                             }
+                            if (!outbound.hasRoom(OutboundQueue.Lane.CHAT))
+                                return false;
+                            send(frame);
+                        } else if (asStored) {
+                            batch.add(record);
+                        } else if ((frame = adapt(frame)) != null) {
+                            batch.add(frame);
                         }
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
-                    // --- Group file transfer ---
-                    else if (type.equals("GROUP_FILE")) {
-                        // Format: GROUP_FILE|msgId|sender|groupName|filename|base64data
-                        if (parts.length < 6)
-                            continue;
-                        String msgId = parts[1];
-                        String sender = parts[2];
-                        String groupName = parts[3];
-                        String filename = parts[4];
-                        String base64data = parts[5];
-                        Set<String> members = groups.get(groupName);
-                        if (members != null) {
-                            String groupFileMsg = "GROUP_FILE|" + msgId + "|" + sender + "|" + groupName + "|"
-                                    + filename + "|" + base64data;
-                            for (String member : members) {
-                                if (!member.equals(sender)) {
-                                    ClientHandler memberHandler = clients.get(member);
-                                    if (memberHandler != null) {
-                                        memberHandler.out.println(groupFileMsg);
-                                    } else {
-                                        offlineGroupMessages
-                                                .computeIfAbsent(groupName, k -> new ConcurrentHashMap<>())
-                                                .computeIfAbsent(member, k -> new ArrayList<>())
-                                                .add(groupFileMsg);
-                                    }
-                                }
-                            }
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|DELIVERED");
-                            }
-                        } else {
-                            ClientHandler senderHandler = clients.get(sender);
-                            if (senderHandler != null) {
-                                senderHandler.out.println("ACK|" + msgId + "|FAILED");
-                            }
+                }
+                if (batch.isFull()) {
+                    send(offlineBatch(batch));
+                }
+                return true;
+            });
+            if (!batch.isEmpty()) {
+                send(offlineBatch(batch));
+            }
+        }
+
+        // Whether the client's SYNC covered a stored frame already.
+        private boolean covered(Frame frame) {
+            return frame.getSeq() > 0
+                    && frame.getSeq() <= syncCovered.getOrDefault(Conversation.of(frame, username), 0L);
+        }
+
+        // A client with SYNC may have synced stored messages from the history
+        // already; as SYNC_DATA (never deflated) it skips those by id.
+        private Frame offlineBatch(FrameBatch batch) {
+            return handshake.has(Handshake.SYNC) ? Frame.syncData(batch.toFrame(false).getData())
+                    : batch.toFrame(offlineBatchDeflate);
+        }
+
+        private void handleFrame(Frame frame) {
+            dispatcher.dispatch(this, frame);
+        }
+
+        // --- Direct messaging ---
+        // Format: MSG|msgId|sender|recipient|content
+        // The message gets the next sequence number of the conversation, which
+        // the sender learns from the ACK.
+        private void relayDirect(Frame frame) {
+            if (duplicate(frame))
+                return;
+            String msgId = frame.getMsgId();
+            String recipient = frame.getTarget();
+            if (!Conversation.isUserName(recipient)) {
+                acknowledge(msgId, "FAILED", 0);
+                return;
+            }
+            // From this connection's user, whoever the frame names.
+            Frame message = frame.withSender(username);
+            OutboundQueue.Result[] result = new OutboundQueue.Result[1];
+            // Recipients who are offline get it from the offline store later.
+            String key = Conversation.key(username, recipient);
+            long seq = sequencer.next(key, s -> {
+                Frame sequenced = message.withSeq(s);
+                history.append(key, sequenced);
+                search.add(key, sequenced);
+                result[0] = deliver(recipient, sequenced);
+            });
+            String status = result[0] == OutboundQueue.Result.QUEUED ? "DELIVERED"
+                    : result[0] == OutboundQueue.Result.SPILLED ? "QUEUED" : "FAILED";
+            acknowledge(msgId, status, seq);
+        }
+
+        // A message this client has sent before, retransmitted because the
+        // ACK did not reach it: answered with the first copy's ACK (or not at
+        // all while the first copy is still being relayed; its ACK follows).
+        private boolean duplicate(Frame frame) {
+            if (frame.getMsgId() == null)
+                return false;
+            DuplicateFilter.Outcome seen = duplicates.claim(username, frame.getMsgId());
+            if (seen == null)
+                return false;
+            System.out.println("Duplicate " + frame.getType() + " " + frame.getMsgId() + " from " + username);
+            if (seen.getStatus() != null) {
+                send(Frame.ack(frame.getMsgId(), seen.getStatus()).withSeq(seen.getSeq()));
+            }
+            return true;
+        }
+
+        // ACK|msgId|status to the sender's current connection, remembered
+        // for retransmits of the message.
+        private void acknowledge(String msgId, String status, long seq) {
+            if (msgId != null) {
+                duplicates.complete(username, msgId, status, seq);
+            }
+            ClientHandler senderHandler = clients.get(username);
+            if (senderHandler != null) {
+                senderHandler.send(Frame.ack(msgId, status).withSeq(seq));
+            }
+        }
+
+        // --- Group chat creation ---
+        // Format: CREATE_GROUP|groupName|creator|user1,user2,...
+        private void createGroup(Frame frame) {
+            String groupName = frame.getTarget();
+            String creator = frame.getSender();
+            String membersStr = frame.getText();
+            Set<String> groupMembers = new HashSet<>(Arrays.asList(membersStr.split(",")));
+            groupMembers.add(creator); // Ensure creator is included
+            Set<String> previous = groups.put(groupName, groupMembers);
+            if (previous != null) {
+                unindexMembers(groupName, previous);
+            }
+            indexMembers(groupName, groupMembers);
+            groupDB.saveGroup(groupName, groupMembers);
+            System.out.println("Group created: " + groupName + " with members " + groupMembers);
+            // Notify all connected group members
+            Frame created = Frame.groupCreated(groupName, membersStr).share();
+            for (String member : groupMembers) {
+                ClientHandler handler = clients.get(member);
+                if (handler != null) {
+                    handler.send(created);
+                }
+            }
+        }
+
+        // --- Group messaging ---
+        // Format: GROUP_MSG|msgId|sender|groupName|content
+        private void relayToGroup(Frame frame) {
+            if (duplicate(frame))
+                return;
+            String msgId = frame.getMsgId();
+            String groupName = frame.getTarget();
+            Set<String> members = groups.get(groupName);
+            // Only members may write to a group, and only as themselves.
+            if (members != null && members.contains(username)) {
+                Frame message = frame.withSender(username);
+                String conversation = Conversation.group(groupName);
+                long seq = sequencer.next(conversation, s -> {
+                    // Encoded once per wire format, however many members there are.
+                    Frame sequenced = message.withSeq(s).share();
+                    history.append(conversation, sequenced);
+                    search.add(conversation, sequenced);
+                    for (String member : members) {
+                        if (!member.equals(username)) {
+                            deliver(member, sequenced);
                         }
                     }
-                    // --- Leave group ---
-                    else if (type.equals("LEAVE_GROUP")) {
-                        // Format: LEAVE_GROUP|groupName|username
-                        if (parts.length < 3)
-                            continue;
-                        String groupName = parts[1];
-                        String user = parts[2];
-                        Set<String> members = groups.get(groupName);
-                        if (members != null) {
-                            members.remove(user);
-                            System.out.println(user + " left group " + groupName);
-                            for (String member : members) {
-                                ClientHandler memberHandler = clients.get(member);
-                                if (memberHandler != null) {
-                                    memberHandler.out.println("GROUP_UPDATE|" + groupName + "|MEMBER_LEFT|" + user);
-                                }
-                            }
-                            if (members.isEmpty()) {
-                                groups.remove(groupName);
-                                groupDB.deleteGroup(groupName);
-                            } else {
-                                groupDB.saveGroup(groupName, members);
-                            }
-                        }
+                });
+                receipts.sent(conversation, username, seq);
+                acknowledge(msgId, "DELIVERED", seq);
+            } else {
+                acknowledge(msgId, "FAILED", 0);
+            }
+        }
+
+        // --- Leave group ---
+        // Format: LEAVE_GROUP|groupName|username
+        private void leaveGroup(Frame frame) {
+            String groupName = frame.getTarget();
+            String user = frame.getSender();
+            Set<String> members = groups.get(groupName);
+            if (members != null) {
+                members.remove(user);
+                unindexMembers(groupName, Collections.singleton(user));
+                receipts.left(Conversation.group(groupName), user);
+                System.out.println(user + " left group " + groupName);
+                Frame update = Frame.groupUpdate(groupName, "MEMBER_LEFT", user).share();
+                for (String member : members) {
+                    ClientHandler memberHandler = clients.get(member);
+                    if (memberHandler != null) {
+                        memberHandler.send(update);
                     }
-                    // --- Update group name ---
-                    else if (type.equals("UPDATE_GROUP")) {
-                        // Format: UPDATE_GROUP|oldGroupName|newGroupName|username
-                        if (parts.length < 4)
-                            continue;
-                        String oldGroupName = parts[1];
-                        String newGroupName = parts[2];
-                        String user = parts[3];
-                        Set<String> members = groups.get(oldGroupName);
-                        if (members != null && members.contains(user)) {
-                            groups.remove(oldGroupName);
-                            groups.put(newGroupName, members);
-                            System.out
-                                    .println(user + " changed group name from " + oldGroupName + " to " + newGroupName);
-                            for (String member : members) {
-                                ClientHandler memberHandler = clients.get(member);
-                                if (memberHandler != null) {
-                                    memberHandler.out
-                                            .println("GROUP_UPDATE|" + oldGroupName + "|NAME_CHANGED|" + newGroupName);
-                                }
-                            }
-                            groupDB.deleteGroup(oldGroupName);
-                            groupDB.saveGroup(newGroupName, members);
-                        }
+                }
+                if (members.isEmpty()) {
+                    groups.remove(groupName);
+                    receipts.forget(Conversation.group(groupName));
+                    groupDB.deleteGroup(groupName);
+                } else {
+                    groupDB.removeMember(groupName, user);
+                }
+            }
+        }
+
+        // --- Update group name ---
+        // Format: UPDATE_GROUP|oldGroupName|newGroupName|username
+        private void renameGroup(Frame frame) {
+            String oldGroupName = frame.getTarget();
+            String newGroupName = frame.getName();
+            String user = frame.getSender();
+            Set<String> members = groups.get(oldGroupName);
+            if (members != null && members.contains(user)) {
+                groups.remove(oldGroupName);
+                receipts.forget(Conversation.group(oldGroupName));
+                Set<String> replaced = groups.put(newGroupName, members);
+                unindexMembers(oldGroupName, members);
+                if (replaced != null) {
+                    unindexMembers(newGroupName, replaced);
+                }
+                indexMembers(newGroupName, members);
+                System.out.println(user + " changed group name from " + oldGroupName + " to " + newGroupName);
+                Frame update = Frame.groupUpdate(oldGroupName, "NAME_CHANGED", newGroupName).share();
+                for (String member : members) {
+                    ClientHandler memberHandler = clients.get(member);
+                    if (memberHandler != null) {
+                        memberHandler.send(update);
                     }
-                    // --- Add user to group ---
-                    else if (type.equals("ADD_TO_GROUP")) {
-                        // Format: ADD_TO_GROUP|groupName|adder|newUser
-                        if (parts.length < 4)
-                            continue;
-                        String groupName = parts[1];
-                        String adder = parts[2];
-                        String newUser = parts[3];
-                        Set<String> members = groups.get(groupName);
-                        if (members != null && members.contains(adder)) {
-                            members.add(newUser);
-                            System.out.println(adder + " added " + newUser + " to group " + groupName);
-                            for (String member : members) {
-                                ClientHandler memberHandler = clients.get(member);
-                                if (memberHandler != null) {
-                                    memberHandler.out.println("GROUP_UPDATE|" + groupName + "|USER_ADDED|" + newUser);
-                                }
-                            }
-                            groupDB.saveGroup(groupName, members);
-                        }
+                }
+                groupDB.renameGroup(oldGroupName, newGroupName, members);
+            }
+        }
+
+        // --- Add user to group ---
+        // Format: ADD_TO_GROUP|groupName|adder|newUser
+        private void addToGroup(Frame frame) {
+            String groupName = frame.getTarget();
+            String adder = frame.getSender();
+            String newUser = frame.getName();
+            Set<String> members = groups.get(groupName);
+            if (members != null && members.contains(adder)) {
+                members.add(newUser);
+                indexMembers(groupName, Collections.singleton(newUser));
+                System.out.println(adder + " added " + newUser + " to group " + groupName);
+                Frame update = Frame.groupUpdate(groupName, "USER_ADDED", newUser).share();
+                for (String member : members) {
+                    ClientHandler memberHandler = clients.get(member);
+                    if (memberHandler != null) {
+                        memberHandler.send(update);
+                    }
+                }
+                groupDB.addMember(groupName, newUser);
+            }
+        }
+
+        // --- Request group info ---
+        // Format: GROUP_INFO|groupName
+        private void groupInfo(Frame frame) {
+            String groupName = frame.getTarget();
+            Set<String> members = groups.get(groupName);
+            if (members != null) {
+                send(Frame.groupInfo(groupName, String.join(",", members)));
+            }
+        }
+
+        // --- Chunked file upload (see FileTransfer) ---
+        // Format: FILE_START|transferId|sender|target|fileName|kind size sha256
+        private void startUpload(Frame frame) {
+            FileTransfer transfer = FileTransfer.fromStartFrame(frame);
+            if (transfer == null || !username.equals(transfer.getSender())) {
+                send(Frame.ack(frame.getMsgId(), "FAILED"));
+                return;
+            }
+            if (transfer.getKind() == MessageType.GROUP_FILE) {
+                Set<String> members = groups.get(transfer.getTarget());
+                if (members == null || !members.contains(username)) {
+                    send(Frame.ack(transfer.getTransferId(), "FAILED"));
+                    return;
+                }
+            } else if (!Conversation.isUserName(transfer.getTarget())) {
+                send(Frame.ack(transfer.getTransferId(), "FAILED"));
+                return;
+            }
+            try {
+                if (fileStore.completed(transfer.getTransferId()) != null) {
+                    // Uploaded before; the sender only missed the answer.
+                    long size = fileStore.start(transfer);
+                    DuplicateFilter.Outcome first = duplicates.find(username, transfer.getTransferId());
+                    send(Frame.fileAck(transfer.getTransferId(), Math.max(size, 0)));
+                    send(Frame.ack(transfer.getTransferId(), size < 0 ? "FAILED" : "DELIVERED")
+                            .withSeq(first == null ? 0 : first.getSeq()));
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            long stored = fileStore.start(transfer);
+            if (stored < 0) {
+                send(Frame.ack(transfer.getTransferId(), "FAILED"));
+                return;
+            }
+            send(Frame.fileAck(transfer.getTransferId(), stored));
+            if (stored == transfer.getSize()) {
+                finishUpload(transfer);
+            }
+        }
+
+        // Format: FILE_CHUNK|transferId|offset|data
+        private void receiveChunk(Frame frame) {
+            String transferId = frame.getMsgId();
+            FileTransfer transfer = fileStore.uploading(transferId);
+            byte[] data = transfer == null ? null : payload(frame);
+            long stored = data == null ? -1 : fileStore.write(transferId, username, parseOffset(frame), data);
+            if (stored < 0) {
+                send(Frame.ack(transferId, "FAILED"));
+                return;
+            }
+            send(Frame.fileAck(transferId, stored));
+            if (stored == transfer.getSize()) {
+                finishUpload(transfer);
+            }
+        }
+
+        // The frame's payload, or null if a text client sent something that
+        // is not base64.
+        private byte[] payload(Frame frame) {
+            try {
+                return frame.getData();
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid " + frame.getType() + " payload from " + username);
+                return null;
+            }
+        }
+
+        // The upload is complete: check it, then offer it to its recipients.
+        private void finishUpload(FileTransfer transfer) {
+            Collection<String> recipients = recipients(transfer);
+            if (!fileStore.finish(transfer.getTransferId(), recipients)) {
+                send(Frame.ack(transfer.getTransferId(), "FAILED"));
+                return;
+            }
+            System.out.println(username + " uploaded " + transfer.getFileName() + " (" + transfer.getSize()
+                    + " bytes) for " + transfer.getTarget());
+            long seq = offerFile(transfer, recipients);
+            acknowledge(transfer.getTransferId(), "DELIVERED", seq);
+        }
+
+        // --- Single-frame file transfer ---
+        // Format: FILE|msgId|sender|recipient|filename|base64data
+        //         GROUP_FILE|msgId|sender|groupName|filename|base64data
+        // Stored like a chunked upload, so recipients (and the offline store)
+        // get a reference to the content instead of a copy of it.
+        private void storeFile(Frame frame) {
+            if (duplicate(frame))
+                return;
+            String target = frame.getTarget();
+            if (frame.getType() == MessageType.GROUP_FILE) {
+                Set<String> members = groups.get(target);
+                if (members == null || !members.contains(username)) {
+                    acknowledge(frame.getMsgId(), "FAILED", 0);
+                    return;
+                }
+            } else if (!Conversation.isUserName(target)) {
+                acknowledge(frame.getMsgId(), "FAILED", 0);
+                return;
+            }
+            byte[] data = payload(frame);
+            if (data == null) {
+                acknowledge(frame.getMsgId(), "FAILED", 0);
+                return;
+            }
+            FileTransfer transfer = new FileTransfer(transferIds.next(), username, target,
+                    frame.getName(), frame.getType(), data.length, FileTransfer.sha256(data));
+            Collection<String> recipients = recipients(transfer);
+            if (!fileStore.store(transfer, data, recipients)) {
+                acknowledge(frame.getMsgId(), "FAILED", 0);
+                return;
+            }
+            long seq = offerFile(transfer, recipients);
+            acknowledge(frame.getMsgId(), "DELIVERED", seq);
+        }
+
+        // Recipients download the file with FILE_ACK (see sendChunks). The
+        // offer is a message of its conversation; returns its sequence number.
+        private long offerFile(FileTransfer transfer, Collection<String> recipients) {
+            String conversation = transfer.getKind() == MessageType.GROUP_FILE
+                    ? Conversation.group(transfer.getTarget()) : transfer.getTarget();
+            String key = Conversation.key(username, conversation);
+            long seq = sequencer.next(key, s -> {
+                Frame offer = transfer.toStartFrame().withSeq(s).share();
+                history.append(key, offer);
+                search.add(key, offer);
+                for (String recipient : recipients) {
+                    if (!recipient.equals(username)) {
+                        deliver(recipient, offer);
+                    }
+                }
+            });
+            if (transfer.getKind() == MessageType.GROUP_FILE) {
+                receipts.sent(key, username, seq);
+            }
+            return seq;
+        }
+
+        private Collection<String> recipients(FileTransfer transfer) {
+            if (transfer.getKind() == MessageType.FILE)
+                return Collections.singleton(transfer.getTarget());
+            Set<String> members = groups.get(transfer.getTarget());
+            return members == null ? Collections.<String>emptySet() : new ArrayList<>(members);
+        }
+
+        // --- Chunked file download ---
+        // Format: FILE_ACK|transferId|offset
+        // The client has the first offset bytes of a file offered to it; send
+        // it more as the window allows.
+        private void sendChunks(Frame frame) {
+            String transferId = frame.getMsgId();
+            long offset = parseOffset(frame);
+            synchronized (downloads) {
+                Download download = downloads.get(transferId);
+                if (download == null) {
+                    try {
+                        FileTransfer transfer = fileStore.completed(transferId);
+                        if (transfer == null || !mayDownload(transfer) || offset < 0)
+                            return;
+                        download = new Download(transfer, fileStore.openCompleted(transfer), offset);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
                     }
-                    // --- Request group info ---
-                    else if (type.equals("GROUP_INFO")) {
-                        // Format: GROUP_INFO|groupName
-                        if (parts.length < 2)
+                    downloads.put(transferId, download);
+                }
+                download.acked = Math.max(download.acked, offset);
+                if (download.acked >= download.transfer.getSize()) {
+                    download.close();
+                    downloads.remove(transferId);
+                    fileStore.downloaded(transferId, username);
+                    return;
+                }
+            }
+            sendChunks();
+        }
+
+        // Queues chunks of the client's downloads, one from each in turn,
+        // while the outbound queue has room. All downloads share one window of
+        // FileTransfer.WINDOW_CHUNKS chunks, so however many there are, no more
+        // file data than that is ahead of a chat frame on its way to the
+        // client, and only that much is ever in memory.
+        private void sendChunks() {
+            synchronized (downloads) {
+                long window = (long) FileTransfer.WINDOW_CHUNKS * FileTransfer.CHUNK_BYTES;
+                for (Download download : downloads.values()) {
+                    window -= download.sent - download.acked;
+                }
+                boolean sent = true;
+                while (sent && window > 0) {
+                    sent = false;
+                    for (Download download : downloads.values()) {
+                        if (window <= 0)
+                            return;
+                        if (download.sent >= download.transfer.getSize())
                             continue;
-                        String groupName = parts[1];
-                        Set<String> members = groups.get(groupName);
-                        if (members != null) {
-                            out.println("GROUP_INFO|" + groupName + "|" + String.join(",", members));
+                        if (!outbound.hasRoom(OutboundQueue.Lane.BULK))
+                            return;
+                        try {
+                            int length = (int) Math.min(FileTransfer.CHUNK_BYTES,
+                                    download.transfer.getSize() - download.sent);
+                            String transferId = download.transfer.getTransferId();
+                            // Chunks that are to be compressed are read anyway.
+                            boolean compress = compressor != null
+                                    && FrameCompressor.isCompressible(download.transfer.getFileName());
+                            Frame chunk = zeroCopy && format == WireFormat.BINARY && !compress
+                                    ? Frame.fileChunk(transferId, download.sent, download.channel, length)
+                                    : Frame.fileChunk(transferId, download.sent, download.read(length));
+                            if (!compress) {
+                                chunk.incompressible();
+                            }
+                            if (send(chunk) != OutboundQueue.Result.QUEUED)
+                                return;
+                            download.sent += length;
+                            window -= length;
+                            sent = true;
+                        } catch (IOException e) {
+                            e.printStackTrace();
                         }
                     }
-                    // --- ACK handling ---
-                    else if (type.equals("ACK")) {
-                        // Instead of broadcasting ACK messages to all, simply log it.
-                        System.out.println("Received ACK: " + message);
+                }
+            }
+        }
+
+        // Version 1 clients know files only as one FILE or GROUP_FILE frame:
+        // the offer is replaced by the whole file, read here by the writer,
+        // and counts as downloaded once it is. Files too large for one frame
+        // are not sent.
+        private Frame wholeFile(Frame offer) {
+            FileTransfer transfer = FileTransfer.fromStartFrame(offer);
+            if (transfer == null)
+                return null;
+            String transferId = transfer.getTransferId();
+            try {
+                transfer = fileStore.completed(transferId);
+                if (transfer == null)
+                    return null;
+                if (transfer.getSize() > LEGACY_FILE_BYTES) {
+                    System.out.println(transfer.getFileName() + " (" + transfer.getSize()
+                            + " bytes) is too large for " + username + "'s client; not sent.");
+                    fileStore.downloaded(transferId, username);
+                    return null;
+                }
+                Download download = new Download(transfer, fileStore.openCompleted(transfer), 0);
+                byte[] data;
+                try {
+                    data = download.read((int) transfer.getSize());
+                } finally {
+                    download.close();
+                }
+                fileStore.downloaded(transferId, username);
+                return Frame.file(transfer.getKind(), transferId, transfer.getSender(), transfer.getTarget(),
+                        transfer.getFileName(), data).withSeq(offer.getSeq());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private boolean mayDownload(FileTransfer transfer) {
+            if (username.equals(transfer.getSender()))
+                return true;
+            if (transfer.getKind() == MessageType.FILE)
+                return username.equals(transfer.getTarget());
+            Set<String> members = groups.get(transfer.getTarget());
+            return members != null && members.contains(username);
+        }
+
+        private long parseOffset(Frame frame) {
+            try {
+                return Long.parseLong(frame.getName());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // --- Compressed frames (see FrameCompressor) ---
+        // Format: BATCH|encoding|base64 frames
+        private void unpackBatch(Frame frame) {
+            try {
+                for (Frame f : FrameBatch.unpack(frame, BinaryCodec.MAX_CLIENT_FRAME_LENGTH)) {
+                    // No batches within batches.
+                    if (f.getType() != MessageType.BATCH) {
+                        handleFrame(f);
                     }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                if (username != null) {
-                    clients.remove(username);
-                    System.out.println(username + " disconnected.");
+            }
+        }
+
+        // --- Receipts (see ReceiptRouter) ---
+        // Format: RECEIPT|reader|conversation|DELIVERED or READ|seq
+        private void receipt(Frame frame) {
+            String conversation = frame.getTarget();
+            String status = frame.getName();
+            if (conversation == null
+                    || !ReceiptRouter.DELIVERED.equals(status) && !ReceiptRouter.READ.equals(status))
+                return;
+            long seq;
+            try {
+                seq = Long.parseLong(frame.getText());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (Conversation.isGroup(conversation)) {
+                Set<String> members = groups.get(Conversation.groupName(conversation));
+                if (members == null || !members.contains(username))
+                    return;
+            }
+            // Nothing can be acknowledged that has not been sent yet.
+            if (seq < 1 || seq > sequencer.last(Conversation.key(username, conversation)))
+                return;
+            receipts.receipt(username, conversation, status, seq);
+        }
+
+        // --- History (see HistoryStore) ---
+        // Format: HISTORY|conversation|before|limit
+        // Answered with HISTORY_PAGE|conversation|next|frames: the messages and
+        // file offers numbered below before (the latest if before is 0),
+        // oldest first. Group members get the whole history of the group,
+        // including what was sent before they joined.
+        private void history(Frame frame) {
+            String conversation = frame.getTarget();
+            if (conversation == null || !handshake.has(Handshake.HISTORY))
+                return;
+            if (Conversation.isGroup(conversation)) {
+                Set<String> members = groups.get(Conversation.groupName(conversation));
+                if (members == null || !members.contains(username)) {
+                    send(Frame.historyPage(conversation, 0, new byte[0]));
+                    return;
+                }
+            }
+            long before;
+            int limit;
+            try {
+                before = Long.parseLong(frame.getName());
+                limit = Integer.parseInt(frame.getText());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            HistoryStore.Page page = history.page(Conversation.key(username, conversation), before,
+                    Math.min(limit, historyMaxPage));
+            send(Frame.historyPage(conversation, page.next, page.records));
+        }
+
+        // --- Delta sync ---
+        // Format: SYNC|cursors (see Cursors): the highest sequence number the
+        // client has of each conversation it knows.
+        // Answered with SYNC_DATA frames of about offline.batchBytes holding
+        // what it missed: first what the offline store kept for it, as far as
+        // the outbound queue has room (the rest follows as it drains, as at
+        // login), then the messages and file offers after each cursor and in
+        // each of its groups, from the history; the last SYNC_DATA may be
+        // empty. Stored messages the client has, or gets from the history,
+        // are dropped instead (see covered), now and as the rest follows.
+        // A conversation with nothing new is not read at all,
+        // so the work is in proportion to what was missed. A conversation the
+        // client has nothing of, or missed more than sync.maxMessages of,
+        // comes as a HISTORY_PAGE of its latest messages instead, from which
+        // the client can page back.
+        private void sync(Frame frame) {
+            if (!handshake.has(Handshake.SYNC))
+                return;
+            Map<String, Long> cursors;
+            try {
+                cursors = Cursors.decode(frame.getData());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            for (String groupName : groupsOf(username)) {
+                cursors.putIfAbsent(Conversation.group(groupName), 0L);
+            }
+            // Read before taking the queue lock, which senders to this client
+            // wait for.
+            List<Frame> replies = new ArrayList<>();
+            Map<String, Long> covered = new HashMap<>();
+            FrameBatch data = new FrameBatch(offlineBatchBytes);
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                String conversation = cursor.getKey();
+                if (Conversation.isGroup(conversation)) {
+                    Set<String> members = groups.get(Conversation.groupName(conversation));
+                    if (members == null || !members.contains(username))
+                        continue;
+                }
+                String key = Conversation.key(username, conversation);
+                long after = cursor.getValue();
+                covered.put(conversation, after);
+                if (after >= sequencer.last(key))
+                    continue;
+                HistoryStore.Page page = after > 0 ? history.since(key, after, syncMaxMessages) : null;
+                if (page == null || page.next != 0) {
+                    // Older stored messages are left for the client to page
+                    // back to.
+                    HistoryStore.Page latest = history.page(key, 0, syncMaxMessages);
+                    replies.add(Frame.historyPage(conversation, latest.next, latest.records));
+                    try {
+                        ByteBuffer src = ByteBuffer.wrap(latest.records);
+                        Frame f;
+                        while ((f = BinaryCodec.decode(src)) != null) {
+                            covered.merge(conversation, f.getSeq(), Math::max);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
                 }
+                ByteBuffer src = ByteBuffer.wrap(page.records);
                 try {
-                    socket.close();
+                    Frame f;
+                    int start = 0;
+                    while ((f = BinaryCodec.decode(src)) != null) {
+                        covered.merge(conversation, f.getSeq(), Math::max);
+                        // The client's own messages are not relayed back to it.
+                        if (!username.equals(f.getSender())) {
+                            data.add(ByteBuffer.wrap(page.records, start, src.position() - start));
+                            if (data.isFull()) {
+                                replies.add(Frame.syncData(data.toFrame(false).getData()));
+                            }
+                        }
+                        start = src.position();
+                    }
                 } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            replies.add(Frame.syncData(data.toFrame(false).getData()));
+            outbound.runLocked(() -> {
+                synced = true;
+                syncCovered = covered;
+                replayOfflineMessages();
+                for (Frame reply : replies) {
+                    send(reply, spillToOffline);
+                }
+            });
+        }
+
+        // --- Search (see SearchIndex) ---
+        // Format: SEARCH|conversation|offset|query
+        // Answered with SEARCH_RESULTS|conversation|next|frames: the messages
+        // and file offers with every word of the query, best match first,
+        // from the offset-th on. An empty conversation searches every one the
+        // user can read: its direct conversations and the groups it is in now.
+        private void search(Frame frame) {
+            if (!handshake.has(Handshake.SEARCH))
+                return;
+            String conversation = frame.getTarget() == null ? "" : frame.getTarget();
+            int offset;
+            try {
+                offset = Integer.parseInt(frame.getName());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String only = conversation.isEmpty() ? null : Conversation.key(username, conversation);
+            SearchIndex.Hits hits = search.search(frame.getText(),
+                    key -> (only == null || only.equals(key)) && mayRead(key), offset, searchPageSize);
+            FrameBatch results = new FrameBatch(offlineBatchBytes);
+            for (SearchIndex.Hit hit : hits.hits) {
+                byte[] record = history.get(hit.conversation, hit.seq);
+                if (record != null) {
+                    results.add(ByteBuffer.wrap(record));
                 }
             }
+            send(Frame.searchResults(conversation, hits.next, results.toFrame(false).getData()));
+        }
+
+        // Whether the conversation with this key is this user's, or one of
+        // its groups.
+        private boolean mayRead(String key) {
+            if (Conversation.isGroup(key)) {
+                Set<String> members = groups.get(Conversation.groupName(key));
+                return members != null && members.contains(username);
+            }
+            int bar = key.indexOf('|');
+            return key.substring(0, bar).equals(username) || key.substring(bar + 1).equals(username);
+        }
+
+        // --- ACK handling ---
+        // Instead of broadcasting ACK messages to all, simply log it.
+        private void logAck(Frame frame) {
+            System.out.println("Received ACK: " + TextCodec.format(frame));
+        }
+    }
+
+    // One file a client is downloading; see ClientHandler.sendChunks.
+    private static class Download {
+        final FileTransfer transfer;
+        final FileChannel channel;
+        // Bytes the client has confirmed, and bytes queued for it.
+        long acked;
+        long sent;
+
+        Download(FileTransfer transfer, FileChannel channel, long offset) {
+            this.transfer = transfer;
+            this.channel = channel;
+            this.acked = offset;
+            this.sent = offset;
+        }
+
+        // The chunk at sent.
+        byte[] read(int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, sent + buf.position()) < 0)
+                    throw new IOException("File shorter than expected: " + transfer.getTransferId());
+            }
+            return buf.array();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 }
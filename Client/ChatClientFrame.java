@@ -5,8 +5,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
+import protocol.MessageId;
 
 public class ChatClientFrame extends JFrame {
 
@@ -17,7 +17,8 @@ public class ChatClientFrame extends JFrame {
     public NetworkClient networkClient;
     public final String SERVER_ADDRESS = "localhost";
     public final int SERVER_PORT = 12345;
-    public AtomicLong messageIdGenerator = new AtomicLong(System.currentTimeMillis());
+    // Ids of the messages and files this client sends (see MessageId).
+    public final MessageId messageIds = MessageId.randomNode();
     public SQLDatabase db;
     public Map<String, UserData.User> users;
     public UserData.User currentUser;
@@ -149,8 +150,8 @@ public class ChatClientFrame extends JFrame {
         UIStyles.scrollToBottom(scrollPane);
     }
 
-    public long generateMessageId() {
-        return messageIdGenerator.getAndIncrement();
+    public String generateMessageId() {
+        return messageIds.next();
     }
 
     public SQLDatabase getDatabase() {
@@ -11,12 +11,17 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import protocol.Frame;
+import protocol.MessageType;
 
 public class ChatMainPanel extends JPanel {
 
@@ -27,6 +32,13 @@ public class ChatMainPanel extends JPanel {
     public JLabel headerLabel;
     public String currentChatContact = null;
     public JPanel conversationPanel;
+    // The open search dialog's matches, the chat of each, and where the next
+    // page of them starts.
+    private DefaultListModel<String> searchResultsModel;
+    private List<String> searchResultChats;
+    private JButton moreResultsButton;
+    private String searchQuery;
+    private int searchNext;
 
     public ChatMainPanel(ChatClientFrame client) {
         this.client = client;
@@ -55,6 +67,11 @@ public class ChatMainPanel extends JPanel {
         });
         rightPanel.add(refreshChatButton);
 
+        JButton searchButton = new JButton("SEARCH");
+        client.styleButton(searchButton);
+        searchButton.addActionListener(e -> showSearchDialog());
+        rightPanel.add(searchButton);
+
         JButton profileButton = new JButton("PROFILE");
         client.styleButton(profileButton);
         profileButton.addActionListener(e -> {
@@ -217,6 +234,80 @@ public class ChatMainPanel extends JPanel {
         dialog.setVisible(true);
     }
     
+    // Searches the messages of all chats on the server; double-click a match
+    // to open its chat. Matches come a page at a time (addSearchResults).
+    public void showSearchDialog() {
+        NetworkClient networkClient = client.getNetworkClient();
+        JDialog dialog = new JDialog();
+        dialog.setTitle("Search Messages");
+        dialog.setSize(500, 400);
+        dialog.setLayout(new BorderLayout());
+
+        JTextField searchField = new JTextField();
+        searchResultsModel = new DefaultListModel<>();
+        searchResultChats = new ArrayList<>();
+        JList<String> resultList = new JList<>(searchResultsModel);
+        moreResultsButton = new JButton("More");
+        client.styleButton(moreResultsButton);
+        moreResultsButton.setEnabled(false);
+
+        searchField.addActionListener(e -> {
+            searchQuery = searchField.getText().trim();
+            searchResultsModel.clear();
+            searchResultChats.clear();
+            moreResultsButton.setEnabled(false);
+            if (searchQuery.isEmpty())
+                return;
+            if (networkClient == null || !networkClient.search(searchQuery, 0)) {
+                JOptionPane.showMessageDialog(dialog, "The server does not support search.");
+            }
+        });
+
+        moreResultsButton.addActionListener(e -> {
+            moreResultsButton.setEnabled(false);
+            if (networkClient != null) {
+                networkClient.search(searchQuery, searchNext);
+            }
+        });
+
+        resultList.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                int index = resultList.getSelectedIndex();
+                if (e.getClickCount() == 2 && index >= 0 && searchResultChats.get(index) != null) {
+                    String chat = searchResultChats.get(index);
+                    if (chat.startsWith("Group:")) {
+                        openGroupChatSession(chat.substring("Group:".length()));
+                    } else {
+                        openIndividualChatSession(chat);
+                    }
+                }
+            }
+        });
+
+        dialog.add(searchField, BorderLayout.NORTH);
+        dialog.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        dialog.add(moreResultsButton, BorderLayout.SOUTH);
+        dialog.setLocationRelativeTo(null);
+        dialog.setVisible(true);
+    }
+
+    // The next page of matches for the open search dialog; next is where the
+    // page after it starts, 0 if there is none.
+    public void addSearchResults(List<String> chats, List<String> lines, int next) {
+        if (searchResultsModel == null)
+            return;
+        if (lines.isEmpty() && searchResultsModel.isEmpty()) {
+            searchResultsModel.addElement("No messages found.");
+            searchResultChats.add(null);
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            searchResultsModel.addElement(lines.get(i));
+            searchResultChats.add(chats.get(i));
+        }
+        searchNext = next;
+        moreResultsButton.setEnabled(next > 0);
+    }
+
     public void showRemoveFriendDialog() {
         JDialog dialog = new JDialog();
         dialog.setTitle("Remove Friend");
@@ -356,7 +447,7 @@ public class ChatMainPanel extends JPanel {
     
         final JScrollPane inputScroll = createInputAreaPanel(inputPanel, msgText -> {
             if (!msgText.isEmpty()) {
-                String msgId = currentUser .getUsername() + "-" + client.generateMessageId();
+                String msgId = client.generateMessageId();
                 MessageData.Message msg = new MessageData.Message(msgId, currentUser .getUsername(), contact, msgText, "MSG", null);
                 msg.setStatus("PENDING");
                 addMessageToHistory(contact, msg);
@@ -372,7 +463,7 @@ public class ChatMainPanel extends JPanel {
                 conversationPanel.repaint();
                 NetworkClient networkClient = client.getNetworkClient();
                 if (networkClient != null) {
-                    networkClient.sendMessage(contact, "MSG|" + msgId + "|" + currentUser .getUsername() + "|" + contact + "|" + msgText);
+                    networkClient.sendMessage(msg, Frame.message(MessageType.MSG, msgId, currentUser .getUsername(), contact, msgText));
                 }
                 client.scrollToBottom(convScroll);
             }
@@ -388,6 +479,9 @@ public class ChatMainPanel extends JPanel {
         inputPanel.add(sendMsgButton);
         inputPanel.add(sendFileButton);
     
+        JButton loadEarlierButton = createLoadEarlierButton(contact);
+        inputPanel.add(loadEarlierButton);
+
         JButton closeChatButton = new JButton("Close Chat");
         client.styleButton(closeChatButton);
         inputPanel.add(closeChatButton);
@@ -408,37 +502,36 @@ public class ChatMainPanel extends JPanel {
             int res = fc.showOpenDialog(chatSessionPanel);
             if (res == JFileChooser.APPROVE_OPTION) {
                 File file = fc.getSelectedFile();
-                try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    String base64Encoded = Base64.getEncoder().encodeToString(data);
-                    String msgId = currentUser .getUsername() + "-" + client.generateMessageId();
-                    MessageData.Message fileMsg = new MessageData.Message(msgId, currentUser .getUsername(), contact, file.getName(), "FILE", base64Encoded);
-                    fileMsg.setStatus("PENDING");
-                    addMessageToHistory(contact, fileMsg);
-                    conversationPanel.add(createMessagePanel(fileMsg));
-                    conversationPanel.revalidate();
-                    conversationPanel.repaint();
-                    NetworkClient networkClient = client.getNetworkClient();
-                    if (networkClient != null) {
-                        networkClient.sendMessage(contact, "FILE|" + msgId + "|" + currentUser .getUsername() + "|" + contact + "|" + file.getName() + "|" + base64Encoded);
-                    }
-                    client.scrollToBottom(convScroll);
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(chatSessionPanel, "Error reading file: " + ex.getMessage());
+                // Sent in chunks straight from disk; the message only refers to the file.
+                String msgId = client.generateMessageId();
+                MessageData.Message fileMsg = new MessageData.Message(msgId, currentUser .getUsername(), contact, file.getName(), "FILE", file.toURI().toString());
+                fileMsg.setStatus("PENDING");
+                addMessageToHistory(contact, fileMsg);
+                conversationPanel.add(createMessagePanel(fileMsg));
+                conversationPanel.revalidate();
+                conversationPanel.repaint();
+                NetworkClient networkClient = client.getNetworkClient();
+                if (networkClient != null) {
+                    networkClient.sendFile(file, contact, MessageType.FILE, fileMsg);
                 }
+                client.scrollToBottom(convScroll);
             }
         });
     
         if (currentUser .getChatHistory().containsKey(contact)) {
+            // Acknowledged with one READ watermark, not an ACK per message.
+            List<MessageData.Message> unread = new ArrayList<>();
             for (MessageData.Message m : currentUser .getChatHistory().get(contact)) {
                 if (!"READ".equals(m.getStatus()) && m.getSender().equals(contact)) {
-                    m.setStatus("READ");
-                    NetworkClient networkClient = client.getNetworkClient();
-                    if (networkClient != null) {
-                        networkClient.sendMessage(contact, "ACK|" + m.getMessageId() + "|READ");
-                    }
+                    unread.add(m);
                 }
             }
+            NetworkClient networkClient = client.getNetworkClient();
+            if (networkClient != null) {
+                networkClient.markRead(contact, unread);
+            } else {
+                unread.forEach(m -> m.setStatus("READ"));
+            }
             client.getDatabase().saveMessagesForUser (currentUser .getUsername(), currentUser .getChatHistory());
         }
     
@@ -469,7 +562,7 @@ public class ChatMainPanel extends JPanel {
                 leaveItem.addActionListener(ae -> {
                     NetworkClient networkClient = client.getNetworkClient();
                     if (networkClient != null) {
-                        networkClient.sendMessage("", "LEAVE_GROUP|" + groupName + "|" + client.getCurrentUser ().getUsername());
+                        networkClient.sendFrame(Frame.leaveGroup(groupName, client.getCurrentUser ().getUsername()));
                         client.getGroups().remove(groupName);
                         JOptionPane.showMessageDialog(ChatMainPanel.this, "You have left the group.");
                         chatSessionPanel.removeAll();
@@ -487,7 +580,7 @@ public class ChatMainPanel extends JPanel {
                     if (newName != null && !newName.trim().isEmpty()) {
                         NetworkClient networkClient = client.getNetworkClient();
                         if (networkClient != null) {
-                            networkClient.sendMessage("", "UPDATE_GROUP|" + groupName + "|" + newName + "|" + client.getCurrentUser ().getUsername());
+                            networkClient.sendFrame(Frame.renameGroup(groupName, newName, client.getCurrentUser ().getUsername()));
                             java.util.Set<String> members = client.getGroups().get(groupName);
                             client.getGroups().remove(groupName);
                             client.getGroups().put(newName, members);
@@ -502,7 +595,7 @@ public class ChatMainPanel extends JPanel {
                 showMembersItem.addActionListener(ae -> {
                     NetworkClient networkClient = client.getNetworkClient();
                     if (networkClient != null) {
-                        networkClient.sendMessage("", "GROUP_INFO|" + groupName);
+                        networkClient.sendFrame(Frame.groupInfoRequest(groupName));
                     }
                     SwingUtilities.invokeLater(() -> {
                         java.util.Set<String> mem = client.getGroups().get(groupName);
@@ -544,7 +637,7 @@ public class ChatMainPanel extends JPanel {
                         if (networkClient != null) {
                             for (Map.Entry<String, JCheckBox> entry : checkboxMap.entrySet()) {
                                 if (entry.getValue().isSelected()) {
-                                    networkClient.sendMessage("", "ADD_TO_GROUP|" + groupName + "|" + client.getCurrentUser ().getUsername() + "|" + entry.getKey());
+                                    networkClient.sendFrame(Frame.addToGroup(groupName, client.getCurrentUser ().getUsername(), entry.getKey()));
                                 }
                             }
                         }
@@ -593,7 +686,7 @@ public class ChatMainPanel extends JPanel {
     
         final JScrollPane inputScroll = createInputAreaPanel(inputPanel, msgText -> {
             if (!msgText.isEmpty()) {
-                String msgId = client.getCurrentUser ().getUsername() + "-" + client.generateMessageId();
+                String msgId = client.generateMessageId();
                 MessageData.Message msg = new MessageData.Message(msgId, client.getCurrentUser ().getUsername(), groupName, msgText, "GROUP_MSG", null);
                 msg.setStatus("PENDING");
                 addMessageToHistory("Group:" + groupName, msg);
@@ -609,7 +702,7 @@ public class ChatMainPanel extends JPanel {
                 conversationPanel.repaint();
                 NetworkClient networkClient = client.getNetworkClient();
                 if (networkClient != null) {
-                    networkClient.sendMessage("", "GROUP_MSG|" + msgId + "|" + client.getCurrentUser ().getUsername() + "|" + groupName + "|" + msgText);
+                    networkClient.sendMessage(msg, Frame.message(MessageType.GROUP_MSG, msgId, client.getCurrentUser ().getUsername(), groupName, msgText));
                 }
                 client.scrollToBottom(convScroll);
             }
@@ -631,24 +724,18 @@ public class ChatMainPanel extends JPanel {
             int res = fc.showOpenDialog(chatSessionPanel);
             if (res == JFileChooser.APPROVE_OPTION) {
                 File file = fc.getSelectedFile();
-                try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    String base64Encoded = Base64.getEncoder().encodeToString(data);
-                    String msgId = client.getCurrentUser ().getUsername() + "-" + client.generateMessageId();
-                    MessageData.Message fileMsg = new MessageData.Message(msgId, client.getCurrentUser ().getUsername(), groupName, file.getName(), "GROUP_FILE", base64Encoded);
-                    fileMsg.setStatus("PENDING");
-                    addMessageToHistory("Group:" + groupName, fileMsg);
-                    conversationPanel.add(createMessagePanel(fileMsg));
-                    conversationPanel.revalidate();
-                    conversationPanel.repaint();
-                    NetworkClient networkClient = client.getNetworkClient();
-                    if (networkClient != null) {
-                        networkClient.sendMessage("", "GROUP_FILE|" + msgId + "|" + client.getCurrentUser ().getUsername() + "|" + groupName + "|" + file.getName() + "|" + base64Encoded);
-                    }
-                    client.scrollToBottom(convScroll);
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(chatSessionPanel, "Error reading file: " + ex.getMessage());
+                String msgId = client.generateMessageId();
+                MessageData.Message fileMsg = new MessageData.Message(msgId, client.getCurrentUser ().getUsername(), groupName, file.getName(), "GROUP_FILE", file.toURI().toString());
+                fileMsg.setStatus("PENDING");
+                addMessageToHistory("Group:" + groupName, fileMsg);
+                conversationPanel.add(createMessagePanel(fileMsg));
+                conversationPanel.revalidate();
+                conversationPanel.repaint();
+                NetworkClient networkClient = client.getNetworkClient();
+                if (networkClient != null) {
+                    networkClient.sendFile(file, groupName, MessageType.GROUP_FILE, fileMsg);
                 }
+                client.scrollToBottom(convScroll);
             }
         });
     
@@ -666,6 +753,7 @@ public class ChatMainPanel extends JPanel {
         bottomPanel.add(inputScroll);
         bottomPanel.add(sendMsgButton);
         bottomPanel.add(sendFileButton);
+        bottomPanel.add(createLoadEarlierButton("Group:" + groupName));
         bottomPanel.add(closeChatButton);
     
         chatSessionPanel.add(convScroll, BorderLayout.CENTER);
@@ -674,6 +762,34 @@ public class ChatMainPanel extends JPanel {
         chatSessionPanel.repaint();
     }
 
+    // Asks the server for the messages before those of the chat shown;
+    // disabled once there are none.
+    private JButton createLoadEarlierButton(String chat) {
+        JButton loadEarlierButton = new JButton("Load Earlier");
+        client.styleButton(loadEarlierButton);
+        loadEarlierButton.addActionListener(e -> {
+            NetworkClient networkClient = client.getNetworkClient();
+            if (networkClient == null || !networkClient.requestHistory(chat)) {
+                loadEarlierButton.setEnabled(false);
+            }
+        });
+        return loadEarlierButton;
+    }
+
+    // Renders the chat again if it is open, e.g. after earlier messages
+    // arrived.
+    public void reloadChat(String chat) {
+        if (currentChatContact == null || !currentChatContact.equals(chat))
+            return;
+        if (chat.startsWith("Group:")) {
+            // The group session adds to the conversation panel it finds.
+            conversationPanel.removeAll();
+            openGroupChatSession(chat.substring("Group:".length()));
+        } else {
+            openIndividualChatSession(chat);
+        }
+    }
+
     public void openCreateGroupDialog() {
         JDialog groupDialog = new JDialog(client, "Create Group", true);
         groupDialog.setSize(400, 400);
@@ -728,7 +844,7 @@ public class ChatMainPanel extends JPanel {
             String membersStr = String.join(",", selected);
             NetworkClient networkClient = client.getNetworkClient();
             if (networkClient != null) {
-                networkClient.sendMessage("", "CREATE_GROUP|" + groupName + "|" + client.getCurrentUser().getUsername() + "|" + membersStr);
+                networkClient.sendFrame(Frame.createGroup(groupName, client.getCurrentUser().getUsername(), membersStr));
             }
             client.getGroups().put(groupName, new HashSet<>(selected));
             refreshContacts();
@@ -778,8 +894,14 @@ public class ChatMainPanel extends JPanel {
                 if (res == JFileChooser.APPROVE_OPTION) {
                     File outFile = chooser.getSelectedFile();
                     try {
-                        byte[] data = Base64.getDecoder().decode(m.getFileData());
-                        Files.write(outFile.toPath(), data);
+                        if (m.getFileData().startsWith("file:")) {
+                            // Received (or sent) in chunks; the content is on disk.
+                            Files.copy(Paths.get(URI.create(m.getFileData())), outFile.toPath(),
+                                    StandardCopyOption.REPLACE_EXISTING);
+                        } else {
+                            byte[] data = Base64.getDecoder().decode(m.getFileData());
+                            Files.write(outFile.toPath(), data);
+                        }
                         JOptionPane.showMessageDialog(panel, "File downloaded to " + outFile.getAbsolutePath());
                         downloadBtn.setEnabled(false);
                     } catch (IOException ex) {
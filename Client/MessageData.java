@@ -7,6 +7,10 @@ public class MessageData {
         private static final long serialVersionUID = 1L;
         private String messageId, sender, recipient, content, type, fileData, status;
         private long timestamp;
+        // Position in the conversation as numbered by the server; 0 if unknown.
+        private long seq;
+        // Row of the message in the local database; 0 until it is saved.
+        private long key;
 
         public Message(String messageId, String sender, String recipient, String content, String type, String fileData) {
             this.messageId = messageId;
@@ -58,5 +62,21 @@ public class MessageData {
         public void setTimestamp(long timestamp) {
             this.timestamp = timestamp;
         }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public void setSeq(long seq) {
+            this.seq = seq;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public void setKey(long key) {
+            this.key = key;
+        }
     }
 }
@@ -1,198 +1,1059 @@
 package chatting;
 
 import javax.swing.*;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import protocol.BinaryCodec;
+import protocol.Conversation;
+import protocol.Cursors;
+import protocol.FileTransfer;
+import protocol.Frame;
+import protocol.FrameBatch;
+import protocol.FrameCompressor;
+import protocol.FrameDispatcher;
+import protocol.Handshake;
+import protocol.MessageId;
+import protocol.MessageType;
+import protocol.TextCodec;
+import protocol.WireFormat;
 
 public class NetworkClient implements Runnable {
 
+    private static final FrameDispatcher<NetworkClient> DISPATCHER = new FrameDispatcher<NetworkClient>()
+            .on(MessageType.MSG, NetworkClient::onMessage)
+            .on(MessageType.FILE, NetworkClient::onFile)
+            .on(MessageType.GROUP_MSG, NetworkClient::onGroupMessage)
+            .on(MessageType.GROUP_FILE, NetworkClient::onGroupFile)
+            .on(MessageType.GROUP_CREATED, NetworkClient::onGroupCreated)
+            .on(MessageType.GROUP_UPDATE, NetworkClient::onGroupUpdate)
+            .on(MessageType.ACK, NetworkClient::onAck)
+            .on(MessageType.GROUP_INFO, NetworkClient::onGroupInfo)
+            .on(MessageType.BATCH, NetworkClient::onBatch)
+            .on(MessageType.FILE_START, NetworkClient::onFileStart)
+            .on(MessageType.FILE_CHUNK, NetworkClient::onFileChunk)
+            .on(MessageType.FILE_ACK, NetworkClient::onFileAck)
+            .on(MessageType.WELCOME, NetworkClient::onWelcome)
+            .on(MessageType.RECEIPT, NetworkClient::onReceipt)
+            .on(MessageType.HISTORY_PAGE, NetworkClient::onHistoryPage)
+            .on(MessageType.SYNC_DATA, NetworkClient::onSyncData)
+            .on(MessageType.SEARCH_RESULTS, NetworkClient::onSearchResults);
+    // Receipts are held this long, so that a burst of messages is
+    // acknowledged with one watermark.
+    private static final long RECEIPT_DELAY_MS = 200;
+    // After losing the server, the client connects again after waiting this
+    // long, doubling up to the maximum while the server cannot be reached.
+    private static final long RECONNECT_MIN_MS = 1000;
+    private static final long RECONNECT_MAX_MS = 30000;
+    // Messages asked for with each HISTORY request.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final long NO_EARLIER = -1;
+
     public Socket socket;
-    public PrintWriter out;
-    public BufferedReader in;
+    public OutputStream out;
+    public DataInputStream in;
     public String username;
     public final ChatClientFrame client;
+    // Binary framing (BinaryCodec) instead of TYPE|... text lines; chosen with
+    // -Dchat.protocol=binary.
+    public final WireFormat format = "binary".equalsIgnoreCase(System.getProperty("chat.protocol", "text"))
+            ? WireFormat.BINARY : WireFormat.TEXT;
+    // Every outgoing frame is encoded into this buffer; it only grows.
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+    // What the server agreed on in its WELCOME; version 1 until it arrives.
+    private volatile Handshake handshake = Handshake.legacy();
+    // Set once the server agreed on compression; off with -Dchat.compression=false.
+    private FrameCompressor compressor;
+    // Messages we sent that the server has not acknowledged yet, by id. They
+    // are sent again after every WELCOME; the server answers a copy of a
+    // message it already has with that message's ACK.
+    private final Map<String, MessageData.Message> unacked = new ConcurrentHashMap<>();
+    // Set once the PENDING messages of earlier sessions are in unacked.
+    private boolean resumed;
+    private volatile boolean closed;
+    // Receipts waiting to be sent: the highest sequence number by conversation
+    // and status. Guarded by itself.
+    private final Map<String, Long> pendingReceipts = new LinkedHashMap<>();
+    private final ScheduledExecutorService receiptTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "receipts");
+        t.setDaemon(true);
+        return t;
+    });
+    // While a BATCH is applied, UI updates are collected here and run in one
+    // go afterwards, with the contact list refreshed only once.
+    private List<Runnable> batchUpdates;
+    private boolean batchRefresh;
+    // Chunked transfers (see FileTransfer) in progress, by transfer id.
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    // Received files are kept here; messages refer to them by file: URI.
+    private final File downloadDir;
+    // By chat, the before of the next HISTORY request, or NO_EARLIER once the
+    // server has sent the oldest page.
+    private final Map<String, Long> historyBefore = new ConcurrentHashMap<>();
+
+    private static class Upload {
+        final FileTransfer transfer;
+        // Bytes the server has confirmed; -1 until it answered FILE_START.
+        long acked = -1;
+        boolean failed = false;
+        // Set when the connection was replaced: start over with FILE_START.
+        boolean restart = false;
+
+        Upload(FileTransfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+
+    private static class Download {
+        final FileTransfer transfer;
+        final File part;
+        final FileChannel channel;
+        long length;
+        // Of the offer; see Frame.getSeq.
+        long seq;
+
+        Download(FileTransfer transfer, File part) throws IOException {
+            this.transfer = transfer;
+            this.part = part;
+            this.channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.length = Math.min(channel.size(), transfer.getSize());
+        }
+    }
 
     public NetworkClient(String username, ChatClientFrame client) {
         this.username = username;
         this.client = client;
+        this.downloadDir = new File(System.getProperty("chat.downloads", "downloads"), username);
         try {
-            socket = new Socket(client.getSERVER_ADDRESS(), client.getSERVER_PORT());
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println(username);
+            connect();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(client, "Unable to connect to server: " + e.getMessage());
         }
     }
 
-    public void sendMessage(String recipient, String message) {
-        if (out != null) {
-            out.println(message);
+    // Opens a connection (replacing the previous one) and says HELLO.
+    private synchronized void connect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        out = null;
+        in = null;
+        handshake = Handshake.legacy();
+        compressor = null;
+        socket = new Socket(client.getSERVER_ADDRESS(), client.getSERVER_PORT());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(socket.getInputStream());
+        if (format == WireFormat.BINARY) {
+            out.write(BinaryCodec.PREAMBLE);
+        }
+        List<String> features = new ArrayList<>(Arrays.asList(Handshake.BINARY, Handshake.BATCHING,
+                Handshake.CHUNKED_FILES, Handshake.SEQUENCES, Handshake.HISTORY, Handshake.SYNC,
+                Handshake.SEARCH));
+        if (!"false".equalsIgnoreCase(System.getProperty("chat.compression"))) {
+            features.add(Handshake.COMPRESSION);
+        }
+        sendFrame(new Handshake(Handshake.VERSION, features).toHello(username));
+    }
+
+    public synchronized void sendFrame(Frame frame) {
+        if (out == null)
+            return;
+        if (compressor != null) {
+            frame = compressor.compress(frame);
+        }
+        int size = format.encodedSize(frame);
+        if (writeBuffer.capacity() < size) {
+            writeBuffer = ByteBuffer.allocate(Math.max(size, writeBuffer.capacity() * 2));
+        }
+        writeBuffer.clear();
+        format.encode(frame, writeBuffer);
+        try {
+            out.write(writeBuffer.array(), 0, writeBuffer.position());
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    // Reads from the server until the client is closed, connecting again
+    // whenever the connection is lost.
     @Override
     public void run() {
-        String line;
-        try {
-            while ((line = in.readLine()) != null) {
-                String[] parts = line.split("\\|", 7);
-                if (parts.length < 1) continue;
-                String type = parts[0];
-                ChatMainPanel chatMainPanel = client.getChatMainPanel();
-                UserData.User currentUser = client.getCurrentUser();
-
-                if (type.equals("MSG")) {
-                    if (parts.length < 5) continue;
-                    String msgId = parts[1];
-                    String sender = parts[2];
-                    String recipient = parts[3];
-                    String content = parts[4];
-                    MessageData.Message m = new MessageData.Message(msgId, sender, recipient, content, "MSG", null);
-                    m.setStatus("DELIVERED");
-                    if (currentUser != null && !sender.equals(currentUser.getUsername())) {
-                        if (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(sender)) {
-                            int cnt = currentUser.getUnreadCounts().getOrDefault(sender, 0) + 1;
-                            currentUser.getUnreadCounts().put(sender, cnt);
-                            String snippet = content.length() > 20 ? content.substring(0, 20) + "..." : content;
-                            currentUser.getUnreadSnippets().put(sender, snippet);
-                            SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
-                        }
+        long delay = RECONNECT_MIN_MS;
+        while (!closed) {
+            DataInputStream input = in;
+            if (input != null) {
+                try {
+                    read(input);
+                } catch (EOFException e) {
+                    // Server closed the connection.
+                } catch (IOException e) {
+                    if (!closed) {
+                        e.printStackTrace();
                     }
-                    currentUser.getChatHistory().computeIfAbsent(sender, k -> new java.util.ArrayList<>()).add(m);
-                    SwingUtilities.invokeLater(() -> chatMainPanel.updateConversation(sender, sender + ": " + content + " ✔"));
-                    if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(sender)) {
-                        sendMessage(sender, "ACK|" + msgId + "|READ");
-                        m.setStatus("READ");
-                    }
-                } else if (type.equals("FILE")) {
-                    if (parts.length < 6) continue;
-                    String msgId = parts[1];
-                    String sender = parts[2];
-                    String recipient = parts[3];
-                    String filename = parts[4];
-                    String base64data = parts[5];
-                    MessageData.Message m = new MessageData.Message(msgId, sender, recipient, filename, "FILE", base64data);
-                    m.setStatus("DELIVERED");
-                    if (currentUser != null && !sender.equals(currentUser.getUsername())) {
-                        if (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(sender)) {
-                            int cnt = currentUser.getUnreadCounts().getOrDefault(sender, 0) + 1;
-                            currentUser.getUnreadCounts().put(sender, cnt);
-                            currentUser.getUnreadSnippets().put(sender, "[File] " + filename);
-                            SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
-                        }
-                    }
-                    currentUser.getChatHistory().computeIfAbsent(sender, k -> new java.util.ArrayList<>()).add(m);
-                    SwingUtilities.invokeLater(() -> chatMainPanel.updateConversation(sender, sender + " sent a file: " + filename + " ✔"));
-                    if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(sender)) {
-                        sendMessage(sender, "ACK|" + msgId + "|READ");
-                        m.setStatus("READ");
+                }
+            }
+            if (closed)
+                return;
+            try {
+                Thread.sleep(delay);
+                connect();
+                delay = RECONNECT_MIN_MS;
+            } catch (IOException e) {
+                System.out.println("Cannot reach the server: " + e.getMessage());
+                delay = Math.min(delay * 2, RECONNECT_MAX_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (format == WireFormat.BINARY) {
+            while (true) {
+                Frame frame = BinaryCodec.read(in, BinaryCodec.MAX_FRAME_LENGTH);
+                if (frame != null) {
+                    DISPATCHER.dispatch(this, frame);
+                }
+            }
+        } else {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Frame frame = TextCodec.parse(line);
+                if (frame != null) {
+                    DISPATCHER.dispatch(this, frame);
+                }
+            }
+        }
+    }
+
+    // The server's answer to HELLO: the version and features both sides
+    // support.
+    private synchronized void onWelcome(Frame frame) {
+        Handshake agreed = Handshake.fromFrame(frame);
+        if (agreed == null)
+            return;
+        handshake = agreed;
+        if (agreed.has(Handshake.COMPRESSION)) {
+            compressor = new FrameCompressor();
+        }
+        System.out.println("Connected with protocol " + agreed);
+        retransmit();
+        if (agreed.has(Handshake.SYNC)) {
+            sendFrame(Frame.sync(cursors()));
+        }
+    }
+
+    // The highest sequence number of every chat here, by conversation; what
+    // came after is what SYNC asks for.
+    private Map<String, Long> cursors() {
+        Map<String, Long> cursors = new LinkedHashMap<>();
+        for (Map.Entry<String, List<MessageData.Message>> chat : snapshot(null).entrySet()) {
+            for (MessageData.Message m : chat.getValue()) {
+                if (m.getSeq() > 0) {
+                    cursors.merge(conversationOf(chat.getKey()), m.getSeq(), Math::max);
+                }
+            }
+        }
+        return cursors;
+    }
+
+    // Sends again whatever the server has not acknowledged: messages of this
+    // session, and at the first WELCOME those the chat history still has as
+    // PENDING from an earlier one.
+    private void retransmit() {
+        if (!resumed && client.getCurrentUser() != null) {
+            resumed = true;
+            for (List<MessageData.Message> chat : snapshot(null).values()) {
+                for (MessageData.Message m : chat) {
+                    if (username.equals(m.getSender()) && "PENDING".equals(m.getStatus())) {
+                        unacked.putIfAbsent(m.getMessageId(), m);
                     }
-                } else if (type.equals("GROUP_MSG")) {
-                    if (parts.length < 5) continue;
-                    String msgId = parts[1];
-                    String sender = parts[2];
-                    String groupName = parts[3];
-                    String content = parts[4];
-                    MessageData.Message m = new MessageData.Message(msgId, sender, groupName, content, "GROUP_MSG", null);
-                    m.setStatus("DELIVERED");
-                    String localGroupKey = "Group:" + groupName;
-                    if (currentUser != null && (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(localGroupKey))) {
-                        int cnt = currentUser.getUnreadCounts().getOrDefault(localGroupKey, 0) + 1;
-                        currentUser.getUnreadCounts().put(localGroupKey, cnt);
-                        currentUser.getUnreadSnippets().put(localGroupKey, content.length() > 20 ? content.substring(0, 20) + "..." : content);
-                        SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
+                }
+            }
+        }
+        for (MessageData.Message m : unacked.values()) {
+            MessageType type;
+            try {
+                type = MessageType.valueOf(m.getType());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (type == MessageType.MSG || type == MessageType.GROUP_MSG) {
+                sendFrame(Frame.message(type, m.getMessageId(), username, m.getRecipient(), m.getContent()));
+            } else if (type == MessageType.FILE || type == MessageType.GROUP_FILE) {
+                Upload upload = uploads.get(m.getMessageId());
+                if (upload != null) {
+                    synchronized (upload) {
+                        upload.restart = true;
+                        upload.notifyAll();
                     }
-                    currentUser.getChatHistory().computeIfAbsent(localGroupKey, k -> new java.util.ArrayList<>()).add(m);
-                    SwingUtilities.invokeLater(() -> chatMainPanel.updateConversation(localGroupKey, sender + " (in " + groupName + "): " + content + " ✔"));
-                    if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(localGroupKey)) {
-                        sendMessage("", "ACK|" + msgId + "|READ");
-                        m.setStatus("READ");
+                } else {
+                    File file = sourceOf(m);
+                    if (file != null) {
+                        startUpload(file, m.getRecipient(), type, m.getMessageId());
                     }
-                } else if (type.equals("GROUP_FILE")) {
-                    if (parts.length < 6) continue;
-                    String msgId = parts[1];
-                    String sender = parts[2];
-                    String groupName = parts[3];
-                    String filename = parts[4];
-                    String base64data = parts[5];
-                    MessageData.Message m = new MessageData.Message(msgId, sender, groupName, filename, "GROUP_FILE", base64data);
-                    m.setStatus("DELIVERED");
-                    String localGroupKey = "Group:" + groupName;
-                    if (currentUser != null && (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(localGroupKey))) {
-                        int cnt = currentUser.getUnreadCounts().getOrDefault(localGroupKey, 0) + 1;
-                        currentUser.getUnreadCounts().put(localGroupKey, cnt);
-                        currentUser.getUnreadSnippets().put(localGroupKey, filename);
-                        SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
+                }
+            }
+        }
+    }
+
+    // The file a sent file message refers to, if it is still there.
+    private static File sourceOf(MessageData.Message m) {
+        try {
+            File file = new File(URI.create(m.getFileData()));
+            return file.isFile() ? file : null;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    // Runs update on the event thread: now, or after the batch being applied.
+    private void updateLater(Runnable update) {
+        if (batchUpdates != null) {
+            batchUpdates.add(update);
+        } else {
+            SwingUtilities.invokeLater(update);
+        }
+    }
+
+    private void refreshContactsLater() {
+        if (batchUpdates != null) {
+            batchRefresh = true;
+        } else {
+            SwingUtilities.invokeLater(client.getChatMainPanel()::refreshContacts);
+        }
+    }
+
+    // Offline traffic arrives in batches; applying them frame by frame would
+    // refresh the contact list once per stored message. Compressed frames
+    // arrive as batches of one.
+    private void onBatch(Frame frame) {
+        try {
+            apply(FrameBatch.unpack(frame));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // What the client missed since its last SYNC, in one go like a batch.
+    // Messages that arrived live between WELCOME and the answer are in it
+    // too, and are skipped.
+    private void onSyncData(Frame frame) {
+        List<Frame> frames;
+        try {
+            frames = FrameBatch.decodeAll(frame.getData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Set<String> chats = new HashSet<>();
+        for (Frame f : frames) {
+            if (f.getSeq() > 0 && f.getMsgId() != null) {
+                chats.add(chatOf(Conversation.of(f, username)));
+            }
+        }
+        Map<String, Set<String>> known = new HashMap<>();
+        for (Map.Entry<String, List<MessageData.Message>> chat : snapshot(chats).entrySet()) {
+            Set<String> ids = new HashSet<>();
+            for (MessageData.Message m : chat.getValue()) {
+                ids.add(m.getMessageId());
+            }
+            known.put(chat.getKey(), ids);
+        }
+        List<Frame> missed = new ArrayList<>();
+        for (Frame f : frames) {
+            if (f.getSeq() > 0 && f.getMsgId() != null) {
+                Set<String> ids = known.get(chatOf(Conversation.of(f, username)));
+                if (ids != null && !ids.add(f.getMsgId()))
+                    continue;
+            }
+            missed.add(f);
+        }
+        apply(missed);
+    }
+
+    // Copies of the chats' histories (empty for chats with none; every chat
+    // if chats is null), taken on the event thread, which changes them too.
+    private Map<String, List<MessageData.Message>> snapshot(Collection<String> chats) {
+        Map<String, List<MessageData.Message>> copies = new HashMap<>();
+        UserData.User currentUser = client.getCurrentUser();
+        if (currentUser == null || chats != null && chats.isEmpty())
+            return copies;
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                for (String chat : chats != null ? chats : currentUser.getChatHistory().keySet()) {
+                    copies.put(chat, new ArrayList<>(currentUser.getChatHistory().getOrDefault(chat,
+                            Collections.<MessageData.Message>emptyList())));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        }
+        return copies;
+    }
+
+    private void apply(List<Frame> frames) {
+        List<Runnable> updates = new ArrayList<>();
+        batchUpdates = updates;
+        batchRefresh = false;
+        try {
+            for (Frame f : frames) {
+                DISPATCHER.dispatch(this, f);
+            }
+        } finally {
+            batchUpdates = null;
+        }
+        boolean refresh = batchRefresh;
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        SwingUtilities.invokeLater(() -> {
+            for (Runnable update : updates) {
+                update.run();
+            }
+            if (refresh) {
+                chatMainPanel.refreshContacts();
+            }
+        });
+    }
+
+    private void onMessage(Frame frame) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        UserData.User currentUser = client.getCurrentUser();
+        String msgId = frame.getMsgId();
+        String sender = frame.getSender();
+        String recipient = frame.getTarget();
+        String content = frame.getText();
+        MessageData.Message m = new MessageData.Message(msgId, sender, recipient, content, "MSG", null);
+        m.setStatus("DELIVERED");
+        m.setSeq(frame.getSeq());
+        if (currentUser != null && !sender.equals(currentUser.getUsername())) {
+            if (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(sender)) {
+                int cnt = currentUser.getUnreadCounts().getOrDefault(sender, 0) + 1;
+                currentUser.getUnreadCounts().put(sender, cnt);
+                String snippet = content.length() > 20 ? content.substring(0, 20) + "..." : content;
+                currentUser.getUnreadSnippets().put(sender, snippet);
+                refreshContactsLater();
+            }
+        }
+        currentUser.getChatHistory().computeIfAbsent(sender, k -> new java.util.ArrayList<>()).add(m);
+        updateLater(() -> chatMainPanel.updateConversation(sender, sender + ": " + content + " ✔"));
+        received(sender, m);
+        if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(sender)) {
+            markRead(sender, Collections.singletonList(m));
+        }
+    }
+
+    private void onFile(Frame frame) {
+        fileReceived(frame.getMsgId(), frame.getSender(), frame.getTarget(), frame.getName(), frame.getBase64(),
+                frame.getSeq());
+    }
+
+    // fileData is the content in base64 or, for chunked transfers, a file: URI.
+    private void fileReceived(String msgId, String sender, String recipient, String filename, String fileData,
+            long seq) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        UserData.User currentUser = client.getCurrentUser();
+        MessageData.Message m = new MessageData.Message(msgId, sender, recipient, filename, "FILE", fileData);
+        m.setStatus("DELIVERED");
+        m.setSeq(seq);
+        if (currentUser != null && !sender.equals(currentUser.getUsername())) {
+            if (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(sender)) {
+                int cnt = currentUser.getUnreadCounts().getOrDefault(sender, 0) + 1;
+                currentUser.getUnreadCounts().put(sender, cnt);
+                currentUser.getUnreadSnippets().put(sender, "[File] " + filename);
+                refreshContactsLater();
+            }
+        }
+        currentUser.getChatHistory().computeIfAbsent(sender, k -> new java.util.ArrayList<>()).add(m);
+        updateLater(() -> chatMainPanel.updateConversation(sender, sender + " sent a file: " + filename + " ✔"));
+        received(sender, m);
+        if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(sender)) {
+            markRead(sender, Collections.singletonList(m));
+        }
+    }
+
+    private void onGroupMessage(Frame frame) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        UserData.User currentUser = client.getCurrentUser();
+        String msgId = frame.getMsgId();
+        String sender = frame.getSender();
+        String groupName = frame.getTarget();
+        String content = frame.getText();
+        MessageData.Message m = new MessageData.Message(msgId, sender, groupName, content, "GROUP_MSG", null);
+        m.setStatus("DELIVERED");
+        m.setSeq(frame.getSeq());
+        String localGroupKey = "Group:" + groupName;
+        if (currentUser != null && (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(localGroupKey))) {
+            int cnt = currentUser.getUnreadCounts().getOrDefault(localGroupKey, 0) + 1;
+            currentUser.getUnreadCounts().put(localGroupKey, cnt);
+            currentUser.getUnreadSnippets().put(localGroupKey, content.length() > 20 ? content.substring(0, 20) + "..." : content);
+            refreshContactsLater();
+        }
+        currentUser.getChatHistory().computeIfAbsent(localGroupKey, k -> new java.util.ArrayList<>()).add(m);
+        updateLater(() -> chatMainPanel.updateConversation(localGroupKey, sender + " (in " + groupName + "): " + content + " ✔"));
+        if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(localGroupKey)) {
+            markRead(localGroupKey, Collections.singletonList(m));
+        }
+    }
+
+    private void onGroupFile(Frame frame) {
+        groupFileReceived(frame.getMsgId(), frame.getSender(), frame.getTarget(), frame.getName(),
+                frame.getBase64(), frame.getSeq());
+    }
+
+    private void groupFileReceived(String msgId, String sender, String groupName, String filename,
+            String fileData, long seq) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        UserData.User currentUser = client.getCurrentUser();
+        MessageData.Message m = new MessageData.Message(msgId, sender, groupName, filename, "GROUP_FILE", fileData);
+        m.setStatus("DELIVERED");
+        m.setSeq(seq);
+        String localGroupKey = "Group:" + groupName;
+        if (currentUser != null && (chatMainPanel.currentChatContact == null || !chatMainPanel.currentChatContact.equals(localGroupKey))) {
+            int cnt = currentUser.getUnreadCounts().getOrDefault(localGroupKey, 0) + 1;
+            currentUser.getUnreadCounts().put(localGroupKey, cnt);
+            currentUser.getUnreadSnippets().put(localGroupKey, filename);
+            refreshContactsLater();
+        }
+        currentUser.getChatHistory().computeIfAbsent(localGroupKey, k -> new java.util.ArrayList<>()).add(m);
+        updateLater(() -> chatMainPanel.updateConversation(localGroupKey, sender + " (in " + groupName + ") sent a file: " + filename + " ✔"));
+        if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(localGroupKey)) {
+            markRead(localGroupKey, Collections.singletonList(m));
+        }
+    }
+
+    private void onGroupCreated(Frame frame) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        if (frame.getText() != null) {
+            String groupName = frame.getTarget();
+            String membersStr = frame.getText();
+            java.util.Set<String> memSet = new HashSet<>(Arrays.asList(membersStr.split(",")));
+            client.getGroups().put(groupName, memSet);
+            refreshContactsLater();
+        }
+    }
+
+    private void onGroupUpdate(Frame frame) {
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        if (frame.getText() != null) {
+            String groupName = frame.getTarget();
+            String updateType = frame.getName();
+            String data = frame.getText();
+            java.util.Map<String, java.util.Set<String>> groups = client.getGroups();
+            if (updateType.equals("NAME_CHANGED")) {
+                java.util.Set<String> mem = groups.get(groupName);
+                groups.remove(groupName);
+                groups.put(data, mem);
+                updateLater(() -> {
+                    JOptionPane.showMessageDialog(client, "Group " + groupName + " renamed to " + data);
+                    chatMainPanel.refreshContacts();
+                });
+            } else if (updateType.equals("MEMBER_LEFT")) {
+                java.util.Set<String> mem = groups.get(groupName);
+                if (mem != null) {
+                    mem.remove(data);
+                }
+                refreshContactsLater();
+            } else if (updateType.equals("USER_ADDED")) {
+                java.util.Set<String> mem = groups.get(groupName);
+                if (mem != null) {
+                    mem.add(data);
+                }
+                refreshContactsLater();
+            }
+            client.setGroups(groups);
+        }
+    }
+
+    // ACK|msgId|DELIVERED, QUEUED or FAILED; with sequence numbers agreed
+    // on, the ACK carries the number the server gave the message.
+    private void onAck(Frame frame) {
+        String msgId = frame.getMsgId();
+        String status = frame.getName();
+        MessageData.Message sent = status == null ? null : unacked.remove(msgId);
+        if (sent != null) {
+            sent.setSeq(frame.getSeq());
+            sent.setStatus(status);
+            // Kept, so that the next login does not send it again.
+            SwingUtilities.invokeLater(() -> client.getDatabase().saveMessage(sent));
+        }
+        Upload upload = uploads.get(msgId);
+        if (upload != null && "FAILED".equals(status)) {
+            synchronized (upload) {
+                upload.failed = true;
+                upload.notifyAll();
+            }
+        }
+        SwingUtilities.invokeLater(() -> System.out.println("Message " + msgId + " status updated: " + status));
+    }
+
+    // RECEIPT|reader|conversation|DELIVERED or READ|seq: the reader has got
+    // or seen our messages in the conversation up to seq.
+    private void onReceipt(Frame frame) {
+        UserData.User currentUser = client.getCurrentUser();
+        long seq;
+        try {
+            seq = Long.parseLong(frame.getText());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (currentUser == null || frame.getTarget() == null)
+            return;
+        boolean read = "READ".equals(frame.getName());
+        List<MessageData.Message> history = currentUser.getChatHistory().get(chatOf(frame.getTarget()));
+        if (history == null)
+            return;
+        // Newest first; below the first message the watermark changes
+        // nothing for, an earlier receipt has covered everything.
+        for (int i = history.size() - 1; i >= 0; i--) {
+            MessageData.Message m = history.get(i);
+            if (!username.equals(m.getSender()) || m.getSeq() == 0 || m.getSeq() > seq)
+                continue;
+            if ("READ".equals(m.getStatus()) || !read && "DELIVERED".equals(m.getStatus()))
+                break;
+            m.setStatus(read ? "READ" : "DELIVERED");
+        }
+    }
+
+    // Asks the server for the messages of a chat (named as in the chat
+    // history) before the earliest one here; false if the server has no
+    // earlier ones, or keeps no history.
+    public boolean requestHistory(String chat) {
+        if (!handshake.has(Handshake.HISTORY))
+            return false;
+        long before = historyBefore.computeIfAbsent(chat, this::earliestSeq);
+        if (before == NO_EARLIER)
+            return false;
+        sendFrame(Frame.historyRequest(conversationOf(chat), before, HISTORY_PAGE_SIZE));
+        return true;
+    }
+
+    // The lowest sequence number of the chat's messages here; 0 (the latest
+    // page) if none has one.
+    private long earliestSeq(String chat) {
+        UserData.User currentUser = client.getCurrentUser();
+        List<MessageData.Message> history = currentUser == null ? null : currentUser.getChatHistory().get(chat);
+        long earliest = 0;
+        if (history != null) {
+            for (MessageData.Message m : history) {
+                if (m.getSeq() > 0 && (earliest == 0 || m.getSeq() < earliest)) {
+                    earliest = m.getSeq();
+                }
+            }
+        }
+        return earliest;
+    }
+
+    // Earlier messages of a chat, oldest first, as asked for with
+    // requestHistory. They are old news: they count as read, and are neither
+    // acknowledged nor counted as unread.
+    private void onHistoryPage(Frame frame) {
+        UserData.User currentUser = client.getCurrentUser();
+        if (currentUser == null || frame.getTarget() == null)
+            return;
+        String chat = chatOf(frame.getTarget());
+        long next;
+        List<Frame> frames;
+        try {
+            next = Long.parseLong(frame.getName());
+            frames = FrameBatch.decodeAll(frame.getData());
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return;
+        }
+        historyBefore.put(chat, next == 0 ? NO_EARLIER : next);
+        Set<String> known = new HashSet<>();
+        long earliest = System.currentTimeMillis();
+        for (MessageData.Message m : snapshot(Collections.singleton(chat)).getOrDefault(chat,
+                Collections.<MessageData.Message>emptyList())) {
+            known.add(m.getMessageId());
+            earliest = Math.min(earliest, m.getTimestamp());
+        }
+        // Newest first, so that a message whose id does not tell when it was
+        // sent is placed just before the one after it.
+        List<MessageData.Message> added = new ArrayList<>();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            Frame f = frames.get(i);
+            if (f.getMsgId() == null || known.contains(f.getMsgId()))
+                continue;
+            MessageData.Message m = fromHistory(f);
+            if (m == null)
+                continue;
+            long id = MessageId.parse(m.getMessageId());
+            m.setTimestamp(id < 0 ? earliest : MessageId.timeOf(id));
+            earliest = Math.min(earliest, m.getTimestamp());
+            added.add(m);
+        }
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        SwingUtilities.invokeLater(() -> {
+            List<MessageData.Message> history = currentUser.getChatHistory().computeIfAbsent(chat,
+                    k -> new ArrayList<>());
+            for (MessageData.Message m : added) {
+                history.add(m);
+                client.getDatabase().saveMessage(m);
+            }
+            chatMainPanel.reloadChat(chat);
+        });
+    }
+
+    // Asks the server for the messages of all chats with every word of
+    // query, from the offset-th match on; false if the server cannot search.
+    public boolean search(String query, int offset) {
+        if (!handshake.has(Handshake.SEARCH))
+            return false;
+        sendFrame(Frame.search("", offset, query));
+        return true;
+    }
+
+    // A page of matches for search, best first, for the search dialog: the
+    // chat of each and a line to show for it.
+    private void onSearchResults(Frame frame) {
+        int next;
+        List<Frame> frames;
+        try {
+            next = Integer.parseInt(frame.getName());
+            frames = FrameBatch.decodeAll(frame.getData());
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy hh:mm a");
+        List<String> chats = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        for (Frame f : frames) {
+            String content = f.getText();
+            if (f.getType() == MessageType.FILE_START) {
+                FileTransfer transfer = FileTransfer.fromStartFrame(f);
+                if (transfer == null)
+                    continue;
+                content = "sent a file: " + transfer.getFileName();
+            }
+            String chat = chatOf(Conversation.of(f, username));
+            long id = MessageId.parse(f.getMsgId());
+            String when = id < 0 ? "" : sdf.format(new Date(MessageId.timeOf(id))) + "  ";
+            chats.add(chat);
+            lines.add(when + chat + " - " + f.getSender() + ": " + content);
+        }
+        ChatMainPanel chatMainPanel = client.getChatMainPanel();
+        SwingUtilities.invokeLater(() -> chatMainPanel.addSearchResults(chats, lines, next));
+    }
+
+    // The message a frame of a history page stands for. A file offer only
+    // becomes one once the file is here: others' files are downloaded, and
+    // then arrive like any other.
+    private MessageData.Message fromHistory(Frame f) {
+        MessageData.Message m;
+        if (f.getType() == MessageType.MSG || f.getType() == MessageType.GROUP_MSG) {
+            m = new MessageData.Message(f.getMsgId(), f.getSender(), f.getTarget(), f.getText(),
+                    f.getType().name(), null);
+        } else if (f.getType() == MessageType.FILE_START) {
+            FileTransfer transfer = FileTransfer.fromStartFrame(f);
+            if (transfer == null)
+                return null;
+            File data = new File(downloadDir, transfer.getTransferId() + ".data");
+            if (!data.isFile()) {
+                if (!username.equals(transfer.getSender())) {
+                    onFileStart(f);
+                }
+                return null;
+            }
+            m = new MessageData.Message(transfer.getTransferId(), transfer.getSender(), transfer.getTarget(),
+                    transfer.getFileName(), transfer.getKind().name(), data.toURI().toString());
+        } else {
+            return null;
+        }
+        m.setSeq(f.getSeq());
+        m.setStatus(username.equals(m.getSender()) ? "DELIVERED" : "READ");
+        return m;
+    }
+
+    // Sends frame for message, which waits for the server's ACK.
+    public void sendMessage(MessageData.Message message, Frame frame) {
+        unacked.put(message.getMessageId(), message);
+        sendFrame(frame);
+    }
+
+    // m arrived in a direct conversation: tell the sender, with the next
+    // DELIVERED watermark. Group deliveries are not reported.
+    private void received(String chat, MessageData.Message m) {
+        if (m.getSeq() > 0 && handshake.has(Handshake.SEQUENCES)) {
+            acknowledge(conversationOf(chat), "DELIVERED", m.getSeq());
+        }
+    }
+
+    // The user has seen these messages of a chat (named as in the chat
+    // history): one READ watermark for them all if the server numbers
+    // messages, otherwise an ACK for each.
+    public void markRead(String chat, List<MessageData.Message> messages) {
+        boolean sequences = handshake.has(Handshake.SEQUENCES);
+        long seq = 0;
+        for (MessageData.Message m : messages) {
+            m.setStatus("READ");
+            if (sequences && m.getSeq() > 0) {
+                seq = Math.max(seq, m.getSeq());
+            } else {
+                sendFrame(Frame.ack(m.getMessageId(), "READ"));
+            }
+        }
+        if (seq > 0) {
+            acknowledge(conversationOf(chat), "READ", seq);
+        }
+    }
+
+    // Queues a watermark; every conversation and status gets one RECEIPT per
+    // RECEIPT_DELAY_MS at most, with the highest number queued.
+    private void acknowledge(String conversation, String status, long seq) {
+        synchronized (pendingReceipts) {
+            if (pendingReceipts.isEmpty()) {
+                receiptTimer.schedule(this::sendReceipts, RECEIPT_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            pendingReceipts.merge(conversation + "|" + status, seq, Math::max);
+        }
+    }
+
+    private void sendReceipts() {
+        Map<String, Long> due;
+        synchronized (pendingReceipts) {
+            due = new LinkedHashMap<>(pendingReceipts);
+            pendingReceipts.clear();
+        }
+        for (Map.Entry<String, Long> receipt : due.entrySet()) {
+            String key = receipt.getKey();
+            int bar = key.lastIndexOf('|');
+            sendFrame(Frame.receipt(username, key.substring(0, bar), key.substring(bar + 1), receipt.getValue()));
+        }
+    }
+
+    // Chats are keyed by the contact's name or "Group:" and the group name;
+    // the protocol names conversations as Conversation does.
+    private static String conversationOf(String chat) {
+        return chat.startsWith("Group:") ? Conversation.group(chat.substring("Group:".length())) : chat;
+    }
+
+    private static String chatOf(String conversation) {
+        return Conversation.isGroup(conversation) ? "Group:" + Conversation.groupName(conversation) : conversation;
+    }
+
+    private void onGroupInfo(Frame frame) {
+        if (frame.getText() != null) {
+            String groupName = frame.getTarget();
+            String memStr = frame.getText();
+            java.util.Set<String> memSet = new HashSet<>(Arrays.asList(memStr.split(",")));
+            client.getGroups().put(groupName, memSet);
+        }
+    }
+
+    // Sends the file in chunks on a thread of its own, so the whole file is
+    // never in memory. kind is FILE for a user target, GROUP_FILE for a group;
+    // the server answers with ACK|transferId|DELIVERED once it has it all.
+    // The message's id is the transfer id.
+    public void sendFile(File file, String target, MessageType kind, MessageData.Message message) {
+        String transferId = message.getMessageId();
+        unacked.put(transferId, message);
+        startUpload(file, target, kind, transferId);
+    }
+
+    private void startUpload(File file, String target, MessageType kind, String transferId) {
+        Thread uploader = new Thread(() -> upload(file, target, kind, transferId), "upload-" + transferId);
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    private void upload(File file, String target, MessageType kind, String transferId) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            FileTransfer transfer = new FileTransfer(transferId, username, target, file.getName(), kind, size,
+                    FileTransfer.sha256(file, size));
+            Upload upload = new Upload(transfer);
+            uploads.put(transferId, upload);
+            try {
+                sendFrame(transfer.toStartFrame());
+                long sent = -1;
+                ByteBuffer chunk = ByteBuffer.allocate(FileTransfer.CHUNK_BYTES);
+                while (true) {
+                    long acked;
+                    boolean restart = false;
+                    synchronized (upload) {
+                        long waitUntil = System.currentTimeMillis() + 30000;
+                        // Wait for the server to make room in the window.
+                        while (!upload.failed && !upload.restart && (upload.acked < 0 || (sent >= 0 && sent >= Math.min(size,
+                                upload.acked + (long) FileTransfer.WINDOW_CHUNKS * FileTransfer.CHUNK_BYTES)
+                                && upload.acked < size))) {
+                            long left = waitUntil - System.currentTimeMillis();
+                            if (left <= 0)
+                                throw new IOException("Server stopped acknowledging " + file.getName());
+                            upload.wait(left);
+                        }
+                        if (upload.failed)
+                            throw new IOException("Server refused " + file.getName());
+                        if (upload.restart) {
+                            upload.restart = false;
+                            upload.acked = -1;
+                            restart = true;
+                        }
+                        acked = upload.acked;
                     }
-                    currentUser.getChatHistory().computeIfAbsent(localGroupKey, k -> new java.util.ArrayList<>()).add(m);
-                    SwingUtilities.invokeLater(() -> chatMainPanel.updateConversation(localGroupKey, sender + " (in " + groupName + ") sent a file: " + filename + " ✔"));
-                    if (chatMainPanel.currentChatContact != null && chatMainPanel.currentChatContact.equals(localGroupKey)) {
-                        sendMessage("", "ACK|" + msgId + "|READ");
-                        m.setStatus("READ");
+                    if (restart) {
+                        // A new connection: the server says where to resume.
+                        sendFrame(transfer.toStartFrame());
+                        sent = -1;
+                        continue;
                     }
-                } else if (type.equals("GROUP_CREATED")) {
-                    if (parts.length >= 3) {
-                        String groupName = parts[1];
-                        String membersStr = parts[2];
-                        java.util.Set<String> memSet = new HashSet<>(Arrays.asList(membersStr.split(",")));
-                        client.getGroups().put(groupName, memSet);
-                        SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
+                    if (acked >= size)
+                        return;
+                    if (sent < acked) {
+                        // First answer: resume where the server's copy ends.
+                        sent = acked;
                     }
-                } else if (type.equals("GROUP_UPDATE")) {
-                    if (parts.length >= 4) {
-                        String groupName = parts[1];
-                        String updateType = parts[2];
-                        String data = parts[3];
-                        java.util.Map<String, java.util.Set<String>> groups = client.getGroups();
-                        if (updateType.equals("NAME_CHANGED")) {
-                            java.util.Set<String> mem = groups.get(groupName);
-                            groups.remove(groupName);
-                            groups.put(data, mem);
-                            SwingUtilities.invokeLater(() -> {
-                                JOptionPane.showMessageDialog(client, "Group " + groupName + " renamed to " + data);
-                                chatMainPanel.refreshContacts();
-                            });
-                        } else if (updateType.equals("MEMBER_LEFT")) {
-                            java.util.Set<String> mem = groups.get(groupName);
-                            if (mem != null) {
-                                mem.remove(data);
-                            }
-                            SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
-                        } else if (updateType.equals("USER_ADDED")) {
-                            java.util.Set<String> mem = groups.get(groupName);
-                            if (mem != null) {
-                                mem.add(data);
-                            }
-                            SwingUtilities.invokeLater(chatMainPanel::refreshContacts);
+                    long windowEnd = Math.min(size,
+                            acked + (long) FileTransfer.WINDOW_CHUNKS * FileTransfer.CHUNK_BYTES);
+                    while (sent < windowEnd) {
+                        chunk.clear();
+                        chunk.limit((int) Math.min(chunk.capacity(), size - sent));
+                        while (chunk.hasRemaining()) {
+                            if (channel.read(chunk, sent + chunk.position()) < 0)
+                                throw new IOException(file.getName() + " changed while being sent");
                         }
-                        client.setGroups(groups);
-                    }
-                } else if (type.equals("ACK")) {
-                    if (parts.length < 3) continue;
-                    String msgId = parts[1];
-                    String status = parts[2];
-                    SwingUtilities.invokeLater(() -> System.out.println("Message " + msgId + " status updated: " + status));
-                } else if (type.equals("GROUP_INFO")) {
-                    if (parts.length >= 3) {
-                        String groupName = parts[1];
-                        String memStr = parts[2];
-                        java.util.Set<String> memSet = new HashSet<>(Arrays.asList(memStr.split(",")));
-                        client.getGroups().put(groupName, memSet);
+                        byte[] data = Arrays.copyOf(chunk.array(), chunk.position());
+                        Frame frame = Frame.fileChunk(transferId, sent, data);
+                        if (!FrameCompressor.isCompressible(file.getName())) {
+                            frame.incompressible();
+                        }
+                        sendFrame(frame);
+                        sent += data.length;
                     }
                 }
+            } finally {
+                uploads.remove(transferId, upload);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onFileAck(Frame frame) {
+        Upload upload = uploads.get(frame.getMsgId());
+        if (upload == null)
+            return;
+        synchronized (upload) {
+            try {
+                upload.acked = Math.max(upload.acked, Long.parseLong(frame.getName()));
+            } catch (NumberFormatException e) {
+                upload.failed = true;
+            }
+            upload.notifyAll();
+        }
+    }
+
+    // A file is offered to us: ask for it from whatever we already have.
+    private void onFileStart(Frame frame) {
+        FileTransfer transfer = FileTransfer.fromStartFrame(frame);
+        if (transfer == null)
+            return;
+        String transferId = transfer.getTransferId();
+        if (new File(downloadDir, transferId + ".data").isFile()) {
+            // Offered again (e.g. replayed); we have it all.
+            sendFrame(Frame.fileAck(transferId, transfer.getSize()));
+            return;
+        }
+        try {
+            Download download = downloads.get(transferId);
+            if (download == null) {
+                downloadDir.mkdirs();
+                download = new Download(transfer, new File(downloadDir, transferId + ".part"));
+                downloads.put(transferId, download);
+            }
+            download.seq = frame.getSeq();
+            sendFrame(Frame.fileAck(transferId, download.length));
+            if (download.length == transfer.getSize()) {
+                finishDownload(download);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void onFileChunk(Frame frame) {
+        Download download = downloads.get(frame.getMsgId());
+        if (download == null)
+            return;
+        try {
+            byte[] data = frame.getData();
+            if (Long.parseLong(frame.getName()) == download.length
+                    && download.length + data.length <= download.transfer.getSize()) {
+                ByteBuffer src = ByteBuffer.wrap(data);
+                while (src.hasRemaining()) {
+                    download.length += download.channel.write(src, download.length);
+                }
+            }
+            sendFrame(Frame.fileAck(download.transfer.getTransferId(), download.length));
+            if (download.length == download.transfer.getSize()) {
+                finishDownload(download);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void finishDownload(Download download) throws IOException {
+        FileTransfer transfer = download.transfer;
+        downloads.remove(transfer.getTransferId());
+        download.channel.close();
+        if (!FileTransfer.sha256(download.part, transfer.getSize()).equals(transfer.getSha256())) {
+            System.out.println("Received " + transfer.getFileName() + " does not match its checksum; discarded.");
+            Files.deleteIfExists(download.part.toPath());
+            return;
+        }
+        File data = new File(downloadDir, transfer.getTransferId() + ".data");
+        Files.move(download.part.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        String uri = data.toURI().toString();
+        if (transfer.getKind() == MessageType.GROUP_FILE) {
+            groupFileReceived(transfer.getTransferId(), transfer.getSender(), transfer.getTarget(),
+                    transfer.getFileName(), uri, download.seq);
+        } else {
+            fileReceived(transfer.getTransferId(), transfer.getSender(), transfer.getTarget(),
+                    transfer.getFileName(), uri, download.seq);
+        }
+    }
+
     public void close() {
+        closed = true;
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -5,11 +5,20 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import protocol.MessageId;
 
 public class SQLDatabase {
 
     public static final String DB_URL = "jdbc:sqlite:chatapp.db";
+    // Messages are keyed by their id as a number (see MessageId), so new rows
+    // go at the end of the table's B-tree and reading it in key order reads it
+    // in time order. message_id keeps the text of ids that are not MessageIds
+    // (from older clients); it is null for the rest.
+    private static final String CREATE_MESSAGES = "CREATE TABLE IF NOT EXISTS messages (" +
+            "id INTEGER PRIMARY KEY, message_id TEXT, sender TEXT, recipient TEXT, content TEXT, type TEXT, file_data TEXT, status TEXT, timestamp INTEGER, seq INTEGER DEFAULT 0)";
     public Connection conn;
+    // Keys for messages whose ids are not MessageIds.
+    private final MessageId localIds = MessageId.randomNode();
 
     public SQLDatabase() {
         try {
@@ -23,8 +32,6 @@ public class SQLDatabase {
     public void initialize() {
         String createUsers = "CREATE TABLE IF NOT EXISTS users (" +
                 "username TEXT PRIMARY KEY, name TEXT, password TEXT, profile_photo TEXT)";
-        String createMessages = "CREATE TABLE IF NOT EXISTS messages (" +
-                "message_id TEXT PRIMARY KEY, sender TEXT, recipient TEXT, content TEXT, type TEXT, file_data TEXT, status TEXT, timestamp INTEGER)";
         String createFriends = "CREATE TABLE IF NOT EXISTS friends (" +
                 "user TEXT, friend TEXT, " +
                 "PRIMARY KEY (user, friend), " +
@@ -32,11 +39,87 @@ public class SQLDatabase {
                 "FOREIGN KEY (friend) REFERENCES users(username))";
         try (Statement stmt = conn.createStatement()) {
             stmt.execute(createUsers);
-            stmt.execute(createMessages);
+            stmt.execute(CREATE_MESSAGES);
             stmt.execute(createFriends);
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        addColumnIfMissing("messages", "seq", "INTEGER DEFAULT 0");
+        if (!hasColumn("messages", "id")) {
+            migrateMessageKeys();
+        }
+    }
+
+    // Databases created by older versions lack columns added since.
+    private void addColumnIfMissing(String table, String column, String definition) {
+        if (hasColumn(table, column))
+            return;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean hasColumn(String table, String column) {
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name")))
+                    return true;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Older versions keyed messages by the id text. Rebuilds the table with
+    // numeric keys, made from each message's timestamp so the rows stay in
+    // time order.
+    private void migrateMessageKeys() {
+        try (Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            stmt.execute("ALTER TABLE messages RENAME TO messages_old");
+            stmt.execute(CREATE_MESSAGES);
+            List<MessageData.Message> old = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM messages_old ORDER BY timestamp ASC")) {
+                while (rs.next()) {
+                    MessageData.Message m = new MessageData.Message(rs.getString("message_id"), rs.getString("sender"),
+                            rs.getString("recipient"), rs.getString("content"), rs.getString("type"),
+                            rs.getString("file_data"));
+                    m.setStatus(rs.getString("status"));
+                    m.setTimestamp(rs.getLong("timestamp"));
+                    m.setSeq(rs.getLong("seq"));
+                    old.add(m);
+                }
+            }
+            long last = Long.MIN_VALUE;
+            for (MessageData.Message m : old) {
+                long key = MessageId.parse(m.getMessageId());
+                if (key < 0) {
+                    key = Math.max(MessageId.make(m.getTimestamp(), 0, 0), last + 1);
+                }
+                last = Math.max(last, key);
+                m.setKey(key);
+                saveMessage(m);
+            }
+            stmt.execute("DROP TABLE messages_old");
+            conn.commit();
+            System.out.println("Rekeyed " + old.size() + " stored messages.");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+            }
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public boolean addFriend(String username, String friendUsername) {
@@ -136,17 +219,29 @@ public class SQLDatabase {
         saveUser(u);
     }
 
+    // Inserts the message, or updates it if it was saved before. Should two
+    // senders' ids ever be the same number, the second message is not stored
+    // rather than overwriting the first.
     public void saveMessage(MessageData.Message m) {
-        String insert = "INSERT OR REPLACE INTO messages(message_id, sender, recipient, content, type, file_data, status, timestamp) VALUES (?,?,?,?,?,?,?,?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
-            pstmt.setString(1, m.getMessageId());
-            pstmt.setString(2, m.getSender());
-            pstmt.setString(3, m.getRecipient());
-            pstmt.setString(4, m.getContent());
-            pstmt.setString(5, m.getType());
-            pstmt.setString(6, m.getFileData());
-            pstmt.setString(7, m.getStatus());
-            pstmt.setLong(8, m.getTimestamp());
+        if (m.getKey() == 0) {
+            long key = MessageId.parse(m.getMessageId());
+            m.setKey(key < 0 ? localIds.nextLong() : key);
+        }
+        String upsert = "INSERT INTO messages(id, message_id, sender, recipient, content, type, file_data, status, timestamp, seq) VALUES (?,?,?,?,?,?,?,?,?,?) "
+                + "ON CONFLICT(id) DO UPDATE SET message_id = excluded.message_id, recipient = excluded.recipient, "
+                + "content = excluded.content, type = excluded.type, file_data = excluded.file_data, status = excluded.status, "
+                + "timestamp = excluded.timestamp, seq = excluded.seq WHERE sender = excluded.sender";
+        try (PreparedStatement pstmt = conn.prepareStatement(upsert)) {
+            pstmt.setLong(1, m.getKey());
+            pstmt.setString(2, MessageId.format(m.getKey()).equals(m.getMessageId()) ? null : m.getMessageId());
+            pstmt.setString(3, m.getSender());
+            pstmt.setString(4, m.getRecipient());
+            pstmt.setString(5, m.getContent());
+            pstmt.setString(6, m.getType());
+            pstmt.setString(7, m.getFileData());
+            pstmt.setString(8, m.getStatus());
+            pstmt.setLong(9, m.getTimestamp());
+            pstmt.setLong(10, m.getSeq());
             pstmt.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -171,13 +266,17 @@ public class SQLDatabase {
 
     public Map<String, List<MessageData.Message>> loadMessagesForUser(String username) {
         Map<String, List<MessageData.Message>> history = new HashMap<>();
-        String query = "SELECT * FROM messages WHERE sender = ? OR recipient = ? OR type LIKE 'GROUP_%' ORDER BY timestamp ASC";
+        String query = "SELECT * FROM messages WHERE sender = ? OR recipient = ? OR type LIKE 'GROUP_%' ORDER BY id ASC";
         try (PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setString(1, username);
             pstmt.setString(2, username);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
+                    long key = rs.getLong("id");
                     String msgId = rs.getString("message_id");
+                    if (msgId == null) {
+                        msgId = MessageId.format(key);
+                    }
                     String sender = rs.getString("sender");
                     String recipient = rs.getString("recipient");
                     String content = rs.getString("content");
@@ -188,13 +287,15 @@ public class SQLDatabase {
                     MessageData.Message m = new MessageData.Message(msgId, sender, recipient, content, type, fileData);
                     m.setStatus(status);
                     m.setTimestamp(timestamp);
-                    String key;
+                    m.setSeq(rs.getLong("seq"));
+                    m.setKey(key);
+                    String chat;
                     if (type.startsWith("GROUP_")) {
-                        key = "Group:" + recipient;
+                        chat = "Group:" + recipient;
                     } else {
-                        key = sender.equals(username) ? recipient : sender;
+                        chat = sender.equals(username) ? recipient : sender;
                     }
-                    history.computeIfAbsent(key, k -> new ArrayList<>()).add(m);
+                    history.computeIfAbsent(chat, k -> new ArrayList<>()).add(m);
                 }
             }
         } catch (SQLException e) {
@@ -0,0 +1,190 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Message ids each sender used recently, so that a message sent again (the
+// client lost the connection before the ACK and retransmits it) is answered
+// with the ACK of the first copy instead of being relayed twice. Ids are kept
+// for windowSeconds in BUCKETS buckets of equal length: every bucket's worth of
+// time a new one starts and the oldest is dropped, so forgetting costs nothing
+// per id. A sender keeps at most maxPerSender ids; beyond that the oldest go
+// first, which shortens the window for that sender only. Senders with nothing
+// in the window are dropped, so memory is bounded by the senders active in the
+// window times maxPerSender, whatever the message rate.
+public class DuplicateFilter {
+    private static final int BUCKETS = 4;
+
+    private final long bucketMillis;
+    private final int maxPerSender;
+    private final Map<String, Recent> senders = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    // What the server answered a message with; status is null while the
+    // first copy is still being relayed.
+    public static final class Outcome {
+        private final String status;
+        private final long seq;
+
+        Outcome(String status, long seq) {
+            this.status = status;
+            this.seq = seq;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+    }
+
+    private static final Outcome IN_PROGRESS = new Outcome(null, 0);
+
+    // One sender's ids, newest bucket first. Guarded by itself.
+    private static class Recent {
+        final ArrayDeque<LinkedHashMap<String, Outcome>> buckets = new ArrayDeque<>();
+        long bucketStart;
+        int size;
+    }
+
+    public DuplicateFilter(long windowSeconds, int maxPerSender) {
+        this.bucketMillis = Math.max(1, windowSeconds * 1000 / BUCKETS);
+        this.maxPerSender = Math.max(1, maxPerSender);
+    }
+
+    public static DuplicateFilter fromConfig(ServerConfig config) {
+        return new DuplicateFilter(config.getLong("dedup.windowSeconds", 3600),
+                config.getInt("dedup.maxPerSender", 4096));
+    }
+
+    // null if sender has not used msgId in the window, which from now on it
+    // has (see complete); otherwise what the first copy got.
+    public Outcome claim(String sender, String msgId) {
+        long now = System.currentTimeMillis();
+        sweep(now);
+        while (true) {
+            Recent recent = senders.computeIfAbsent(sender, k -> new Recent());
+            synchronized (recent) {
+                if (senders.get(sender) != recent)
+                    continue; // Swept meanwhile.
+                Outcome seen = find(recent, msgId);
+                if (seen != null)
+                    return seen;
+                add(recent, msgId, IN_PROGRESS, now);
+                return null;
+            }
+        }
+    }
+
+    // The server answered sender's msgId with status and seq; a copy sent
+    // again gets the same answer. A message that FAILED is forgotten, so that
+    // sending it again is a new attempt. Ids that were not claimed are
+    // recorded too.
+    public void complete(String sender, String msgId, String status, long seq) {
+        while (true) {
+            Recent recent = senders.computeIfAbsent(sender, k -> new Recent());
+            synchronized (recent) {
+                if (senders.get(sender) != recent)
+                    continue;
+                complete(recent, msgId, status, seq);
+                return;
+            }
+        }
+    }
+
+    private void complete(Recent recent, String msgId, String status, long seq) {
+        for (LinkedHashMap<String, Outcome> bucket : recent.buckets) {
+            if (bucket.containsKey(msgId)) {
+                if ("FAILED".equals(status)) {
+                    bucket.remove(msgId);
+                    recent.size--;
+                } else {
+                    bucket.put(msgId, new Outcome(status, seq));
+                }
+                return;
+            }
+        }
+        if (!"FAILED".equals(status)) {
+            add(recent, msgId, new Outcome(status, seq), System.currentTimeMillis());
+        }
+    }
+
+    // Puts msgId in the newest bucket, dropping the sender's oldest ids if
+    // that makes too many.
+    private void add(Recent recent, String msgId, Outcome outcome, long now) {
+        rotate(recent, now);
+        recent.buckets.peekFirst().put(msgId, outcome);
+        recent.size++;
+        Iterator<LinkedHashMap<String, Outcome>> oldestFirst = recent.buckets.descendingIterator();
+        while (recent.size > maxPerSender) {
+            LinkedHashMap<String, Outcome> bucket = oldestFirst.next();
+            Iterator<String> ids = bucket.keySet().iterator();
+            while (ids.hasNext() && recent.size > maxPerSender) {
+                ids.next();
+                ids.remove();
+                recent.size--;
+            }
+        }
+    }
+
+    // What sender's msgId got, or null if it is not in the window.
+    public Outcome find(String sender, String msgId) {
+        Recent recent = senders.get(sender);
+        if (recent == null)
+            return null;
+        synchronized (recent) {
+            return find(recent, msgId);
+        }
+    }
+
+    private Outcome find(Recent recent, String msgId) {
+        long now = System.currentTimeMillis();
+        int age = 0;
+        for (LinkedHashMap<String, Outcome> bucket : recent.buckets) {
+            // Buckets past the window are dropped on the next rotate.
+            if (now - recent.bucketStart >= (long) (BUCKETS - age) * bucketMillis)
+                break;
+            Outcome seen = bucket.get(msgId);
+            if (seen != null)
+                return seen;
+            age++;
+        }
+        return null;
+    }
+
+    // Starts a new bucket if the newest one is full of time, dropping those
+    // that have left the window.
+    private void rotate(Recent recent, long now) {
+        if (!recent.buckets.isEmpty() && now - recent.bucketStart < bucketMillis)
+            return;
+        long elapsed = recent.buckets.isEmpty() ? BUCKETS : (now - recent.bucketStart) / bucketMillis;
+        for (long i = 0; i < Math.min(elapsed, BUCKETS); i++) {
+            recent.buckets.addFirst(new LinkedHashMap<>());
+        }
+        while (recent.buckets.size() > BUCKETS) {
+            recent.size -= recent.buckets.removeLast().size();
+        }
+        recent.bucketStart = now - (now - recent.bucketStart) % bucketMillis;
+        if (elapsed >= BUCKETS) {
+            recent.bucketStart = now;
+        }
+    }
+
+    // Once a bucket's worth of time, drops the senders whose ids have all
+    // left the window.
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < bucketMillis || !lastSweep.compareAndSet(last, now))
+            return;
+        senders.entrySet().removeIf(entry -> {
+            Recent recent = entry.getValue();
+            synchronized (recent) {
+                return now - recent.bucketStart >= (long) BUCKETS * bucketMillis;
+            }
+        });
+    }
+}
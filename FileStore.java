@@ -0,0 +1,361 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import protocol.BinaryCodec;
+import protocol.FileTransfer;
+import protocol.Frame;
+
+// Files sent with the chunked transfer protocol (see FileTransfer), on disk
+// rather than in the heap. File content is stored once per SHA-256 however
+// many transfers (recipients, groups, forwards, users) refer to it:
+//
+//   <dir>/<transferId>.start     the transfer's FILE_START frame, binary encoded
+//   <dir>/<transferId>.part      an upload in progress
+//   <dir>/<transferId>.pending   recipients that have not downloaded it yet
+//   <dir>/blobs/<sha256>         the content
+//
+// An upload cut off by a disconnect or a restart resumes from the length of
+// its .part file. A transfer is released once all its recipients downloaded
+// it, or after keepDays; a blob no transfer refers to any more is deleted.
+public class FileStore {
+    private final File dir;
+    private final File blobDir;
+    private final long keepMillis;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // Completed transfers referring to each blob. Guarded by this.
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+
+    private static class Upload {
+        final FileTransfer transfer;
+        FileChannel channel;
+        long length;
+        // SHA-256 of the first length bytes, so finish() need not read the
+        // file again.
+        MessageDigest digest;
+        boolean used = true;
+
+        Upload(FileTransfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+
+    public FileStore(File dir, long keepDays) {
+        this.dir = dir;
+        this.blobDir = new File(dir, "blobs");
+        this.keepMillis = TimeUnit.DAYS.toMillis(keepDays);
+        blobDir.mkdirs();
+        collectGarbage();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-store-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::closeIdleUploads, 1, 1, TimeUnit.MINUTES);
+        sweeper.scheduleWithFixedDelay(this::collectGarbage, 1, 1, TimeUnit.HOURS);
+    }
+
+    public static FileStore fromConfig(ServerConfig config) {
+        return new FileStore(new File(config.get("files.dir", "files")), config.getLong("files.keepDays", 30));
+    }
+
+    // Starts or resumes an upload; returns how many bytes are already stored,
+    // or -1 if the transfer id is taken by a different file or sender.
+    public long start(FileTransfer transfer) {
+        String id = transfer.getTransferId();
+        try {
+            FileTransfer complete = completed(id);
+            if (complete != null)
+                return sameFile(complete, transfer) ? complete.getSize() : -1;
+            Upload upload = uploads.computeIfAbsent(id, k -> new Upload(transfer));
+            synchronized (upload) {
+                if (!sameFile(upload.transfer, transfer))
+                    return -1;
+                FileTransfer stored = readStart(id);
+                if (stored == null) {
+                    writeStart(transfer);
+                } else if (!sameFile(stored, transfer)) {
+                    uploads.remove(id, upload);
+                    return -1;
+                }
+                open(upload);
+                return upload.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // The upload in progress with this id, or null.
+    public FileTransfer uploading(String transferId) {
+        Upload upload = uploads.get(transferId);
+        return upload == null ? null : upload.transfer;
+    }
+
+    // Stores a chunk sent by sender; returns how many bytes are stored
+    // afterwards, or -1 if there is no such upload of theirs. Chunks that do
+    // not start exactly where the stored bytes end (resent or overtaken ones)
+    // are ignored.
+    public long write(String transferId, String sender, long offset, byte[] data) {
+        Upload upload = uploads.get(transferId);
+        if (upload == null || !upload.transfer.getSender().equals(sender))
+            return -1;
+        synchronized (upload) {
+            try {
+                open(upload);
+                if (offset == upload.length && upload.length + data.length <= upload.transfer.getSize()) {
+                    ByteBuffer src = ByteBuffer.wrap(data);
+                    while (src.hasRemaining()) {
+                        upload.length += upload.channel.write(src, upload.length);
+                    }
+                    upload.digest.update(data);
+                }
+                upload.used = true;
+                return upload.length;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+    }
+
+    // Checks the finished upload against its SHA-256. Returns true if it
+    // matched and the recipients can now download it; otherwise the upload is
+    // discarded.
+    public boolean finish(String transferId, Collection<String> recipients) {
+        Upload upload = uploads.get(transferId);
+        if (upload == null)
+            return false;
+        synchronized (upload) {
+            uploads.remove(transferId, upload);
+            File part = file(transferId, ".part");
+            try {
+                if (upload.channel != null) {
+                    upload.channel.force(true);
+                    upload.channel.close();
+                    upload.channel = null;
+                }
+                FileTransfer transfer = upload.transfer;
+                if (upload.length == transfer.getSize() && upload.digest != null
+                        && FileTransfer.sha256(upload.digest).equals(transfer.getSha256())) {
+                    addReference(transfer, part, recipients);
+                    return true;
+                }
+                System.out.println("Upload " + transferId + " does not match its checksum; discarded.");
+                Files.deleteIfExists(part.toPath());
+                Files.deleteIfExists(file(transferId, ".start").toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    // Stores a file that arrived whole, in one FILE or GROUP_FILE frame, as a
+    // transfer of its own.
+    public boolean store(FileTransfer transfer, byte[] data, Collection<String> recipients) {
+        File part = file(transfer.getTransferId(), ".part");
+        try {
+            Files.write(part.toPath(), data);
+            writeStart(transfer);
+            addReference(transfer, part, recipients);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The transfer if it is complete and not released yet, otherwise null.
+    public FileTransfer completed(String transferId) throws IOException {
+        if (!FileTransfer.isValidId(transferId) || !file(transferId, ".pending").isFile())
+            return null;
+        return readStart(transferId);
+    }
+
+    // The content of a completed transfer, for sending to recipients.
+    public FileChannel openCompleted(FileTransfer transfer) throws IOException {
+        return FileChannel.open(blob(transfer.getSha256()).toPath(), StandardOpenOption.READ);
+    }
+
+    // A recipient has the whole file; the transfer is released once every
+    // recipient has.
+    public synchronized void downloaded(String transferId, String recipient) {
+        File pending = file(transferId, ".pending");
+        try {
+            Set<String> waiting = readPending(pending);
+            if (waiting == null || !waiting.remove(recipient))
+                return;
+            if (waiting.isEmpty()) {
+                release(transferId);
+            } else {
+                writePending(transferId, waiting);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Makes the verified .part the transfer's content: it becomes the blob,
+    // or is dropped if the same content is stored already.
+    private synchronized void addReference(FileTransfer transfer, File part, Collection<String> recipients)
+            throws IOException {
+        File blob = blob(transfer.getSha256());
+        if (blob.isFile()) {
+            Files.delete(part.toPath());
+        } else {
+            Files.move(part.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Set<String> waiting = new LinkedHashSet<>(recipients);
+        waiting.remove(transfer.getSender());
+        writePending(transfer.getTransferId(), waiting);
+        blobRefs.merge(transfer.getSha256(), 1, Integer::sum);
+        if (waiting.isEmpty()) {
+            release(transfer.getTransferId());
+        }
+    }
+
+    private synchronized void release(String transferId) throws IOException {
+        FileTransfer transfer = readStart(transferId);
+        Files.deleteIfExists(file(transferId, ".pending").toPath());
+        Files.deleteIfExists(file(transferId, ".start").toPath());
+        if (transfer == null)
+            return;
+        String sha256 = transfer.getSha256();
+        Integer refs = blobRefs.get(sha256);
+        if (refs == null || refs <= 1) {
+            blobRefs.remove(sha256);
+            Files.deleteIfExists(blob(sha256).toPath());
+        } else {
+            blobRefs.put(sha256, refs - 1);
+        }
+    }
+
+    // Recounts the references from the transfers on disk, releases expired
+    // transfers and deletes blobs nothing refers to (e.g. after a crash).
+    private synchronized void collectGarbage() {
+        try {
+            blobRefs.clear();
+            long expired = System.currentTimeMillis() - keepMillis;
+            String[] names = dir.list((d, name) -> name.endsWith(".pending"));
+            for (String name : names == null ? new String[0] : names) {
+                String transferId = name.substring(0, name.length() - ".pending".length());
+                FileTransfer transfer = readStart(transferId);
+                if (transfer == null || file(transferId, ".pending").lastModified() < expired) {
+                    Files.deleteIfExists(file(transferId, ".pending").toPath());
+                    Files.deleteIfExists(file(transferId, ".start").toPath());
+                    continue;
+                }
+                blobRefs.merge(transfer.getSha256(), 1, Integer::sum);
+            }
+            String[] blobs = blobDir.list();
+            for (String sha256 : blobs == null ? new String[0] : blobs) {
+                if (!blobRefs.containsKey(sha256)) {
+                    Files.deleteIfExists(blob(sha256).toPath());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void open(Upload upload) throws IOException {
+        if (upload.channel == null) {
+            upload.channel = FileChannel.open(file(upload.transfer.getTransferId(), ".part").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Never trust more than the transfer's size.
+            upload.length = Math.min(upload.channel.size(), upload.transfer.getSize());
+            // A resumed upload hashes what it has once, here.
+            upload.digest = FileTransfer.sha256Digest();
+            if (upload.length > 0) {
+                FileTransfer.update(upload.digest, file(upload.transfer.getTransferId(), ".part"), upload.length);
+            }
+        }
+    }
+
+    private static boolean sameFile(FileTransfer a, FileTransfer b) {
+        return a.getSender().equals(b.getSender()) && a.getSize() == b.getSize()
+                && a.getSha256().equals(b.getSha256());
+    }
+
+    private FileTransfer readStart(String transferId) throws IOException {
+        File start = file(transferId, ".start");
+        if (!start.isFile())
+            return null;
+        Frame frame = BinaryCodec.decode(ByteBuffer.wrap(Files.readAllBytes(start.toPath())));
+        return frame == null ? null : FileTransfer.fromStartFrame(frame);
+    }
+
+    private void writeStart(FileTransfer transfer) throws IOException {
+        ByteBuffer encoded = BinaryCodec.encode(transfer.toStartFrame());
+        replace(file(transfer.getTransferId(), ".start"), encoded.array());
+    }
+
+    private static Set<String> readPending(File pending) throws IOException {
+        if (!pending.isFile())
+            return null;
+        String content = new String(Files.readAllBytes(pending.toPath()), StandardCharsets.UTF_8);
+        Set<String> waiting = new LinkedHashSet<>();
+        if (!content.isEmpty()) {
+            waiting.addAll(Arrays.asList(content.split("\n")));
+        }
+        return waiting;
+    }
+
+    private void writePending(String transferId, Set<String> waiting) throws IOException {
+        replace(file(transferId, ".pending"), String.join("\n", waiting).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void replace(File target, byte[] content) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        Files.write(tmp.toPath(), content);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File file(String transferId, String suffix) {
+        return new File(dir, transferId + suffix);
+    }
+
+    private File blob(String sha256) {
+        return new File(blobDir, sha256);
+    }
+
+    // Uploads nobody wrote to for a whole sweep interval give their file
+    // handle back; start() opens it again if the sender resumes.
+    private void closeIdleUploads() {
+        for (Upload upload : uploads.values()) {
+            synchronized (upload) {
+                if (upload.used) {
+                    upload.used = false;
+                } else {
+                    uploads.remove(upload.transfer.getTransferId(), upload);
+                    try {
+                        if (upload.channel != null) {
+                            upload.channel.close();
+                            upload.channel = null;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.concurrent.TimeUnit;
+
+// When the writer of a connection pushes its buffered frames to the socket.
+// BATCHED gathers everything that is already queued into one write, bounded
+// by maxBytes and maxDelay; IMMEDIATE writes every frame on its own, which is
+// the old auto-flush behaviour.
+public class FlushPolicy {
+    public enum Mode {
+        IMMEDIATE, BATCHED
+    }
+
+    public final Mode mode;
+    // Flush once this many bytes are buffered.
+    public final int maxBytes;
+    // Flush once the oldest buffered frame has waited this long, even if more
+    // frames keep arriving.
+    public final long maxDelayNanos;
+    // When the queue runs empty, wait this long for another frame before
+    // flushing (0 = flush as soon as the queue is empty).
+    public final long lingerNanos;
+
+    public FlushPolicy(Mode mode, int maxBytes, long maxDelayNanos, long lingerNanos) {
+        this.mode = mode;
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxDelayNanos = maxDelayNanos;
+        this.lingerNanos = lingerNanos;
+    }
+
+    public static FlushPolicy fromConfig(ServerConfig config) {
+        return new FlushPolicy(
+                config.getEnum("flush.policy", Mode.class, Mode.BATCHED),
+                config.getInt("flush.maxBytes", 64 * 1024),
+                TimeUnit.MICROSECONDS.toNanos(config.getLong("flush.maxDelayMicros", 1000)),
+                TimeUnit.MICROSECONDS.toNanos(config.getLong("flush.lingerMicros", 0)));
+    }
+
+    public boolean batched() {
+        return mode == Mode.BATCHED;
+    }
+
+    @Override
+    public String toString() {
+        return mode.name().toLowerCase() + " (maxBytes=" + maxBytes
+                + ", maxDelayMicros=" + TimeUnit.NANOSECONDS.toMicros(maxDelayNanos)
+                + ", lingerMicros=" + TimeUnit.NANOSECONDS.toMicros(lingerNanos) + ")";
+    }
+}
@@ -0,0 +1,473 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Persists groups in the SQLite database. Every member is one row of
+// group_members, so joining or leaving a group writes a single row however
+// large the group is.
+//
+// The database is opened once, in WAL mode, and only ever used from the
+// "group-db" thread, which also keeps the prepared statements. Changes are
+// written behind: they are only recorded per group, merging with earlier
+// changes to the same group, and every flushMillis (or once maxDirty groups
+// are waiting) the writer commits all of them as one transaction. Handler
+// threads never wait for the disk, a burst of changes to one group costs one
+// write of its final state, and a crash loses at most the last flushMillis
+// of changes plus the write in progress.
+public class GroupDatabase {
+    private static final String DB_URL = "jdbc:sqlite:chatapp.db";
+    // Writes committed together at most.
+    private static final int MAX_BATCH = 256;
+
+    // What is still to be written for one group.
+    private static class GroupChange {
+        // Delete whatever is stored for the group first.
+        boolean reset = false;
+        // False once the group was deleted.
+        boolean exists = true;
+        final Set<String> added = new LinkedHashSet<>();
+        final Set<String> removed = new LinkedHashSet<>();
+    }
+
+    private interface Write {
+        void run() throws SQLException;
+    }
+
+    private static class PendingWrite {
+        final Write write;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Write write) {
+            this.write = write;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<>();
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Thread writer;
+    private final ScheduledExecutorService flusher;
+    private final int maxDirty;
+    private final Object dirtyLock = new Object();
+    private Map<String, GroupChange> dirty = new LinkedHashMap<>();
+    // Completes when the changes now in dirty are committed.
+    private CompletableFuture<Void> dirtyFlushed = new CompletableFuture<>();
+    private Connection conn;
+    // Queued by close() behind the last flush; the writer closes the
+    // connection when it takes it, having committed everything before.
+    private final PendingWrite closeMarker = new PendingWrite(() -> {
+    });
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    public GroupDatabase(long flushMillis, int maxDirty) {
+        this.maxDirty = Math.max(1, maxDirty);
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        writer = new Thread(this::writeLoop, "group-db");
+        writer.setDaemon(true);
+        writer.start();
+        call(() -> {
+            open();
+            return null;
+        });
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "group-db-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, Math.max(1, flushMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public static GroupDatabase fromConfig(ServerConfig config) {
+        return new GroupDatabase(config.getLong("groups.flushMillis", 200), config.getInt("groups.maxDirty", 1000));
+    }
+
+    private void open() throws SQLException {
+        conn = DriverManager.getConnection(DB_URL);
+        try (Statement stmt = conn.createStatement()) {
+            // Readers never block the writer, and a commit only has to reach
+            // the WAL file.
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA busy_timeout=5000");
+            stmt.execute("CREATE TABLE IF NOT EXISTS groups (group_name TEXT PRIMARY KEY)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS group_members (" +
+                    "group_name TEXT NOT NULL, " +
+                    "username TEXT NOT NULL, " +
+                    "PRIMARY KEY (group_name, username)" +
+                    ") WITHOUT ROWID");
+            stmt.execute("CREATE INDEX IF NOT EXISTS group_members_by_user ON group_members(username)");
+        }
+        migrateMembersColumn();
+    }
+
+    // Databases written by older servers keep the members of a group as one
+    // comma-joined groups.members column; move them to group_members.
+    private void migrateMembersColumn() throws SQLException {
+        boolean hasMembersColumn = false;
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info(groups)")) {
+            while (rs.next()) {
+                if ("members".equalsIgnoreCase(rs.getString("name"))) {
+                    hasMembersColumn = true;
+                }
+            }
+        }
+        if (!hasMembersColumn)
+            return;
+        int migrated = 0;
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            PreparedStatement insert = statement(
+                    "INSERT OR IGNORE INTO group_members(group_name, username) VALUES(?,?)");
+            try (ResultSet rs = stmt.executeQuery("SELECT group_name, members FROM groups")) {
+                while (rs.next()) {
+                    String membersStr = rs.getString("members");
+                    if (membersStr == null)
+                        continue;
+                    for (String member : membersStr.split(",")) {
+                        insert.setString(1, rs.getString("group_name"));
+                        insert.setString(2, member);
+                        insert.addBatch();
+                    }
+                    migrated++;
+                }
+            }
+            insert.executeBatch();
+            stmt.execute("ALTER TABLE groups DROP COLUMN members");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        System.out.println("Migrated " + migrated + " groups to the group_members table");
+    }
+
+    // Blocks until the groups are read; only used at startup.
+    public Map<String, Set<String>> loadGroups() {
+        Map<String, Set<String>> groupMap = call(() -> {
+            Map<String, Set<String>> loaded = new HashMap<>();
+            try (ResultSet rs = statement("SELECT group_name, username FROM group_members").executeQuery()) {
+                while (rs.next()) {
+                    loaded.computeIfAbsent(rs.getString("group_name"), k -> new HashSet<>())
+                            .add(rs.getString("username"));
+                }
+            }
+            return loaded;
+        });
+        return groupMap != null ? groupMap : new HashMap<>();
+    }
+
+    // Creates the group, replacing any group of the same name. Like every
+    // change below it is only recorded here; the returned future completes
+    // once the flush that writes it has committed.
+    public CompletableFuture<Void> saveGroup(String groupName, Set<String> members) {
+        synchronized (dirtyLock) {
+            GroupChange change = change(groupName);
+            change.reset = true;
+            change.exists = true;
+            change.added.clear();
+            change.added.addAll(members);
+            change.removed.clear();
+            return dirtied();
+        }
+    }
+
+    public CompletableFuture<Void> addMember(String groupName, String username) {
+        synchronized (dirtyLock) {
+            GroupChange change = change(groupName);
+            change.removed.remove(username);
+            change.added.add(username);
+            return dirtied();
+        }
+    }
+
+    public CompletableFuture<Void> removeMember(String groupName, String username) {
+        synchronized (dirtyLock) {
+            GroupChange change = change(groupName);
+            change.added.remove(username);
+            if (!change.reset) {
+                change.removed.add(username);
+            }
+            return dirtied();
+        }
+    }
+
+    // Moves the group to its new name, replacing any group already called
+    // that.
+    public CompletableFuture<Void> renameGroup(String oldName, String newName, Set<String> members) {
+        synchronized (dirtyLock) {
+            deleteGroup(oldName);
+            return saveGroup(newName, members);
+        }
+    }
+
+    public CompletableFuture<Void> deleteGroup(String groupName) {
+        synchronized (dirtyLock) {
+            GroupChange change = change(groupName);
+            change.reset = true;
+            change.exists = false;
+            change.added.clear();
+            change.removed.clear();
+            return dirtied();
+        }
+    }
+
+    private GroupChange change(String groupName) {
+        return dirty.computeIfAbsent(groupName, k -> new GroupChange());
+    }
+
+    // Called with dirtyLock held after a change was recorded.
+    private CompletableFuture<Void> dirtied() {
+        CompletableFuture<Void> flushed = dirtyFlushed;
+        if (dirty.size() >= maxDirty) {
+            flush();
+        }
+        return flushed;
+    }
+
+    // Hands every recorded change to the writer as one write (and so one
+    // transaction). Submitted under dirtyLock so flushes reach the writer in
+    // the order they were taken.
+    public CompletableFuture<Void> flush() {
+        synchronized (dirtyLock) {
+            if (dirty.isEmpty())
+                return CompletableFuture.completedFuture(null);
+            Map<String, GroupChange> changes = dirty;
+            CompletableFuture<Void> flushed = dirtyFlushed;
+            dirty = new LinkedHashMap<>();
+            dirtyFlushed = new CompletableFuture<>();
+            submit(() -> {
+                for (Map.Entry<String, GroupChange> entry : changes.entrySet()) {
+                    apply(entry.getKey(), entry.getValue());
+                }
+            }).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    flushed.completeExceptionally(e);
+                } else {
+                    flushed.complete(null);
+                }
+            });
+            return flushed;
+        }
+    }
+
+    // Writes the outstanding changes and closes the database; later changes
+    // are lost. Blocks until done.
+    public void close() {
+        flusher.shutdown();
+        // Under dirtyLock, so no flush can come between the last one and the
+        // marker.
+        synchronized (dirtyLock) {
+            flush();
+            writes.add(closeMarker);
+        }
+        try {
+            closed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs on the writer thread, outside any transaction.
+    private void closeConnection() {
+        try {
+            for (PreparedStatement pstmt : statements.values()) {
+                pstmt.close();
+            }
+            statements.clear();
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        closed.complete(null);
+    }
+
+    private void apply(String groupName, GroupChange change) throws SQLException {
+        if (change.reset) {
+            delete(groupName);
+        }
+        if (!change.exists)
+            return;
+        PreparedStatement group = statement("INSERT OR IGNORE INTO groups(group_name) VALUES(?)");
+        group.setString(1, groupName);
+        group.executeUpdate();
+        if (!change.removed.isEmpty()) {
+            PreparedStatement remove = statement("DELETE FROM group_members WHERE group_name = ? AND username = ?");
+            for (String member : change.removed) {
+                remove.setString(1, groupName);
+                remove.setString(2, member);
+                remove.addBatch();
+            }
+            remove.executeBatch();
+        }
+        if (!change.added.isEmpty()) {
+            PreparedStatement insert = statement(
+                    "INSERT OR IGNORE INTO group_members(group_name, username) VALUES(?,?)");
+            for (String member : change.added) {
+                insert.setString(1, groupName);
+                insert.setString(2, member);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private void delete(String groupName) throws SQLException {
+        for (String table : new String[] { "group_members", "groups" }) {
+            PreparedStatement pstmt = statement("DELETE FROM " + table + " WHERE group_name = ?");
+            pstmt.setString(1, groupName);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // Prepared once per connection; only called on the writer thread.
+    private PreparedStatement statement(String sql) throws SQLException {
+        if (conn == null)
+            throw new SQLException("Group database is not open");
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = conn.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    private CompletableFuture<Void> submit(Write write) {
+        PendingWrite pending = new PendingWrite(write);
+        if (closed.isDone()) {
+            pending.done.completeExceptionally(new SQLException("Group database is closed"));
+        } else {
+            writes.add(pending);
+        }
+        return pending.done;
+    }
+
+    // Runs a read (or setup) on the writer thread and waits for it; failures
+    // are printed and give null.
+    private <T> T call(Callable<T> read) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        submit(() -> {
+            try {
+                result.complete(read.call());
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException(e);
+            }
+        }).whenComplete((ignored, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            }
+        });
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already printed by the writer.
+        }
+        return null;
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writes.drainTo(batch, MAX_BATCH - 1);
+            int close = batch.indexOf(closeMarker);
+            if (close < 0) {
+                commit(batch);
+                batch.clear();
+                continue;
+            }
+            if (close > 0) {
+                commit(batch.subList(0, close));
+            }
+            for (PendingWrite late : batch.subList(close + 1, batch.size())) {
+                late.done.completeExceptionally(new SQLException("Group database is closed"));
+            }
+            closeConnection();
+            return;
+        }
+    }
+
+    // Runs the writes as one transaction. A failing write is rolled back on
+    // its own (savepoint) without losing the others.
+    private void commit(List<PendingWrite> batch) {
+        if (conn == null) {
+            // open() itself is the first write.
+            runEach(batch);
+            return;
+        }
+        List<SQLException> failures = new ArrayList<>();
+        try {
+            conn.setAutoCommit(false);
+            for (PendingWrite pending : batch) {
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    pending.write.run();
+                    conn.releaseSavepoint(savepoint);
+                    failures.add(null);
+                } catch (SQLException e) {
+                    conn.rollback(savepoint);
+                    failures.add(e);
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+            }
+            for (PendingWrite pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            complete(batch.get(i), failures.get(i));
+        }
+    }
+
+    private void runEach(List<PendingWrite> batch) {
+        for (PendingWrite pending : batch) {
+            SQLException failure = null;
+            try {
+                pending.write.run();
+            } catch (SQLException e) {
+                failure = e;
+            }
+            complete(pending, failure);
+        }
+    }
+
+    private void complete(PendingWrite pending, SQLException failure) {
+        if (failure == null) {
+            pending.done.complete(null);
+        } else {
+            failure.printStackTrace();
+            pending.done.completeExceptionally(failure);
+        }
+    }
+}
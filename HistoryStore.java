@@ -0,0 +1,468 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.WireFormat;
+
+// Every message and file offer the server has relayed, by conversation (see
+// Conversation.key), so clients can page back through a conversation they
+// have no local copy of: after changing machines, or after joining a group.
+// Each conversation has a directory of segments, named by the sequence number
+// of their first message; a segment is a log of binary-encoded frames (with
+// their sequence numbers) and an index of fixed-width (seq, offset) entries.
+//
+//   <dir>/<conversation>/0000000000000001.log
+//   <dir>/<conversation>/0000000000000001.idx
+//
+// A segment is closed once it reaches segmentBytes or at midnight (UTC), so a
+// conversation's segments also partition it by day, and keepDays drops whole
+// segments. A page is found by binary search over the segment names and then
+// over one index, and read with one read per segment it spans, however long
+// the conversation is. Appends are fsynced every syncMillis, like the offline
+// store's.
+public class HistoryStore {
+    private static final int ENTRY_BYTES = 16;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long syncMillis;
+    private final long keepDays;
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final Set<Partition> dirty = ConcurrentHashMap.newKeySet();
+
+    // Up to the requested number of records, oldest first, still binary
+    // encoded; next is where the adjoining page starts (see page and since),
+    // 0 if there is none.
+    public static class Page {
+        public final byte[] records;
+        public final int count;
+        public final long next;
+
+        Page(byte[] records, int count, long next) {
+            this.records = records;
+            this.count = count;
+            this.next = next;
+        }
+    }
+
+    public HistoryStore(File dir, long segmentBytes, long syncMillis, long keepDays) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        this.syncMillis = syncMillis;
+        this.keepDays = keepDays;
+        dir.mkdirs();
+        ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "history-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        if (syncMillis > 0) {
+            syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        if (keepDays > 0) {
+            syncer.scheduleWithFixedDelay(this::expire, 0, 1, TimeUnit.HOURS);
+        }
+    }
+
+    public static HistoryStore fromConfig(ServerConfig config) {
+        return new HistoryStore(new File(config.get("history.dir", "history")),
+                config.getLong("history.segmentBytes", 4 * 1024 * 1024),
+                config.getLong("history.syncMillis", 1000),
+                config.getLong("history.keepDays", 0));
+    }
+
+    // Adds a frame numbered by the sequencer; called in number order.
+    public void append(String conversation, Frame frame) {
+        ByteBuffer record = frame.isShared() ? WireFormat.BINARY.shared(frame) : BinaryCodec.encode(frame);
+        Partition partition = partition(conversation);
+        synchronized (partition) {
+            try {
+                partition.append(frame.getSeq(), record);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Up to limit records of the conversation numbered below before (or the
+    // latest, if before is 0).
+    public Page page(String conversation, long before, int limit) {
+        if (!partitions.containsKey(conversation) && !conversationDir(conversation).isDirectory())
+            return new Page(new byte[0], 0, 0);
+        Partition partition = partition(conversation);
+        synchronized (partition) {
+            try {
+                return partition.page(before <= 0 ? Long.MAX_VALUE : before, Math.max(1, limit));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new Page(new byte[0], 0, 0);
+            }
+        }
+    }
+
+    // Up to limit records of the conversation numbered after after, oldest
+    // first; next is the number of the last one if there are more.
+    public Page since(String conversation, long after, int limit) {
+        if (!partitions.containsKey(conversation) && !conversationDir(conversation).isDirectory())
+            return new Page(new byte[0], 0, 0);
+        Partition partition = partition(conversation);
+        synchronized (partition) {
+            try {
+                return partition.since(after, Math.max(1, limit));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new Page(new byte[0], 0, 0);
+            }
+        }
+    }
+
+    // The record numbered seq, or null if it is not (or no longer) stored.
+    public byte[] get(String conversation, long seq) {
+        Page page = since(conversation, seq - 1, 1);
+        if (page.count == 0)
+            return null;
+        try {
+            Frame frame = BinaryCodec.decode(ByteBuffer.wrap(page.records));
+            return frame != null && frame.getSeq() == seq ? page.records : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void sync() {
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                try {
+                    if (dirty.remove(partition)) {
+                        partition.force();
+                    } else {
+                        partition.closeWriters();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Drops the segments of every conversation that were closed more than
+    // keepDays ago.
+    private void expire() {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+        long cutoff = System.currentTimeMillis() - keepDays * DAY_MILLIS;
+        for (String name : names) {
+            File conversationDir = new File(dir, name);
+            if (!conversationDir.isDirectory())
+                continue;
+            long[] segments = segments(conversationDir);
+            // The newest segment may still be written to; the others were
+            // last written when they were closed.
+            for (int i = 0; i + 1 < segments.length; i++) {
+                File log = new File(conversationDir, segmentName(segments[i], ".log"));
+                if (log.lastModified() >= cutoff)
+                    break;
+                Partition partition = partition(keyOf(name));
+                synchronized (partition) {
+                    try {
+                        Files.deleteIfExists(log.toPath());
+                        Files.deleteIfExists(new File(conversationDir, segmentName(segments[i], ".idx")).toPath());
+                        partition.dropped(segments[i]);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    private Partition partition(String conversation) {
+        return partitions.computeIfAbsent(conversation, c -> new Partition(conversationDir(c)));
+    }
+
+    private File conversationDir(String conversation) {
+        try {
+            // Dots are encoded too, so no name can mean "." or "..".
+            return new File(dir, URLEncoder.encode(conversation, "UTF-8").replace(".", "%2E"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String keyOf(String dirName) {
+        try {
+            return URLDecoder.decode(dirName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String segmentName(long firstSeq, String suffix) {
+        return String.format("%016d%s", firstSeq, suffix);
+    }
+
+    private static long[] segments(File dir) {
+        String[] names = dir.list((d, name) -> name.endsWith(".log"));
+        if (names == null)
+            return new long[0];
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - 4));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    // One conversation's segments. Guarded by its own monitor.
+    private class Partition {
+        private final File dir;
+        private boolean loaded = false;
+        // First sequence numbers of the segments, ascending.
+        private long[] segments = new long[0];
+        // First sequence number of the segment appends go to; 0 until the
+        // first append after a (re)start, so a write torn by a crash is only
+        // ever at the end of a segment nobody appends to. Its files are closed
+        // while the conversation is idle and reopened by the next append.
+        private long current;
+        private FileChannel log;
+        private FileChannel index;
+        private long logSize;
+        private long indexSize;
+        private long lastSeq;
+        private long segmentDay;
+        private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+
+        Partition(File dir) {
+            this.dir = dir;
+        }
+
+        private void load() {
+            if (loaded)
+                return;
+            loaded = true;
+            segments = segments(dir);
+        }
+
+        void append(long seq, ByteBuffer record) throws IOException {
+            load();
+            if (seq <= lastSeq)
+                return;
+            long day = System.currentTimeMillis() / DAY_MILLIS;
+            if (current != 0 && (logSize >= segmentBytes || day != segmentDay)) {
+                force();
+                closeWriters();
+                current = 0;
+            }
+            if (current == 0) {
+                dir.mkdirs();
+                log = FileChannel.open(new File(dir, segmentName(seq, ".log")).toPath(),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                index = FileChannel.open(new File(dir, segmentName(seq, ".idx")).toPath(),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                current = seq;
+                logSize = 0;
+                indexSize = 0;
+                segmentDay = day;
+                segments = Arrays.copyOf(segments, segments.length + 1);
+                segments[segments.length - 1] = seq;
+            } else if (log == null) {
+                // Written by this process up to logSize and indexSize.
+                log = FileChannel.open(new File(dir, segmentName(current, ".log")).toPath(),
+                        StandardOpenOption.WRITE);
+                index = FileChannel.open(new File(dir, segmentName(current, ".idx")).toPath(),
+                        StandardOpenOption.WRITE);
+            }
+            ByteBuffer src = record.duplicate();
+            long offset = logSize;
+            while (src.hasRemaining()) {
+                offset += log.write(src, offset);
+            }
+            // The index entry goes last: a record is only found once it is
+            // complete.
+            entry.clear();
+            entry.putLong(seq).putLong(logSize).flip();
+            while (entry.hasRemaining()) {
+                indexSize += index.write(entry, indexSize);
+            }
+            logSize = offset;
+            lastSeq = seq;
+            if (syncMillis > 0) {
+                dirty.add(this);
+            } else {
+                force();
+            }
+        }
+
+        Page page(long before, int limit) throws IOException {
+            load();
+            // Newest segment first: the one holding the last number below
+            // before, then the ones before it.
+            int segment = Arrays.binarySearch(segments, before);
+            segment = segment >= 0 ? segment - 1 : -segment - 2;
+            byte[][] parts = new byte[segments.length][];
+            int count = 0;
+            int total = 0;
+            int first = segment + 1;
+            long oldest = 0;
+            boolean more = false;
+            for (; segment >= 0 && count < limit; segment--) {
+                try (FileChannel idx = FileChannel.open(new File(dir, segmentName(segments[segment], ".idx")).toPath(),
+                        StandardOpenOption.READ);
+                        FileChannel data = FileChannel.open(
+                                new File(dir, segmentName(segments[segment], ".log")).toPath(),
+                                StandardOpenOption.READ)) {
+                    long entries = idx.size() / ENTRY_BYTES;
+                    long end = lowerBound(idx, entries, before);
+                    long start = Math.max(0, end - (limit - count));
+                    if (start < end) {
+                        parts[segment] = readRange(idx, data, start, end);
+                        total += parts[segment].length;
+                        count += (int) (end - start);
+                        oldest = readEntry(idx, start)[0];
+                        first = segment;
+                    }
+                    more = start > 0;
+                }
+            }
+            more |= segment >= 0;
+            return new Page(concat(parts, first, total), count, more ? oldest : 0);
+        }
+
+        Page since(long after, int limit) throws IOException {
+            load();
+            // Oldest segment first: the one holding the first number after
+            // after, then the ones after it.
+            int segment = Arrays.binarySearch(segments, after + 1);
+            segment = segment >= 0 ? segment : Math.max(0, -segment - 2);
+            int first = segment;
+            byte[][] parts = new byte[segments.length][];
+            int count = 0;
+            int total = 0;
+            long newest = 0;
+            boolean more = false;
+            for (; segment < segments.length && !more; segment++) {
+                try (FileChannel idx = FileChannel.open(new File(dir, segmentName(segments[segment], ".idx")).toPath(),
+                        StandardOpenOption.READ);
+                        FileChannel data = FileChannel.open(
+                                new File(dir, segmentName(segments[segment], ".log")).toPath(),
+                                StandardOpenOption.READ)) {
+                    long entries = idx.size() / ENTRY_BYTES;
+                    long start = lowerBound(idx, entries, after + 1);
+                    long end = Math.min(entries, start + (limit - count));
+                    if (start < end) {
+                        parts[segment] = readRange(idx, data, start, end);
+                        total += parts[segment].length;
+                        count += (int) (end - start);
+                        newest = readEntry(idx, end - 1)[0];
+                    }
+                    more = end < entries || count == limit && segment + 1 < segments.length;
+                }
+            }
+            return new Page(concat(parts, first, total), count, more ? newest : 0);
+        }
+
+        // The records of index entries start to end (exclusive), in one read.
+        private byte[] readRange(FileChannel idx, FileChannel data, long start, long end) throws IOException {
+            long from = readEntry(idx, start)[1];
+            long[] last = readEntry(idx, end - 1);
+            long to = last[1] + 4 + readInt(data, last[1]);
+            ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+            while (bytes.hasRemaining()) {
+                if (data.read(bytes, from + bytes.position()) < 0)
+                    throw new IOException("History segment shorter than its index");
+            }
+            return bytes.array();
+        }
+
+        private byte[] concat(byte[][] parts, int first, int total) {
+            byte[] records = new byte[total];
+            int position = 0;
+            for (int i = first; i < parts.length; i++) {
+                if (parts[i] != null) {
+                    System.arraycopy(parts[i], 0, records, position, parts[i].length);
+                    position += parts[i].length;
+                }
+            }
+            return records;
+        }
+
+        // Number of index entries with a sequence number below seq.
+        private long lowerBound(FileChannel idx, long entries, long seq) throws IOException {
+            long low = 0;
+            long high = entries;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (readEntry(idx, mid)[0] < seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private long[] readEntry(FileChannel idx, long i) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_BYTES);
+            while (buf.hasRemaining()) {
+                if (idx.read(buf, i * ENTRY_BYTES + buf.position()) < 0)
+                    throw new IOException("Unexpected end of history index");
+            }
+            return new long[] { buf.getLong(0), buf.getLong(8) };
+        }
+
+        private int readInt(FileChannel data, long position) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            while (buf.hasRemaining()) {
+                if (data.read(buf, position + buf.position()) < 0)
+                    throw new IOException("Unexpected end of history segment");
+            }
+            return buf.getInt(0);
+        }
+
+        void force() throws IOException {
+            if (log != null) {
+                log.force(false);
+                index.force(false);
+            }
+        }
+
+        // Releases the current segment's files; the next append reopens them.
+        void closeWriters() throws IOException {
+            if (log != null) {
+                log.close();
+                index.close();
+                log = null;
+                index = null;
+            }
+            dirty.remove(this);
+        }
+
+        void dropped(long firstSeq) {
+            load();
+            int i = Arrays.binarySearch(segments, firstSeq);
+            if (i >= 0) {
+                long[] rest = new long[segments.length - 1];
+                System.arraycopy(segments, 0, rest, 0, i);
+                System.arraycopy(segments, i + 1, rest, i, rest.length - i);
+                segments = rest;
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.WireFormat;
+
+// Non-blocking server mode: one acceptor and a small fixed pool of selector
+// loops. Each loop owns its connections, reads newline-terminated TYPE|...
+// lines or length-prefixed binary frames and hands them to the same
+// ClientHandler logic the threaded mode uses.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_INBOUND_SIZE = 4 * 1024;
+
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final FlushPolicy flushPolicy;
+    private int nextLoop = 0;
+
+    public NioServer(ChatServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.flushPolicy = server.getFlushPolicy();
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(false);
+            t.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("ChatServer started on port " + port + " (nio, " + loops.length + " event loops)");
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private volatile Thread thread;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Connections other threads closed, for this loop to tear down.
+        private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop; bytes are copied out before
+        // the next read so one buffer is enough.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Likewise for writes: frames are encoded here and written straight
+        // away. Only what the socket does not take is copied to the connection.
+        private final ByteBuffer writeBuffer =
+                ByteBuffer.allocateDirect(Math.max(READ_BUFFER_SIZE, flushPolicy.maxBytes));
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // Frames queued while this loop is handling reads are flushed at the
+        // end of the current iteration; only other threads need to wake it.
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void scheduleClose(Connection connection) {
+            pendingCloses.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    closePending();
+                    registerPending();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bad frame costs its own connection, not the
+                            // loop and everyone else on it.
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                    flushPending();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void closePending() {
+            Connection connection;
+            while ((connection = pendingCloses.poll()) != null) {
+                try {
+                    connection.tearDown();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void flushPending() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // One client socket. Reads and writes only happen on the owning loop
+    // thread; other loops queue frames on the handler's OutboundQueue and
+    // call requestFlush().
+    class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final ChatServer.ClientHandler handler;
+        // Encoded bytes the socket has not taken yet; null when fully written.
+        private ByteBuffer backlog;
+        // A frame polled from the queue that did not fit in the current write.
+        private Frame carry;
+        // A file chunk whose header has been written and whose file region
+        // is being transferred to the socket, and how much of it has been.
+        private Frame region;
+        private long regionSent;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private SelectionKey key;
+        // Bytes of the current, not yet terminated line.
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength = 0;
+        // Set from the first byte the client sends.
+        private boolean protocolKnown = false;
+        private boolean binary = false;
+        private boolean preambleRead = false;
+        // Binary connections only: bytes of frames that have not fully arrived.
+        private ByteBuffer inbound;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = server.newHandler(this);
+        }
+
+        void requestFlush() {
+            if (!closed.get() && writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        // May be called from any thread (a sender disconnecting a slow
+        // consumer), but only the owning loop touches the socket and the
+        // write state, which it may be in the middle of using.
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            if (Thread.currentThread() == loop.thread) {
+                tearDown();
+            } else {
+                loop.scheduleClose(this);
+            }
+        }
+
+        private void tearDown() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            backlog = null;
+            carry = null;
+            region = null;
+            handler.onDisconnect();
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buf = loop.readBuffer;
+            buf.clear();
+            int n = channel.read(buf);
+            if (n < 0) {
+                close();
+                return;
+            }
+            buf.flip();
+            if (!protocolKnown && buf.hasRemaining()) {
+                protocolKnown = true;
+                if (buf.get(buf.position()) == BinaryCodec.PREAMBLE[0]) {
+                    binary = true;
+                    inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE);
+                    handler.useBinary();
+                }
+            }
+            if (binary) {
+                readFrames(buf);
+            } else {
+                readLines(buf);
+            }
+        }
+
+        private void readLines(ByteBuffer buf) {
+            while (buf.hasRemaining() && !closed.get()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    int len = lineLength;
+                    if (len > 0 && lineBuffer[len - 1] == '\r')
+                        len--;
+                    String line = new String(lineBuffer, 0, len, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    handler.onLine(line);
+                } else {
+                    if (lineLength == lineBuffer.length) {
+                        lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+
+        private void readFrames(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining() && !closed.get()) {
+                if (!inbound.hasRemaining()) {
+                    // Grown as the bytes arrive, never past the longest frame
+                    // the client may send; a frame that claims to be longer
+                    // was refused when its length arrived.
+                    growInbound(Math.min(inbound.capacity() * 2, handler.maxFrameLength() + 4));
+                }
+                int n = Math.min(buf.remaining(), inbound.remaining());
+                ByteBuffer chunk = buf.duplicate();
+                chunk.limit(chunk.position() + n);
+                inbound.put(chunk);
+                buf.position(buf.position() + n);
+
+                inbound.flip();
+                if (!preambleRead) {
+                    if (inbound.remaining() < BinaryCodec.PREAMBLE.length) {
+                        inbound.compact();
+                        continue;
+                    }
+                    byte[] preamble = new byte[BinaryCodec.PREAMBLE.length];
+                    inbound.get(preamble);
+                    if (!Arrays.equals(preamble, BinaryCodec.PREAMBLE))
+                        throw new IOException("Unsupported binary protocol preamble");
+                    preambleRead = true;
+                }
+                Frame frame;
+                while (!closed.get() && BinaryCodec.pendingFrameLength(inbound, handler.maxFrameLength()) >= 0
+                        && (frame = BinaryCodec.decode(inbound)) != null) {
+                    handler.onFrame(frame);
+                }
+                inbound.compact();
+            }
+        }
+
+        private void growInbound(int capacity) {
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+
+        private void flush() throws IOException {
+            if (closed.get())
+                return;
+            OutboundQueue outbound = handler.pendingFrames();
+            WireFormat format = handler.wireFormat();
+            ByteBuffer buf = loop.writeBuffer;
+            int maxFrames = flushPolicy.batched() ? Integer.MAX_VALUE : 1;
+            while (true) {
+                if (backlog != null) {
+                    channel.write(backlog);
+                    if (backlog.hasRemaining()) {
+                        // Socket buffer is full; wait for OP_WRITE.
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    backlog = null;
+                }
+                if (region != null) {
+                    if (!transferRegion()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    region = null;
+                }
+                // Encode every frame that is already queued, up to the policy's
+                // byte limit, and hand them to the kernel in one write.
+                buf.clear();
+                int frames = 0;
+                while (frames < maxFrames && buf.position() < flushPolicy.maxBytes) {
+                    Frame frame = carry;
+                    carry = null;
+                    if (frame == null) {
+                        Frame next = outbound.poll();
+                        if (next == null)
+                            break;
+                        frame = handler.toWire(next);
+                        if (frame == null)
+                            continue;
+                    }
+                    int size = format.encodedSize(frame);
+                    if (format.transfersFileRegion(frame)) {
+                        // Only the header is copied; the region follows it
+                        // straight from the file once buf has been written.
+                        if (size - frame.getFileLength() > buf.remaining()) {
+                            carry = frame;
+                            break;
+                        }
+                        format.encodeHeader(frame, buf);
+                        region = frame;
+                        regionSent = 0;
+                        frames++;
+                        break;
+                    }
+                    if (size > buf.remaining()) {
+                        if (frames > 0) {
+                            carry = frame;
+                            break;
+                        }
+                        // Bigger than the whole buffer (file data): write it
+                        // from a buffer of its own, or straight from the
+                        // shared encoding every member connection uses.
+                        if (frame.isShared()) {
+                            backlog = format.shared(frame);
+                        } else {
+                            backlog = ByteBuffer.allocate(size);
+                            format.encode(frame, backlog);
+                            backlog.flip();
+                        }
+                        frames++;
+                        break;
+                    }
+                    format.encode(frame, buf);
+                    frames++;
+                }
+                if (frames == 0)
+                    break;
+                ServerMetrics.recordFlush(frames);
+                if (buf.position() == 0)
+                    continue;
+                buf.flip();
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    backlog = ByteBuffer.allocate(buf.remaining());
+                    backlog.put(buf);
+                    backlog.flip();
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            writeScheduled.set(false);
+            handler.onOutboundDrained();
+            // A sender may have queued after the loop above emptied the queue
+            // but before the flag was cleared.
+            if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        // Returns false if the socket buffer filled up before the whole region
+        // was transferred.
+        private boolean transferRegion() throws IOException {
+            long length = region.getFileLength();
+            while (regionSent < length) {
+                FileChannel file = region.getFile();
+                long position = region.getFilePosition() + regionSent;
+                long n = file.transferTo(position, length - regionSent, channel);
+                if (n == 0) {
+                    if (position >= file.size())
+                        throw new IOException("File shorter than expected");
+                    return false;
+                }
+                regionSent += n;
+            }
+            return true;
+        }
+    }
+}
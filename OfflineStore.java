@@ -0,0 +1,316 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.WireFormat;
+
+// Frames waiting for users who are offline (or whose outbound queue spilled),
+// kept on disk rather than in the heap. Every recipient has a directory of
+// append-only segment files holding binary-encoded frames, plus a cursor file
+// with the position of the first frame not yet handed back by replay().
+//
+//   <dir>/<recipient>/0000000000000001.log
+//   <dir>/<recipient>/cursor               "<segment> <offset>"
+//
+// Appends are written straight away but only fsynced every syncMillis, so one
+// fsync covers every append of that interval. Segments are deleted once the
+// cursor has moved past them; a recipient that has read everything has no
+// files left. Delivery is at least once: frames replayed just before a crash
+// may be replayed again.
+public class OfflineStore {
+    private final File dir;
+    private final long segmentBytes;
+    private final long syncMillis;
+    private final Map<String, Log> logs = new ConcurrentHashMap<>();
+    private final Set<Log> dirty = ConcurrentHashMap.newKeySet();
+
+    public OfflineStore(File dir, long segmentBytes, long syncMillis) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        this.syncMillis = syncMillis;
+        dir.mkdirs();
+        if (syncMillis > 0) {
+            ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "offline-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static OfflineStore fromConfig(ServerConfig config) {
+        return new OfflineStore(new File(config.get("offline.dir", "offline")),
+                config.getLong("offline.segmentBytes", 8 * 1024 * 1024),
+                config.getLong("offline.syncMillis", 100));
+    }
+
+    public void append(String recipient, Frame frame) {
+        // Group frames are usually stored for several members; reuse the
+        // encoding fan-out already made.
+        ByteBuffer record = frame.isShared() ? WireFormat.BINARY.shared(frame) : BinaryCodec.encode(frame);
+        while (true) {
+            Log log = log(recipient);
+            synchronized (log) {
+                if (log.removed)
+                    continue;
+                try {
+                    log.append(record);
+                    ServerMetrics.offlineFrames.increment();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+    }
+
+    // Hands the recipient's stored frames, oldest first and still binary
+    // encoded (length prefix included), to deliver until it returns false.
+    // Frames it accepted are not replayed again; the one it refused is the
+    // first of the next replay.
+    public void replay(String recipient, Predicate<ByteBuffer> deliver) {
+        if (!logs.containsKey(recipient) && !recipientDir(recipient).isDirectory())
+            return;
+        while (true) {
+            Log log = log(recipient);
+            synchronized (log) {
+                if (log.removed)
+                    continue;
+                try {
+                    log.replay(deliver);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+    }
+
+    // Forces every log written since the last sync to disk and closes the
+    // writers of logs that were idle for a whole interval.
+    private void sync() {
+        for (Log log : logs.values()) {
+            synchronized (log) {
+                try {
+                    // A failed append leaves the log without a writer.
+                    if (dirty.remove(log) && log.writer != null) {
+                        log.writer.force(false);
+                    } else if (log.writer != null) {
+                        log.writer.close();
+                        log.writer = null;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Thrown out of the task, this would cancel every later
+                    // sync.
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private Log log(String recipient) {
+        return logs.computeIfAbsent(recipient, r -> new Log(r, recipientDir(r)));
+    }
+
+    private File recipientDir(String recipient) {
+        try {
+            // Dots are encoded too, so no name can mean "." or "..".
+            return new File(dir, URLEncoder.encode(recipient, "UTF-8").replace(".", "%2E"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String segmentName(long segment) {
+        return String.format("%016d.log", segment);
+    }
+
+    // One recipient's segments. Guarded by its own monitor.
+    private class Log {
+        private final String recipient;
+        private final File dir;
+        private boolean loaded = false;
+        // Set once the log is fully read and its files are gone; a new Log
+        // takes its place on the next append.
+        private boolean removed = false;
+        private long readSegment = 1;
+        private long readOffset = 0;
+        private long writeSegment = 1;
+        private long writeSize = 0;
+        private FileChannel writer;
+
+        Log(String recipient, File dir) {
+            this.recipient = recipient;
+            this.dir = dir;
+        }
+
+        private void load() throws IOException {
+            if (loaded)
+                return;
+            loaded = true;
+            dir.mkdirs();
+            long[] segments = segments();
+            if (segments.length == 0)
+                return;
+            readSegment = segments[0];
+            // Appends after a restart go to a new segment, so a write torn by
+            // a crash can only be at the end of a segment nobody appends to.
+            writeSegment = segments[segments.length - 1] + 1;
+            File cursor = new File(dir, "cursor");
+            if (cursor.exists()) {
+                String[] parts = new String(Files.readAllBytes(cursor.toPath()), StandardCharsets.UTF_8).trim()
+                        .split(" ");
+                long segment = Long.parseLong(parts[0]);
+                if (segment >= readSegment && segment < writeSegment) {
+                    readSegment = segment;
+                    readOffset = Long.parseLong(parts[1]);
+                }
+            }
+        }
+
+        private long[] segments() {
+            String[] names = dir.list((d, name) -> name.endsWith(".log"));
+            if (names == null)
+                return new long[0];
+            long[] segments = new long[names.length];
+            for (int i = 0; i < names.length; i++) {
+                segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - 4));
+            }
+            Arrays.sort(segments);
+            return segments;
+        }
+
+        void append(ByteBuffer record) throws IOException {
+            load();
+            if (writer != null && writeSize >= segmentBytes) {
+                writer.force(false);
+                writer.close();
+                writer = null;
+                writeSegment++;
+                writeSize = 0;
+            }
+            if (writer == null) {
+                writer = FileChannel.open(new File(dir, segmentName(writeSegment)).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer src = record.duplicate();
+            try {
+                while (src.hasRemaining()) {
+                    writeSize += writer.write(src);
+                }
+            } catch (IOException e) {
+                // Leave whatever part was written behind; later frames go to a
+                // fresh segment.
+                writer.close();
+                writer = null;
+                writeSegment++;
+                writeSize = 0;
+                throw e;
+            }
+            if (syncMillis > 0) {
+                dirty.add(this);
+            } else {
+                writer.force(false);
+            }
+        }
+
+        void replay(Predicate<ByteBuffer> deliver) throws IOException {
+            load();
+            long startSegment = readSegment;
+            long startOffset = readOffset;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (true) {
+                File file = new File(dir, segmentName(readSegment));
+                boolean more = false;
+                if (file.exists()) {
+                    try (FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        more = replaySegment(reader, header, deliver);
+                    }
+                }
+                if (more || readSegment >= writeSegment)
+                    break;
+                // Everything in this segment has been delivered.
+                Files.deleteIfExists(file.toPath());
+                readSegment++;
+                readOffset = 0;
+            }
+            if (readSegment == writeSegment && readOffset >= writeSize) {
+                compact();
+            } else if (readSegment != startSegment || readOffset != startOffset) {
+                saveCursor();
+            }
+        }
+
+        // Returns true if deliver() refused a frame, false at the end of the
+        // segment.
+        private boolean replaySegment(FileChannel reader, ByteBuffer header, Predicate<ByteBuffer> deliver)
+                throws IOException {
+            long size = reader.size();
+            while (readOffset + 4 <= size) {
+                header.clear();
+                readFully(reader, header, readOffset);
+                int length = header.getInt(0);
+                if (length < 1 || length > BinaryCodec.MAX_FRAME_LENGTH || readOffset + 4 + length > size) {
+                    // A torn write at the end of the log; nothing after it.
+                    System.out.println("Offline log of " + recipient + " is truncated at "
+                            + segmentName(readSegment) + ":" + readOffset);
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(4 + length);
+                readFully(reader, record, readOffset);
+                record.flip();
+                if (!deliver.test(record))
+                    return true;
+                readOffset += 4 + length;
+            }
+            return false;
+        }
+
+        private void readFully(FileChannel reader, ByteBuffer dst, long position) throws IOException {
+            while (dst.hasRemaining()) {
+                if (reader.read(dst, position + dst.position()) < 0)
+                    throw new IOException("Unexpected end of offline log");
+            }
+        }
+
+        private void saveCursor() throws IOException {
+            File tmp = new File(dir, "cursor.tmp");
+            Files.write(tmp.toPath(), (readSegment + " " + readOffset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(dir, "cursor").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Everything has been read: drop the files and this Log.
+        private void compact() throws IOException {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            dirty.remove(this);
+            for (long segment : segments()) {
+                Files.deleteIfExists(new File(dir, segmentName(segment)).toPath());
+            }
+            Files.deleteIfExists(new File(dir, "cursor").toPath());
+            dir.delete();
+            removed = true;
+            logs.remove(recipient, this);
+        }
+    }
+}
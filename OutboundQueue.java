@@ -0,0 +1,295 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import protocol.Frame;
+
+// Bounded queue of frames waiting to be written to one client. Senders never
+// block on it; when it is full the configured OverflowPolicy decides what
+// happens to the frame. Only the connection's own writer takes from it.
+//
+// Frames wait in one of three lanes, each bounded by the capacity, so that
+// file data never holds up anything else: control frames are taken first,
+// then chat frames, with a bulk frame (one file chunk) after every
+// CHAT_BURST chat frames while both are waiting. Frames keep their order
+// within a lane only.
+public class OutboundQueue {
+    public enum Lane {
+        // Acknowledgements, flow control and the handshake.
+        CONTROL,
+        // Messages, group changes and file offers, which must stay in order
+        // with each other.
+        CHAT,
+        // File data.
+        BULK;
+
+        static Lane of(Frame frame) {
+            switch (frame.getType()) {
+                case ACK:
+                case FILE_ACK:
+                case GROUP_INFO:
+                case WELCOME:
+                case RECEIPT:
+                    return CONTROL;
+                case FILE:
+                case GROUP_FILE:
+                case FILE_CHUNK:
+                    return BULK;
+                default:
+                    return CHAT;
+            }
+        }
+    }
+
+    private static final int CHAT_BURST = 16;
+
+    public enum OverflowPolicy {
+        // Discard the frame.
+        DROP,
+        // Close the slow connection; the recipient is then treated as offline.
+        DISCONNECT,
+        // Hand the frame (and every later one, to keep ordering) back to the
+        // caller for the offline store until the writer has caught up.
+        SPILL
+    }
+
+    public enum Result {
+        QUEUED, DROPPED, SPILLED, DISCONNECTED
+    }
+
+    private final ArrayDeque<Frame>[] lanes;
+    private int size = 0;
+    // Chat frames taken in a row while bulk frames were waiting.
+    private int chatStreak = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private boolean spilled = false;
+    private boolean slow = false;
+    private boolean closed = false;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.lanes = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    public Result offer(Frame frame) {
+        return offer(frame, null);
+    }
+
+    // The spill action (if any) runs under the queue lock when the frame is
+    // spilled, so it is stored before the writer can start replaying.
+    public Result offer(Frame frame, Consumer<Frame> spill) {
+        lock.lock();
+        try {
+            if (closed)
+                return Result.DISCONNECTED;
+            Lane lane = Lane.of(frame);
+            ArrayDeque<Frame> frames = lanes[lane.ordinal()];
+            if (lane == Lane.BULK) {
+                // Bulk senders wait for hasRoom(Lane.BULK) and are called
+                // again from onOutboundDrained; a full bulk lane is not a
+                // slow chat consumer.
+                if (frames.size() >= capacity)
+                    return Result.DROPPED;
+            } else if (spilled) {
+                return spill(frame, spill);
+            } else if (frames.size() >= capacity) {
+                markSlow(true);
+                switch (policy) {
+                    case DROP:
+                        ServerMetrics.droppedFrames.increment();
+                        return Result.DROPPED;
+                    case DISCONNECT:
+                        ServerMetrics.slowConsumerDisconnects.increment();
+                        return Result.DISCONNECTED;
+                    default:
+                        spilled = true;
+                        return spill(frame, spill);
+                }
+            }
+            frames.add(frame);
+            size++;
+            ServerMetrics.queuedFrames.incrementAndGet();
+            ServerMetrics.recordQueueDepth(size);
+            notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Result spill(Frame frame, Consumer<Frame> spill) {
+        ServerMetrics.spilledFrames.increment();
+        if (spill != null) {
+            spill.accept(frame);
+        }
+        return Result.SPILLED;
+    }
+
+    // Blocks until a frame is available; returns null once the queue is closed.
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            return size == 0 || closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to the given time for a frame; returns null on timeout or close.
+    public Frame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (size == 0 && !closed && remaining > 0) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return size == 0 || closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSpilled() {
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Leaves spill mode and runs the replay of the spilled backlog while still
+    // holding the lock, so no live frame can overtake the replayed ones.
+    public void resume(Runnable replay) {
+        lock.lock();
+        try {
+            if (!spilled || closed)
+                return;
+            spilled = false;
+            replay.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether offer() would queue a frame of the lane right now. With the
+    // spill policy a full chat or control lane enters spill mode, so a caller
+    // that has not built its frame yet can wait for the writer to drain the
+    // queue instead.
+    public boolean hasRoom(Lane lane) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            int queued = lanes[lane.ordinal()].size();
+            if (lane == Lane.BULK)
+                return queued < capacity;
+            if (spilled)
+                return false;
+            if (queued < capacity)
+                return true;
+            markSlow(true);
+            if (policy == OverflowPolicy.SPILL) {
+                spilled = true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs action while holding the lock, so that frames it queues cannot be
+    // overtaken by frames other threads offer meanwhile.
+    public void runLocked(Runnable action) {
+        lock.lock();
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            ServerMetrics.queuedFrames.addAndGet(-size);
+            for (ArrayDeque<Frame> frames : lanes) {
+                frames.clear();
+            }
+            size = 0;
+            markSlow(false);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame removeFirst() {
+        ArrayDeque<Frame> control = lanes[Lane.CONTROL.ordinal()];
+        ArrayDeque<Frame> chat = lanes[Lane.CHAT.ordinal()];
+        ArrayDeque<Frame> bulk = lanes[Lane.BULK.ordinal()];
+        Frame frame;
+        if (!control.isEmpty()) {
+            frame = control.poll();
+        } else if (!bulk.isEmpty() && (chat.isEmpty() || chatStreak >= CHAT_BURST)) {
+            frame = bulk.poll();
+            chatStreak = 0;
+        } else {
+            frame = chat.poll();
+            if (!bulk.isEmpty()) {
+                chatStreak++;
+            }
+        }
+        size--;
+        ServerMetrics.queuedFrames.decrementAndGet();
+        if (slow && control.size() <= capacity / 2 && chat.size() <= capacity / 2) {
+            markSlow(false);
+        }
+        return frame;
+    }
+
+    // A consumer counts as slow from the moment its queue fills up until the
+    // writer has drained it back to half capacity.
+    private void markSlow(boolean nowSlow) {
+        if (slow == nowSlow)
+            return;
+        slow = nowSlow;
+        if (nowSlow) {
+            ServerMetrics.slowConsumers.incrementAndGet();
+        } else {
+            ServerMetrics.slowConsumers.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Length-prefixed binary framing. A connection that starts with PREAMBLE
+// speaks this format for the rest of its life; anything else is the text
+// protocol. Every frame is
+//
+//   int32  length of everything after this field
+//   byte   MessageType code, | SEQ_FLAG if a sequence number follows
+//   int64  sequence number (see Frame.getSeq), only with SEQ_FLAG
+//   str    msgId, sender, target, name   (uint16 length + UTF-8, 0xFFFF = null)
+//   bytes  payload, up to the end of the frame (UTF-8 text or raw file data)
+//
+// so message content and file names may contain '|' and newlines, and files
+// travel without base64.
+public final class BinaryCodec {
+    public static final byte[] PREAMBLE = { 0, 'C', 'H', 1 };
+    // The longest frame either side accepts: whole files for version 1
+    // clients, history pages and batches from the server.
+    public static final int MAX_FRAME_LENGTH = 128 * 1024 * 1024;
+    // The longest frame the server accepts from a client. Files travel in
+    // FileTransfer.CHUNK_BYTES chunks, so no frame of a client needs more;
+    // before HELLO or LOGIN only MAX_LOGIN_FRAME_LENGTH.
+    public static final int MAX_CLIENT_FRAME_LENGTH = 1024 * 1024;
+    public static final int MAX_LOGIN_FRAME_LENGTH = 4 * 1024;
+    // What a frame read from a stream starts with; the buffer grows as more
+    // of it arrives, not to the length the peer claims.
+    private static final int READ_STEP = 64 * 1024;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final int SEQ_FLAG = 0x80;
+
+    private BinaryCodec() {
+    }
+
+    // Bytes encode() will write for this frame, length prefix included.
+    public static int encodedSize(Frame frame) {
+        return 4 + 1 + (frame.getSeq() == 0 ? 0 : 8) + stringSize(frame.getMsgId()) + stringSize(frame.getSender())
+                + stringSize(frame.getTarget()) + stringSize(frame.getName()) + payloadSize(frame);
+    }
+
+    public static ByteBuffer encode(Frame frame) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(frame));
+        encode(frame, buf);
+        buf.flip();
+        return buf;
+    }
+
+    // Writes the frame at dst's position without allocating.
+    public static void encode(Frame frame, ByteBuffer dst) {
+        int start = dst.position();
+        dst.putInt(0);
+        putHeader(frame, dst);
+        if (frame.getType().binaryPayload) {
+            dst.put(frame.getData());
+        } else if (frame.getText() != null) {
+            Utf8.put(dst, frame.getText());
+        }
+        dst.putInt(start, dst.position() - start - 4);
+    }
+
+    // Writes everything of a file region frame but the region itself, which
+    // the caller sends straight from the file.
+    public static void encodeHeader(Frame frame, ByteBuffer dst) {
+        dst.putInt(encodedSize(frame) - 4);
+        putHeader(frame, dst);
+    }
+
+    private static void putHeader(Frame frame, ByteBuffer dst) {
+        if (frame.getSeq() == 0) {
+            dst.put(frame.getType().code);
+        } else {
+            dst.put((byte) (frame.getType().code | SEQ_FLAG));
+            dst.putLong(frame.getSeq());
+        }
+        putString(dst, frame.getMsgId());
+        putString(dst, frame.getSender());
+        putString(dst, frame.getTarget());
+        putString(dst, frame.getName());
+    }
+
+    // Decodes one frame from src. Returns null, leaving src untouched, when it
+    // does not hold a complete frame yet; frames of unknown type are skipped.
+    public static Frame decode(ByteBuffer src) throws IOException {
+        while (true) {
+            int length = pendingFrameLength(src);
+            if (length < 0 || src.remaining() < 4 + length)
+                return null;
+            int start = src.position();
+            int end = start + 4 + length;
+            src.position(start + 4);
+            int code = src.get();
+            MessageType type = MessageType.fromCode((byte) (code & ~SEQ_FLAG));
+            if (type == null) {
+                src.position(end);
+                continue;
+            }
+            long seq = 0;
+            if ((code & SEQ_FLAG) != 0) {
+                if (src.position() + 8 > end)
+                    throw new IOException("Field runs past end of frame");
+                seq = src.getLong();
+            }
+            String msgId = getString(src, end);
+            String sender = getString(src, end);
+            String target = getString(src, end);
+            String name = getString(src, end);
+            int payloadLength = end - src.position();
+            Frame frame;
+            if (type.binaryPayload) {
+                byte[] data = new byte[payloadLength];
+                src.get(data);
+                frame = Frame.binary(type, msgId, sender, target, name, data);
+            } else {
+                String text = payloadLength == 0 && type != MessageType.MSG && type != MessageType.GROUP_MSG
+                        ? null : readUtf8(src, payloadLength);
+                frame = Frame.text(type, msgId, sender, target, name, text);
+            }
+            src.position(end);
+            return seq == 0 ? frame : frame.withSeq(seq);
+        }
+    }
+
+    // Length of the frame at src's position, or -1 if not even the length
+    // prefix has arrived. Throws if it is longer than maxLength.
+    public static int pendingFrameLength(ByteBuffer src, int maxLength) throws IOException {
+        if (src.remaining() < 4)
+            return -1;
+        int length = src.getInt(src.position());
+        if (length < 1 || length > maxLength)
+            throw new IOException("Invalid frame length " + length);
+        return length;
+    }
+
+    public static int pendingFrameLength(ByteBuffer src) throws IOException {
+        return pendingFrameLength(src, MAX_FRAME_LENGTH);
+    }
+
+    // Reads the next frame from in, refusing one longer than maxLength;
+    // null if its type is unknown.
+    public static Frame read(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > maxLength)
+            throw new IOException("Invalid frame length " + length);
+        byte[] buf = new byte[4 + Math.min(length, READ_STEP)];
+        int filled = 4;
+        while (filled < 4 + length) {
+            if (filled == buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(4L + length, 2L * buf.length));
+            }
+            int n = in.read(buf, filled, buf.length - filled);
+            if (n < 0)
+                throw new EOFException();
+            filled += n;
+        }
+        ByteBuffer src = ByteBuffer.wrap(buf);
+        src.putInt(0, length);
+        return decode(src);
+    }
+
+    private static int payloadSize(Frame frame) {
+        if (frame.hasFileRegion())
+            return frame.getFileLength();
+        if (frame.getType().binaryPayload)
+            return frame.getData().length;
+        String text = frame.getText();
+        return text == null ? 0 : Utf8.length(text);
+    }
+
+    private static int stringSize(String s) {
+        return 2 + (s == null ? 0 : Utf8.length(s));
+    }
+
+    private static void putString(ByteBuffer dst, String s) {
+        if (s == null) {
+            dst.putShort((short) NULL_STRING);
+            return;
+        }
+        int length = Utf8.length(s);
+        if (length >= NULL_STRING)
+            throw new IllegalArgumentException("Field too long: " + length + " bytes");
+        dst.putShort((short) length);
+        Utf8.put(dst, s);
+    }
+
+    private static String getString(ByteBuffer src, int frameEnd) throws IOException {
+        if (src.position() + 2 > frameEnd)
+            throw new IOException("Field runs past end of frame");
+        int length = src.getShort() & 0xFFFF;
+        if (length == NULL_STRING)
+            return null;
+        if (src.position() + length > frameEnd)
+            throw new IOException("Field runs past end of frame");
+        return readUtf8(src, length);
+    }
+
+    private static String readUtf8(ByteBuffer src, int length) {
+        String s;
+        if (src.hasArray()) {
+            s = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+            src.position(src.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,56 @@
+package protocol;
+
+// How conversations are named on the wire: a direct conversation by the
+// other user's name, a group conversation by GROUP_PREFIX and the group name.
+// Sequence numbers (Frame.getSeq) count the messages of one conversation, both
+// directions of a direct conversation together; the server keeps them by
+// key(), which is the same from either end.
+public final class Conversation {
+    public static final String GROUP_PREFIX = "#";
+
+    private Conversation() {
+    }
+
+    public static String group(String groupName) {
+        return GROUP_PREFIX + groupName;
+    }
+
+    // Whether name can be a user's: not empty, not starting with the group
+    // prefix and without the '|' that keys are joined with, so that no two
+    // conversations share a key.
+    public static boolean isUserName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith(GROUP_PREFIX) && name.indexOf('|') < 0;
+    }
+
+    public static boolean isGroup(String conversation) {
+        return conversation.startsWith(GROUP_PREFIX);
+    }
+
+    public static String groupName(String conversation) {
+        return conversation.substring(GROUP_PREFIX.length());
+    }
+
+    // The conversation a message or file offer belongs to, as named by user.
+    public static String of(Frame frame, String user) {
+        switch (frame.getType()) {
+            case GROUP_MSG:
+            case GROUP_FILE:
+                return group(frame.getTarget());
+            case FILE_START:
+                if (frame.getText() != null && frame.getText().startsWith(MessageType.GROUP_FILE.name() + " "))
+                    return group(frame.getTarget());
+                break;
+            default:
+                break;
+        }
+        return user.equals(frame.getSender()) ? frame.getTarget() : frame.getSender();
+    }
+
+    // The conversation user calls conversation, the same for both of its
+    // users. Users are named as isUserName allows, so keys cannot collide.
+    public static String key(String user, String conversation) {
+        if (isGroup(conversation))
+            return conversation;
+        return user.compareTo(conversation) <= 0 ? user + "|" + conversation : conversation + "|" + user;
+    }
+}
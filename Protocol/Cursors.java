@@ -0,0 +1,41 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The highest sequence number a client has of each conversation (named as in
+// Conversation), as a SYNC frame carries them: for every conversation its
+// name (DataOutput.writeUTF) followed by the number (int64).
+public final class Cursors {
+    private Cursors() {
+    }
+
+    public static byte[] encode(Map<String, Long> cursors) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                out.writeUTF(cursor.getKey());
+                out.writeLong(cursor.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Map<String, Long> decode(byte[] data) throws IOException {
+        Map<String, Long> cursors = new LinkedHashMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        while (in.available() > 0) {
+            String conversation = in.readUTF();
+            cursors.put(conversation, in.readLong());
+        }
+        return cursors;
+    }
+}
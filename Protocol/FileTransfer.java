@@ -0,0 +1,162 @@
+package protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+// A file sent in chunks rather than as one FILE frame, so no hop ever holds
+// the whole file. The sender announces it with FILE_START, then streams
+// FILE_CHUNK frames of CHUNK_BYTES (the last one shorter); the receiving side
+// answers with FILE_ACK carrying how many bytes it has, and the sender keeps
+// at most WINDOW_CHUNKS chunks beyond that in flight. The first FILE_ACK,
+// the answer to FILE_START, is where to resume: an interrupted transfer
+// continues from the last acknowledged offset. The SHA-256 in FILE_START is
+// checked once every byte has arrived.
+//
+// The server is the receiving side of the upload. Recipients get the same
+// FILE_START once the upload is complete and download the file the same way,
+// with the server sending the chunks.
+//
+//   FILE_START|transferId|sender|target|fileName|kind size sha256
+//   FILE_CHUNK|transferId|offset|data
+//   FILE_ACK|transferId|offset
+public final class FileTransfer {
+    public static final int CHUNK_BYTES = 64 * 1024;
+    public static final int WINDOW_CHUNKS = 8;
+    // Transfer ids name files on both ends.
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]{1,100}");
+
+    private final String transferId;
+    private final String sender;
+    private final String target;
+    private final String fileName;
+    private final MessageType kind;
+    private final long size;
+    private final String sha256;
+
+    // kind is FILE for a user target, GROUP_FILE for a group.
+    public FileTransfer(String transferId, String sender, String target, String fileName, MessageType kind,
+            long size, String sha256) {
+        this.transferId = transferId;
+        this.sender = sender;
+        this.target = target;
+        this.fileName = fileName;
+        this.kind = kind;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    // Returns null for a FILE_START that does not describe a valid transfer.
+    public static FileTransfer fromStartFrame(Frame frame) {
+        String[] meta = frame.getText() == null ? new String[0] : frame.getText().split(" ");
+        if (meta.length != 3 || !isValidId(frame.getMsgId()) || frame.getTarget() == null)
+            return null;
+        MessageType kind = MessageType.fromName(meta[0]);
+        if (kind != MessageType.FILE && kind != MessageType.GROUP_FILE)
+            return null;
+        long size;
+        try {
+            size = Long.parseLong(meta[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (size < 0 || meta[2].length() != 64)
+            return null;
+        return new FileTransfer(frame.getMsgId(), frame.getSender(), frame.getTarget(), frame.getName(), kind,
+                size, meta[2]);
+    }
+
+    public static boolean isValidId(String transferId) {
+        return transferId != null && VALID_ID.matcher(transferId).matches() && !transferId.startsWith(".");
+    }
+
+    public Frame toStartFrame() {
+        return Frame.text(MessageType.FILE_START, transferId, sender, target, fileName,
+                kind.name() + " " + size + " " + sha256);
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public MessageType getKind() {
+        return kind;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public static String sha256(byte[] data) {
+        MessageDigest digest = sha256Digest();
+        digest.update(data);
+        return hex(digest.digest());
+    }
+
+    // Hex SHA-256 of the file's first length bytes, read a chunk at a time.
+    public static String sha256(File file, long length) throws IOException {
+        MessageDigest digest = sha256Digest();
+        update(digest, file, length);
+        return hex(digest.digest());
+    }
+
+    // Hex SHA-256 of what was fed to a digest from sha256Digest().
+    public static String sha256(MessageDigest digest) {
+        return hex(digest.digest());
+    }
+
+    // Feeds the file's first length bytes to digest, a chunk at a time.
+    public static void update(MessageDigest digest, File file, long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), length - position));
+                int n = channel.read(buf, position);
+                if (n < 0)
+                    throw new IOException("File shorter than expected: " + file);
+                buf.flip();
+                digest.update(buf);
+                position += n;
+            }
+        }
+    }
+
+    public static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
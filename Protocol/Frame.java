@@ -0,0 +1,394 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+// One protocol message, independent of how it travels on the wire. Which of
+// the fields a type uses is listed in TextCodec; unused fields are null.
+//
+// The payload is either text (message content, member lists, ...) or raw
+// bytes (file data). File data read from the text protocol stays base64 until
+// someone asks for the bytes, and a frame parsed from a text line remembers
+// that line so relaying it to another text client costs nothing. A frame
+// marked shared() is on its way to many connections: each wire format then
+// encodes it only once and every connection writes the same bytes.
+//
+// Messages and file offers relayed by the server carry the sequence number it
+// gave them within their conversation (see Conversation); 0 means none.
+//
+// A file chunk may instead point at a region of an open file; binary writers
+// then send the frame header and transfer the region from the file to the
+// socket, so the bytes never enter the heap.
+public final class Frame {
+    private final MessageType type;
+    private final String msgId;
+    private final String sender;
+    private final String target;
+    private final String name;
+    private final String text;
+    private long seq;
+    private volatile byte[] data;
+    private volatile String base64;
+    private volatile String textLine;
+    private volatile boolean shared;
+    private volatile byte[] textEncoding;
+    private volatile byte[] binaryEncoding;
+    private volatile Frame compression;
+    private volatile Frame unsequenced;
+    private volatile boolean incompressible;
+    private FileChannel file;
+    private long filePosition;
+    private int fileLength;
+
+    private Frame(MessageType type, String msgId, String sender, String target, String name, String text,
+            byte[] data, String base64) {
+        this.type = type;
+        this.msgId = msgId;
+        this.sender = sender;
+        this.target = target;
+        this.name = name;
+        this.text = text;
+        this.data = data;
+        this.base64 = base64;
+    }
+
+    public static Frame text(MessageType type, String msgId, String sender, String target, String name,
+            String text) {
+        return new Frame(type, msgId, sender, target, name, text, null, null);
+    }
+
+    public static Frame binary(MessageType type, String msgId, String sender, String target, String name,
+            byte[] data) {
+        return new Frame(type, msgId, sender, target, name, null, data, null);
+    }
+
+    static Frame base64(MessageType type, String msgId, String sender, String target, String name,
+            String base64) {
+        return new Frame(type, msgId, sender, target, name, null, null, base64);
+    }
+
+    // MSG or GROUP_MSG.
+    public static Frame message(MessageType type, String msgId, String sender, String target, String content) {
+        return text(type, msgId, sender, target, null, content);
+    }
+
+    // FILE or GROUP_FILE.
+    public static Frame file(MessageType type, String msgId, String sender, String target, String fileName,
+            byte[] data) {
+        return binary(type, msgId, sender, target, fileName, data);
+    }
+
+    public static Frame createGroup(String groupName, String creator, String members) {
+        return text(MessageType.CREATE_GROUP, null, creator, groupName, null, members);
+    }
+
+    public static Frame leaveGroup(String groupName, String username) {
+        return text(MessageType.LEAVE_GROUP, null, username, groupName, null, null);
+    }
+
+    public static Frame renameGroup(String groupName, String newName, String username) {
+        return text(MessageType.UPDATE_GROUP, null, username, groupName, newName, null);
+    }
+
+    public static Frame addToGroup(String groupName, String adder, String newUser) {
+        return text(MessageType.ADD_TO_GROUP, null, adder, groupName, newUser, null);
+    }
+
+    // A GROUP_INFO request; the server answers with groupInfo(name, members).
+    public static Frame groupInfoRequest(String groupName) {
+        return text(MessageType.GROUP_INFO, null, null, groupName, null, null);
+    }
+
+    public static Frame login(String username) {
+        return text(MessageType.LOGIN, null, username, null, null, null);
+    }
+
+    // capabilities is a space-separated list, e.g. FrameCompressor.CAPABILITY.
+    public static Frame hello(String username, int version, String features) {
+        return text(MessageType.HELLO, null, username, null, String.valueOf(version), features);
+    }
+
+    // The version and the features of the HELLO that the server speaks too.
+    public static Frame welcome(int version, String features) {
+        return text(MessageType.WELCOME, null, null, null, String.valueOf(version), features);
+    }
+
+    // The reader has got (DELIVERED) or seen (READ) everything up to seq in
+    // the conversation; see Conversation for how conversations are named.
+    public static Frame receipt(String reader, String conversation, String status, long seq) {
+        return text(MessageType.RECEIPT, null, reader, conversation, status, String.valueOf(seq));
+    }
+
+    // Up to limit messages and file offers of the conversation numbered below
+    // before, or the latest if before is 0; see historyPage.
+    public static Frame historyRequest(String conversation, long before, int limit) {
+        return text(MessageType.HISTORY, null, null, conversation, String.valueOf(before), String.valueOf(limit));
+    }
+
+    // The answer to a HISTORY request: records are the frames, oldest first,
+    // in the binary framing, and next is the before of the page preceding
+    // this one, 0 if there is none.
+    public static Frame historyPage(String conversation, long next, byte[] records) {
+        return binary(MessageType.HISTORY_PAGE, null, null, conversation, String.valueOf(next), records);
+    }
+
+    // The highest sequence number the client has of each conversation; see
+    // Cursors.
+    public static Frame sync(Map<String, Long> cursors) {
+        return binary(MessageType.SYNC, null, null, null, null, Cursors.encode(cursors));
+    }
+
+    // The answer to SYNC: the frames the client missed, in the binary
+    // framing.
+    public static Frame syncData(byte[] frames) {
+        return binary(MessageType.SYNC_DATA, null, null, null, null, frames);
+    }
+
+    // The messages and file offers with every word of query, best match
+    // first, from the offset-th on; in the conversation, or in all the
+    // user can read if conversation is empty.
+    public static Frame search(String conversation, int offset, String query) {
+        return text(MessageType.SEARCH, null, null, conversation, String.valueOf(offset), query);
+    }
+
+    // The answer to SEARCH: frames are the matches in the binary framing,
+    // and next is the offset of the following page, 0 if there is none.
+    public static Frame searchResults(String conversation, int next, byte[] frames) {
+        return binary(MessageType.SEARCH_RESULTS, null, null, conversation, String.valueOf(next), frames);
+    }
+
+    public static Frame ack(String msgId, String status) {
+        return text(MessageType.ACK, msgId, null, null, status, null);
+    }
+
+    public static Frame groupCreated(String groupName, String members) {
+        return text(MessageType.GROUP_CREATED, null, null, groupName, null, members);
+    }
+
+    public static Frame groupUpdate(String groupName, String kind, String data) {
+        return text(MessageType.GROUP_UPDATE, null, null, groupName, kind, data);
+    }
+
+    public static Frame groupInfo(String groupName, String members) {
+        return text(MessageType.GROUP_INFO, null, null, groupName, null, members);
+    }
+
+    // A piece of the file starting at offset; see FileTransfer.
+    public static Frame fileChunk(String transferId, long offset, byte[] data) {
+        return binary(MessageType.FILE_CHUNK, transferId, null, null, Long.toString(offset), data);
+    }
+
+    // The length bytes of file at offset, read only if a text client needs
+    // them. The channel must stay open until the frame has been written.
+    public static Frame fileChunk(String transferId, long offset, FileChannel file, int length) {
+        Frame frame = binary(MessageType.FILE_CHUNK, transferId, null, null, Long.toString(offset), null);
+        frame.file = file;
+        frame.filePosition = offset;
+        frame.fileLength = length;
+        return frame;
+    }
+
+    // The receiver has the first offset bytes of the transfer.
+    public static Frame fileAck(String transferId, long offset) {
+        return text(MessageType.FILE_ACK, transferId, null, null, Long.toString(offset), null);
+    }
+
+    // encoding is FrameBatch.DEFLATE or null; see FrameBatch.
+    static Frame batch(String encoding, byte[] frames) {
+        return binary(MessageType.BATCH, null, null, null, encoding, frames);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    // Position within its conversation, or 0.
+    public long getSeq() {
+        return seq;
+    }
+
+    // This frame with another sequence number; nothing encoded is carried
+    // over, as the encodings differ. A shared frame keeps its copy without
+    // one, shared too, so that every client without sequence numbers gets the
+    // same encoding.
+    public Frame withSeq(long seq) {
+        if (seq == this.seq)
+            return this;
+        if (seq == 0 && shared) {
+            Frame frame = unsequenced;
+            if (frame == null) {
+                frame = copyWithSeq(0).share();
+                unsequenced = frame;
+            }
+            return frame;
+        }
+        return copyWithSeq(seq);
+    }
+
+    private Frame copyWithSeq(long seq) {
+        Frame frame = new Frame(type, msgId, sender, target, name, text, data, base64);
+        frame.seq = seq;
+        frame.incompressible = incompressible;
+        frame.file = file;
+        frame.filePosition = filePosition;
+        frame.fileLength = fileLength;
+        return frame;
+    }
+
+    // This frame from another sender, e.g. the user of the connection it
+    // came in on rather than whoever it claims to be from.
+    public Frame withSender(String sender) {
+        if (sender == null ? this.sender == null : sender.equals(this.sender))
+            return this;
+        Frame frame = new Frame(type, msgId, sender, target, name, text, data, base64);
+        frame.seq = seq;
+        frame.incompressible = incompressible;
+        frame.file = file;
+        frame.filePosition = filePosition;
+        frame.fileLength = fileLength;
+        return frame;
+    }
+
+    public String getMsgId() {
+        return msgId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    // Recipient username or group name.
+    public String getTarget() {
+        return target;
+    }
+
+    // File name, ACK status, group update kind, new group name, added user or
+    // file transfer offset.
+    public String getName() {
+        return name;
+    }
+
+    // Text payload: message content, member list or update data.
+    public String getText() {
+        if (text == null && type.binaryPayload) {
+            return getBase64();
+        }
+        return text;
+    }
+
+    // Raw payload bytes as carried by the binary protocol.
+    public byte[] getData() {
+        byte[] d = data;
+        if (d == null) {
+            if (file != null) {
+                d = readFileRegion();
+            } else if (base64 != null) {
+                d = Base64.getDecoder().decode(base64);
+            } else if (text != null) {
+                d = text.getBytes(StandardCharsets.UTF_8);
+            } else {
+                d = new byte[0];
+            }
+            data = d;
+        }
+        return d;
+    }
+
+    // File payload as carried by the text protocol.
+    public String getBase64() {
+        String b = base64;
+        if (b == null) {
+            b = data == null && file == null ? "" : Base64.getEncoder().encodeToString(getData());
+            base64 = b;
+        }
+        return b;
+    }
+
+    public boolean hasFileRegion() {
+        return file != null;
+    }
+
+    public FileChannel getFile() {
+        return file;
+    }
+
+    public long getFilePosition() {
+        return filePosition;
+    }
+
+    public int getFileLength() {
+        return fileLength;
+    }
+
+    private byte[] readFileRegion() {
+        ByteBuffer buf = ByteBuffer.allocate(fileLength);
+        try {
+            while (buf.hasRemaining()) {
+                if (file.read(buf, filePosition + buf.position()) < 0)
+                    throw new IOException("File shorter than expected");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.array();
+    }
+
+    // Marks a frame whose payload is compressed already; see FrameCompressor.
+    public Frame incompressible() {
+        incompressible = true;
+        return this;
+    }
+
+    public boolean isIncompressible() {
+        return incompressible;
+    }
+
+    // Marks the frame for fan-out; see WireFormat.encode.
+    public Frame share() {
+        shared = true;
+        return this;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    byte[] cachedEncoding(WireFormat format) {
+        return format == WireFormat.TEXT ? textEncoding : binaryEncoding;
+    }
+
+    void cacheEncoding(WireFormat format, byte[] bytes) {
+        if (format == WireFormat.TEXT) {
+            textEncoding = bytes;
+        } else {
+            binaryEncoding = bytes;
+        }
+    }
+
+    // What FrameCompressor sends for a shared frame: a BATCH, or the frame.
+    Frame cachedCompression() {
+        return compression;
+    }
+
+    void cacheCompression(Frame frame) {
+        compression = frame;
+    }
+
+    String cachedTextLine() {
+        return textLine;
+    }
+
+    void cacheTextLine(String line) {
+        textLine = line;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + msgId + ", " + sender + " -> " + target + "]";
+    }
+}
@@ -0,0 +1,172 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Many frames sent as one BATCH frame, e.g. the offline backlog of a user who
+// just logged in. The payload is the frames in binary framing (BinaryCodec),
+// one after another, on text connections too; the name field says how the
+// payload is compressed ("deflate", "deflate-dict" for deflate with the
+// preset DICTIONARY, or null for not at all).
+public final class FrameBatch {
+    public static final String DEFLATE = "deflate";
+    public static final String DEFLATE_DICT = "deflate-dict";
+    // Strings chat frames are often made of, most frequent last, as deflate
+    // prefers near matches. Both sides must use exactly these bytes.
+    private static final byte[] DICTIONARY = ("FILE_STARTGROUP_FILEGROUP_UPDATEUSER_ADDEDUSER_REMOVEDNAME_CHANGED"
+            + "QUEUEDFAILEDREADDELIVERED"
+            + " sorry please would could should about there their where when what which who why how going"
+            + " tomorrow today tonight morning evening meeting later call back soon time work home right now"
+            + " really great good nice cool sure fine yeah yes no not don't can't I'm it's that's thanks"
+            + " thank you okay ok lol haha hi hey hello bye see you the and to a of in is it for on with"
+            + " this that have are was be do so but just me my we your").getBytes(StandardCharsets.UTF_8);
+    // Payloads smaller than this are not worth compressing.
+    private static final int MIN_DEFLATE_BYTES = 512;
+
+    private final int maxBytes;
+    private byte[] buf = new byte[256];
+    private int size = 0;
+    private int count = 0;
+
+    // maxBytes is a soft limit: isFull() turns true once it is reached, but a
+    // single larger frame still fits.
+    public FrameBatch(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void add(Frame frame) {
+        ensureCapacity(BinaryCodec.encodedSize(frame));
+        ByteBuffer dst = ByteBuffer.wrap(buf, size, buf.length - size);
+        BinaryCodec.encode(frame, dst);
+        size = dst.position();
+        count++;
+    }
+
+    // Adds a frame that is already binary encoded, length prefix included.
+    public void add(ByteBuffer record) {
+        int length = record.remaining();
+        ensureCapacity(length);
+        record.duplicate().get(buf, size, length);
+        size += length;
+        count++;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean isFull() {
+        return size >= maxBytes;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    // The BATCH frame of everything added so far; the batch is empty again
+    // afterwards.
+    public Frame toFrame(boolean deflate) {
+        Frame frame;
+        if (deflate && size >= MIN_DEFLATE_BYTES) {
+            frame = Frame.batch(DEFLATE, deflate(buf, size));
+        } else {
+            frame = Frame.batch(null, Arrays.copyOf(buf, size));
+        }
+        size = 0;
+        count = 0;
+        return frame;
+    }
+
+    public static List<Frame> unpack(Frame batch) throws IOException {
+        return unpack(batch, BinaryCodec.MAX_FRAME_LENGTH);
+    }
+
+    // The frames of batch, refusing to inflate it past maxLength bytes.
+    public static List<Frame> unpack(Frame batch, int maxLength) throws IOException {
+        byte[] data = batch.getData();
+        String encoding = batch.getName();
+        if (DEFLATE.equals(encoding) || DEFLATE_DICT.equals(encoding)) {
+            long start = System.nanoTime();
+            data = inflate(data, maxLength);
+            FrameCompressor.inflateNanos.add(System.nanoTime() - start);
+        } else if (encoding != null && !encoding.isEmpty()) {
+            // The text protocol turns a null encoding into an empty field.
+            throw new IOException("Unknown batch encoding " + encoding);
+        }
+        return decodeAll(data);
+    }
+
+    // The frames of data, one after another in the binary framing.
+    public static List<Frame> decodeAll(byte[] data) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer src = ByteBuffer.wrap(data);
+        Frame frame;
+        while ((frame = BinaryCodec.decode(src)) != null) {
+            frames.add(frame);
+        }
+        if (src.hasRemaining())
+            throw new IOException("Truncated frame in batch");
+        return frames;
+    }
+
+    static byte[] dictionary() {
+        return DICTIONARY;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buf.length - size < extra) {
+            buf = Arrays.copyOf(buf, Math.max(size + extra, buf.length * 2));
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int maxLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxLength, data.length * 4L));
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && inflater.needsDictionary()) {
+                    // Throws if the stream asks for a different dictionary.
+                    inflater.setDictionary(DICTIONARY);
+                    continue;
+                }
+                if (n == 0 && inflater.needsInput())
+                    throw new IOException("Truncated batch");
+                out.write(chunk, 0, n);
+                if (out.size() > maxLength)
+                    throw new IOException("Batch too large");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt batch", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// Per-frame compression for a connection that agreed on CAPABILITY in the
+// HELLO/WELCOME handshake. A frame worth compressing is sent as a BATCH of
+// one, so the receiving side needs nothing beyond FrameBatch.unpack:
+//
+//   - chat-sized frames are deflated with a preset dictionary of what chat
+//     frames usually contain (FrameBatch.DEFLATE_DICT), so that even short
+//     messages shrink;
+//   - file chunks are deflated one by one (FrameBatch.DEFLATE); each chunk
+//     stands alone, so a resumed transfer needs no compression state.
+//
+// Frames marked incompressible (chunks of files that are compressed already,
+// see isCompressible) are left alone, and so is any frame that does not
+// shrink by at least an eighth. One instance per connection, used by one
+// thread at a time (its writer).
+public final class FrameCompressor {
+    public static final String CAPABILITY = "deflate";
+    // Smaller frames are not worth the BATCH header.
+    private static final int MIN_BYTES = 96;
+
+    // Totals over every compressor of the process, for metrics.
+    public static final LongAdder framesCompressed = new LongAdder();
+    public static final LongAdder bytesBefore = new LongAdder();
+    public static final LongAdder bytesAfter = new LongAdder();
+    public static final LongAdder compressNanos = new LongAdder();
+    public static final LongAdder inflateNanos = new LongAdder();
+
+    // File types that deflate cannot shrink any further.
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "gif",
+            "webp", "heic", "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "mov", "mkv", "webm", "avi",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "apk", "docx", "xlsx", "pptx", "odt", "pdf"));
+
+    private final Deflater deflater = new Deflater();
+    private byte[] input = new byte[1024];
+    private byte[] output = new byte[1024];
+
+    // Whether chunks of a file with this name are worth compressing.
+    public static boolean isCompressible(String fileName) {
+        if (fileName == null)
+            return true;
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // The frame to send instead of frame: a compressed BATCH, or frame itself.
+    // Frames going to many connections are compressed once.
+    public Frame compress(Frame frame) {
+        if (!eligible(frame))
+            return frame;
+        if (frame.isShared()) {
+            Frame cached = frame.cachedCompression();
+            if (cached == null) {
+                cached = deflate(frame);
+                if (cached != frame) {
+                    cached.share();
+                }
+                frame.cacheCompression(cached);
+            }
+            return cached;
+        }
+        return deflate(frame);
+    }
+
+    private static boolean eligible(Frame frame) {
+        switch (frame.getType()) {
+            case BATCH:
+            case LOGIN:
+            case HELLO:
+            case WELCOME:
+                return false;
+            default:
+                return !frame.isIncompressible() && !frame.hasFileRegion();
+        }
+    }
+
+    private Frame deflate(Frame frame) {
+        int size = BinaryCodec.encodedSize(frame);
+        if (size < MIN_BYTES)
+            return frame;
+        long start = System.nanoTime();
+        if (input.length < size) {
+            input = new byte[Math.max(size, input.length * 2)];
+        }
+        BinaryCodec.encode(frame, ByteBuffer.wrap(input, 0, size));
+        boolean chunk = frame.getType().binaryPayload;
+        deflater.reset();
+        deflater.setLevel(chunk ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+        if (!chunk) {
+            deflater.setDictionary(FrameBatch.dictionary());
+        }
+        deflater.setInput(input, 0, size);
+        deflater.finish();
+        // Anything that comes out bigger than this is not worth sending.
+        int limit = size - size / 8;
+        if (output.length < limit) {
+            output = new byte[Math.max(limit, output.length * 2)];
+        }
+        int length = 0;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(output, length, limit - length);
+        }
+        compressNanos.add(System.nanoTime() - start);
+        if (!deflater.finished())
+            return frame;
+        framesCompressed.increment();
+        bytesBefore.add(size);
+        bytesAfter.add(length);
+        return Frame.batch(chunk ? FrameBatch.DEFLATE : FrameBatch.DEFLATE_DICT, Arrays.copyOf(output, length));
+    }
+}
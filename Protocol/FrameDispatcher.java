@@ -0,0 +1,27 @@
+package protocol;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Routes decoded frames to their handlers through a table indexed by type,
+// instead of a chain of type comparisons. C is whatever the handlers need to
+// act on (the server's per-connection handler, the client, ...). Build the
+// table once and share it; dispatch() does not allocate.
+public final class FrameDispatcher<C> {
+    private final Map<MessageType, BiConsumer<C, Frame>> handlers = new EnumMap<>(MessageType.class);
+
+    public FrameDispatcher<C> on(MessageType type, BiConsumer<C, Frame> handler) {
+        handlers.put(type, handler);
+        return this;
+    }
+
+    // Returns false if no handler is registered for the frame's type.
+    public boolean dispatch(C context, Frame frame) {
+        BiConsumer<C, Frame> handler = handlers.get(frame.getType());
+        if (handler == null)
+            return false;
+        handler.accept(context, frame);
+        return true;
+    }
+}
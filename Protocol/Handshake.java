@@ -0,0 +1,132 @@
+package protocol;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// What a connection speaks, agreed on when it opens. The client sends the
+// protocol version it speaks and the optional features it can handle; the
+// server answers with the lower of the two versions and the features both
+// support, before anything else, and from then on neither side uses a feature
+// that is not in the answer. Clients that open with just their username
+// (text) or LOGIN (binary) speak version 1, which has none of the features.
+//
+//   HELLO|username|version|feature feature...
+//   WELCOME|version|feature feature...
+public final class Handshake {
+    // 1: the username (or LOGIN) is all there is. 2: HELLO and WELCOME.
+    public static final int VERSION = 2;
+    public static final int LEGACY_VERSION = 1;
+
+    // Binary framing (BinaryCodec). The framing of a connection is fixed by
+    // how it opens; agreeing on it tells a text client it may open with the
+    // preamble next time.
+    public static final String BINARY = "binary";
+    // Per-frame compression (FrameCompressor); compressed frames are BATCH
+    // frames, so it is only agreed on together with BATCHING.
+    public static final String COMPRESSION = FrameCompressor.CAPABILITY;
+    // BATCH frames (FrameBatch), e.g. the offline backlog in a few frames.
+    public static final String BATCHING = "batch";
+    // Files as FILE_START, FILE_CHUNK and FILE_ACK (FileTransfer) rather
+    // than one FILE frame each.
+    public static final String CHUNKED_FILES = "chunked";
+    // Messages and file offers carry their sequence number in the
+    // conversation (Frame.getSeq, also on the ACK to the sender), and
+    // delivery and read state travel as cumulative RECEIPT watermarks rather
+    // than one ACK per message.
+    public static final String SEQUENCES = "seq";
+    // HISTORY requests for earlier pages of a conversation (HistoryStore).
+    // Pages are found by sequence number and hold the frames as they were
+    // stored, so only together with SEQUENCES and CHUNKED_FILES.
+    public static final String HISTORY = "history";
+    // SYNC after WELCOME: the client says what it has of each conversation
+    // and gets what it missed in one SYNC_DATA frame, read from the history,
+    // so only together with HISTORY.
+    public static final String SYNC = "sync";
+    // SEARCH for messages by their words (SearchIndex); results are the
+    // stored frames, so only together with HISTORY.
+    public static final String SEARCH = "search";
+
+    private static final Handshake LEGACY = new Handshake(LEGACY_VERSION, Collections.<String>emptySet());
+
+    private final int version;
+    private final Set<String> features;
+
+    public Handshake(int version, Collection<String> features) {
+        this.version = version;
+        this.features = Collections.unmodifiableSet(new LinkedHashSet<>(features));
+    }
+
+    // A connection that never sent HELLO.
+    public static Handshake legacy() {
+        return LEGACY;
+    }
+
+    // From a HELLO or WELCOME; null if it carries no valid version.
+    public static Handshake fromFrame(Frame frame) {
+        int version;
+        try {
+            version = Integer.parseInt(frame.getName());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (version < LEGACY_VERSION)
+            return null;
+        Set<String> features = new LinkedHashSet<>();
+        if (frame.getText() != null) {
+            for (String feature : frame.getText().split(" ")) {
+                if (!feature.isEmpty()) {
+                    features.add(feature);
+                }
+            }
+        }
+        return new Handshake(version, features);
+    }
+
+    // The server's answer to this HELLO, given what the server speaks.
+    public Handshake agree(int serverVersion, Set<String> supported) {
+        Set<String> agreed = new LinkedHashSet<>();
+        for (String feature : features) {
+            if (supported.contains(feature)) {
+                agreed.add(feature);
+            }
+        }
+        if (!agreed.contains(BATCHING)) {
+            agreed.remove(COMPRESSION);
+        }
+        if (!agreed.contains(SEQUENCES) || !agreed.contains(CHUNKED_FILES)) {
+            agreed.remove(HISTORY);
+        }
+        if (!agreed.contains(HISTORY)) {
+            agreed.remove(SYNC);
+            agreed.remove(SEARCH);
+        }
+        return new Handshake(Math.min(version, serverVersion), agreed);
+    }
+
+    public Frame toHello(String username) {
+        return Frame.hello(username, version, String.join(" ", features));
+    }
+
+    public Frame toWelcome() {
+        return Frame.welcome(version, String.join(" ", features));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean has(String feature) {
+        return features.contains(feature);
+    }
+
+    public Set<String> getFeatures() {
+        return features;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + (features.isEmpty() ? "" : " " + String.join(" ", features));
+    }
+}
@@ -0,0 +1,97 @@
+package protocol;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+// Message (and file transfer) ids that sort by the time they were made, in
+// 64 bits:
+//
+//   0 | 41 bits: milliseconds since EPOCH | 12 bits: node | 10 bits: counter
+//
+// The node is picked at random by every generator, so clients need no
+// coordination; the counter starts at a random value in its lower half every
+// millisecond, so two generators that happen to share a node still only
+// collide if they also draw the same counter in the same millisecond. A
+// generator's ids only ever increase: past 1023 in one millisecond (or if the
+// clock goes back) it carries on in the next. On the wire an id is 13
+// characters of Crockford base32, fixed width, so the strings sort like the
+// numbers and the time an id was made can be read off it (timeOf).
+public final class MessageId {
+    // 2024-01-01T00:00:00Z; 41 bits of milliseconds last until 2093.
+    public static final long EPOCH = 1704067200000L;
+    private static final int NODE_BITS = 12;
+    private static final int COUNTER_BITS = 10;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int LENGTH = 13;
+    private static final String DIGITS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ";
+
+    private static final Random RANDOM = new SecureRandom();
+
+    private final long node;
+    private final Random random = new Random();
+    // Milliseconds since EPOCH of the last id, never going back even if the
+    // clock does, and its counter.
+    private long lastMillis = -1;
+    private long counter;
+
+    public MessageId(int node) {
+        this.node = node & ((1 << NODE_BITS) - 1);
+    }
+
+    // A generator with a random node.
+    public static MessageId randomNode() {
+        return new MessageId(RANDOM.nextInt(1 << NODE_BITS));
+    }
+
+    public synchronized long nextLong() {
+        long now = Math.max(System.currentTimeMillis() - EPOCH, lastMillis);
+        if (now == lastMillis && counter == COUNTER_MASK) {
+            now++;
+        }
+        if (now == lastMillis) {
+            counter++;
+        } else {
+            counter = random.nextInt(1 << (COUNTER_BITS - 1));
+            lastMillis = now;
+        }
+        return make(now + EPOCH, node, counter);
+    }
+
+    public String next() {
+        return format(nextLong());
+    }
+
+    // The id made at timeMillis by node with counter.
+    public static long make(long timeMillis, long node, long counter) {
+        return (timeMillis - EPOCH) << (NODE_BITS + COUNTER_BITS) | node << COUNTER_BITS | counter & COUNTER_MASK;
+    }
+
+    public static long timeOf(long id) {
+        return (id >>> (NODE_BITS + COUNTER_BITS)) + EPOCH;
+    }
+
+    public static String format(long id) {
+        char[] text = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            text[i] = DIGITS.charAt((int) (id & 31));
+            id >>>= 5;
+        }
+        return new String(text);
+    }
+
+    // The id that text is the wire form of, or -1 if it is not one (ids of
+    // older clients, such as "alice-1712345678901").
+    public static long parse(String text) {
+        if (text == null || text.length() != LENGTH)
+            return -1;
+        long id = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int digit = DIGITS.indexOf(text.charAt(i));
+            if (digit < 0)
+                return -1;
+            id = id << 5 | digit;
+        }
+        // The first character carries the top four bits, the sign bit 0.
+        return text.charAt(0) < '8' ? id : -1;
+    }
+}
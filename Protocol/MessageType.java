@@ -0,0 +1,77 @@
+package protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Every frame type of the chat protocol, with its one-byte code for the
+// binary framing and its name for the text (TYPE|...) framing.
+public enum MessageType {
+    MSG(1, false),
+    FILE(2, true),
+    GROUP_MSG(3, false),
+    GROUP_FILE(4, true),
+    CREATE_GROUP(5, false),
+    GROUP_CREATED(6, false),
+    LEAVE_GROUP(7, false),
+    UPDATE_GROUP(8, false),
+    ADD_TO_GROUP(9, false),
+    GROUP_UPDATE(10, false),
+    GROUP_INFO(11, false),
+    ACK(12, false),
+    // Several frames in one; see FrameBatch.
+    BATCH(13, true),
+    // Chunked file transfer; see FileTransfer.
+    FILE_START(14, false),
+    FILE_CHUNK(15, true),
+    FILE_ACK(16, false),
+    // Sent instead of the bare username or LOGIN to agree on the protocol
+    // version and optional features; the server answers with WELCOME (see
+    // Handshake).
+    HELLO(17, false),
+    WELCOME(18, false),
+    // Cumulative DELIVERED and READ watermarks of a conversation.
+    RECEIPT(19, false),
+    // A page of a conversation's history, asked for with HISTORY; the
+    // HISTORY_PAGE payload is the frames in the binary framing.
+    HISTORY(20, false),
+    HISTORY_PAGE(21, true),
+    // Sent after WELCOME with the client's Cursors; answered with one
+    // SYNC_DATA holding the frames the client missed.
+    SYNC(22, true),
+    SYNC_DATA(23, true),
+    // A full-text search of the conversations the user can read; the
+    // SEARCH_RESULTS payload is the matching frames in the binary framing.
+    SEARCH(24, false),
+    SEARCH_RESULTS(25, true),
+    // Binary connections identify themselves with a LOGIN frame instead of
+    // the bare username line text clients send first.
+    LOGIN(64, false);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+    private static final Map<String, MessageType> BY_NAME = new HashMap<>();
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code & 0xFF] = type;
+            BY_NAME.put(type.name(), type);
+        }
+    }
+
+    public final byte code;
+    // Whether the payload is raw bytes (base64 only on the text protocol)
+    // rather than UTF-8 text.
+    public final boolean binaryPayload;
+
+    MessageType(int code, boolean binaryPayload) {
+        this.code = (byte) code;
+        this.binaryPayload = binaryPayload;
+    }
+
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    public static MessageType fromName(String name) {
+        return BY_NAME.get(name);
+    }
+}
@@ -0,0 +1,194 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+// The original newline-terminated TYPE|field|field... protocol. Each type's
+// field order is listed once in LAYOUTS; the last field of a line takes the
+// rest of it, so message content may contain '|'. A frame with a sequence
+// number (see Frame.getSeq) starts TYPE:seq|..., which only clients that
+// agreed on Handshake.SEQUENCES ever get.
+public final class TextCodec {
+    private enum Field {
+        MSG_ID, SENDER, TARGET, NAME, PAYLOAD
+    }
+
+    private static final Map<MessageType, Field[]> LAYOUTS = new EnumMap<>(MessageType.class);
+    // Fields a line must carry to be accepted; anything after that is optional.
+    private static final Map<MessageType, Integer> REQUIRED = new EnumMap<>(MessageType.class);
+
+    static {
+        layout(MessageType.MSG, Field.MSG_ID, Field.SENDER, Field.TARGET, Field.PAYLOAD);
+        layout(MessageType.FILE, Field.MSG_ID, Field.SENDER, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.GROUP_MSG, Field.MSG_ID, Field.SENDER, Field.TARGET, Field.PAYLOAD);
+        layout(MessageType.GROUP_FILE, Field.MSG_ID, Field.SENDER, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.CREATE_GROUP, Field.TARGET, Field.SENDER, Field.PAYLOAD);
+        layout(MessageType.GROUP_CREATED, Field.TARGET, Field.PAYLOAD);
+        layout(MessageType.LEAVE_GROUP, Field.TARGET, Field.SENDER);
+        layout(MessageType.UPDATE_GROUP, Field.TARGET, Field.NAME, Field.SENDER);
+        layout(MessageType.ADD_TO_GROUP, Field.TARGET, Field.SENDER, Field.NAME);
+        layout(MessageType.GROUP_UPDATE, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.GROUP_INFO, Field.TARGET, Field.PAYLOAD);
+        REQUIRED.put(MessageType.GROUP_INFO, 1); // the request carries only the group name
+        layout(MessageType.ACK, Field.MSG_ID, Field.NAME);
+        layout(MessageType.LOGIN, Field.SENDER);
+        layout(MessageType.BATCH, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.FILE_START, Field.MSG_ID, Field.SENDER, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.FILE_CHUNK, Field.MSG_ID, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.FILE_ACK, Field.MSG_ID, Field.NAME);
+        layout(MessageType.HELLO, Field.SENDER, Field.NAME, Field.PAYLOAD);
+        REQUIRED.put(MessageType.HELLO, 2); // a client without optional features
+        layout(MessageType.WELCOME, Field.NAME, Field.PAYLOAD);
+        REQUIRED.put(MessageType.WELCOME, 1);
+        layout(MessageType.RECEIPT, Field.SENDER, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.HISTORY, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.HISTORY_PAGE, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.SYNC, Field.PAYLOAD);
+        layout(MessageType.SYNC_DATA, Field.PAYLOAD);
+        layout(MessageType.SEARCH, Field.TARGET, Field.NAME, Field.PAYLOAD);
+        layout(MessageType.SEARCH_RESULTS, Field.TARGET, Field.NAME, Field.PAYLOAD);
+    }
+
+    private TextCodec() {
+    }
+
+    private static void layout(MessageType type, Field... fields) {
+        LAYOUTS.put(type, fields);
+        REQUIRED.put(type, fields.length);
+    }
+
+    // Returns null for unknown types and lines with too few fields, which the
+    // protocol has always ignored.
+    public static Frame parse(String line) {
+        int end = line.indexOf('|');
+        String token = end < 0 ? line : line.substring(0, end);
+        long seq = 0;
+        int colon = token.indexOf(':');
+        if (colon >= 0) {
+            try {
+                seq = Long.parseLong(token.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            token = token.substring(0, colon);
+        }
+        MessageType type = MessageType.fromName(token);
+        if (type == null)
+            return null;
+        Field[] fields = LAYOUTS.get(type);
+        String[] values = new String[Field.values().length];
+        int found = 0;
+        int start = end + 1;
+        while (end >= 0 && found < fields.length) {
+            boolean last = found == fields.length - 1;
+            end = last ? -1 : line.indexOf('|', start);
+            values[fields[found].ordinal()] = end < 0 ? line.substring(start) : line.substring(start, end);
+            found++;
+            start = end + 1;
+        }
+        if (found < REQUIRED.get(type))
+            return null;
+        String msgId = values[Field.MSG_ID.ordinal()];
+        String sender = values[Field.SENDER.ordinal()];
+        String target = values[Field.TARGET.ordinal()];
+        String name = values[Field.NAME.ordinal()];
+        String payload = values[Field.PAYLOAD.ordinal()];
+        Frame frame = type.binaryPayload
+                ? Frame.base64(type, msgId, sender, target, name, payload == null ? "" : payload)
+                : Frame.text(type, msgId, sender, target, name, payload);
+        if (seq != 0) {
+            frame = frame.withSeq(seq);
+        }
+        frame.cacheTextLine(line);
+        return frame;
+    }
+
+    // The frame as a text line, without the trailing newline.
+    public static String format(Frame frame) {
+        String line = frame.cachedTextLine();
+        if (line != null)
+            return line;
+        StringBuilder sb = new StringBuilder(64).append(typeToken(frame));
+        Field[] fields = LAYOUTS.get(frame.getType());
+        int count = fieldCount(frame, fields);
+        for (int i = 0; i < count; i++) {
+            sb.append('|');
+            String value = value(frame, fields[i]);
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+        line = sb.toString();
+        frame.cacheTextLine(line);
+        return line;
+    }
+
+    // Bytes encode() will write for this frame, newline included.
+    public static int encodedSize(Frame frame) {
+        String line = frame.cachedTextLine();
+        if (line != null)
+            return Utf8.length(line) + 1;
+        Field[] fields = LAYOUTS.get(frame.getType());
+        int count = fieldCount(frame, fields);
+        int size = typeToken(frame).length() + count + 1;
+        for (int i = 0; i < count; i++) {
+            String value = value(frame, fields[i]);
+            if (value != null) {
+                size += Utf8.length(value);
+            }
+        }
+        return size;
+    }
+
+    // Writes the newline-terminated line at dst's position without building
+    // it as a String first.
+    public static void encode(Frame frame, ByteBuffer dst) {
+        String line = frame.cachedTextLine();
+        if (line != null) {
+            Utf8.put(dst, line);
+        } else {
+            Utf8.put(dst, typeToken(frame));
+            Field[] fields = LAYOUTS.get(frame.getType());
+            int count = fieldCount(frame, fields);
+            for (int i = 0; i < count; i++) {
+                dst.put((byte) '|');
+                String value = value(frame, fields[i]);
+                if (value != null) {
+                    Utf8.put(dst, value);
+                }
+            }
+        }
+        dst.put((byte) '\n');
+    }
+
+    private static String typeToken(Frame frame) {
+        return frame.getSeq() == 0 ? frame.getType().name() : frame.getType().name() + ":" + frame.getSeq();
+    }
+
+    // Fields written for this frame: optional trailing fields that are null
+    // are left off.
+    private static int fieldCount(Frame frame, Field[] fields) {
+        int required = REQUIRED.get(frame.getType());
+        for (int i = required; i < fields.length; i++) {
+            if (value(frame, fields[i]) == null)
+                return i;
+        }
+        return fields.length;
+    }
+
+    private static String value(Frame frame, Field field) {
+        switch (field) {
+            case MSG_ID:
+                return frame.getMsgId();
+            case SENDER:
+                return frame.getSender();
+            case TARGET:
+                return frame.getTarget();
+            case NAME:
+                return frame.getName();
+            default:
+                return frame.getText();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+// UTF-8 straight into a ByteBuffer, so encoders never build a byte[] (or a
+// CharsetEncoder) per field. Matches String.getBytes(UTF_8), including '?'
+// for unpaired surrogates.
+final class Utf8 {
+    private Utf8() {
+    }
+
+    static int length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    static void put(ByteBuffer dst, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
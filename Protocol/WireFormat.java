@@ -0,0 +1,90 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// The two ways a connection can put frames on the wire. Writers keep one
+// buffer per connection (or per event loop) and encode every frame into it,
+// so sending allocates nothing per frame.
+//
+// Frames marked Frame.share() are encoded once per format into a byte array
+// kept on the frame; every connection then copies (or, for large frames,
+// writes straight from) those bytes instead of encoding the frame again.
+public enum WireFormat {
+    TEXT {
+        @Override
+        int sizeOf(Frame frame) {
+            return TextCodec.encodedSize(frame);
+        }
+
+        @Override
+        void encodeInto(Frame frame, ByteBuffer dst) {
+            TextCodec.encode(frame, dst);
+        }
+    },
+    BINARY {
+        @Override
+        int sizeOf(Frame frame) {
+            return BinaryCodec.encodedSize(frame);
+        }
+
+        @Override
+        void encodeInto(Frame frame, ByteBuffer dst) {
+            BinaryCodec.encode(frame, dst);
+        }
+    };
+
+    abstract int sizeOf(Frame frame);
+
+    abstract void encodeInto(Frame frame, ByteBuffer dst);
+
+    // Bytes encode() will write for this frame.
+    public int encodedSize(Frame frame) {
+        return frame.isShared() ? sharedBytes(frame).length : sizeOf(frame);
+    }
+
+    // Writes the frame at dst's position; dst must have encodedSize() bytes
+    // remaining.
+    public void encode(Frame frame, ByteBuffer dst) {
+        if (frame.isShared()) {
+            dst.put(sharedBytes(frame));
+        } else {
+            encodeInto(frame, dst);
+        }
+    }
+
+    // Whether writers should send this frame as encodeHeader() followed by
+    // its file region rather than encode() it. Only the binary format
+    // carries file data as it is.
+    public boolean transfersFileRegion(Frame frame) {
+        return this == BINARY && frame.hasFileRegion() && !frame.isShared();
+    }
+
+    // The bytes of a transfersFileRegion() frame that precede the region.
+    public void encodeHeader(Frame frame, ByteBuffer dst) {
+        BinaryCodec.encodeHeader(frame, dst);
+    }
+
+    // A read-only view of the frame's encoding, for writing a large shared
+    // frame without copying it.
+    public ByteBuffer shared(Frame frame) {
+        return ByteBuffer.wrap(sharedBytes(frame)).asReadOnlyBuffer();
+    }
+
+    // Writes the frame's shared encoding to out.
+    public void writeShared(Frame frame, OutputStream out) throws IOException {
+        out.write(sharedBytes(frame));
+    }
+
+    private byte[] sharedBytes(Frame frame) {
+        byte[] bytes = frame.cachedEncoding(this);
+        if (bytes == null) {
+            // Two writers may race to get here; both produce the same bytes.
+            bytes = new byte[sizeOf(frame)];
+            encodeInto(frame, ByteBuffer.wrap(bytes));
+            frame.cacheEncoding(this, bytes);
+        }
+        return bytes;
+    }
+}
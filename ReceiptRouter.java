@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import protocol.Conversation;
+import protocol.Frame;
+
+// Delivery and read receipts on their way back to the senders. A client
+// reports with one RECEIPT per conversation that it has got (DELIVERED) or
+// seen (READ) everything up to a sequence number. Until it is forwarded, the
+// router keeps the highest watermark per reader, conversation and status,
+// drops anything that does not raise it, and forwards it every
+// coalesceMillis, so however many messages a reader gets through, a sender
+// hears about it once per interval. Once forwarded the watermark is dropped;
+// a later lower one is forwarded too, and changes nothing at the sender.
+//
+// Receipts of a direct conversation go to the other user. In a group, READ
+// goes to the members who have sent a message since the reader's pending
+// watermark, or to all who have sent one if there is none (which may include
+// someone whose messages are all newer or older, never leaves anyone out);
+// group DELIVERED is not forwarded.
+public class ReceiptRouter {
+    public static final String DELIVERED = "DELIVERED";
+    public static final String READ = "READ";
+
+    private final long coalesceMillis;
+    private final BiConsumer<String, Frame> deliver;
+    // Highest watermark not forwarded yet by reader, conversation key and
+    // status.
+    private final Map<String, Long> watermarks = new ConcurrentHashMap<>();
+    // For each group conversation key: sender -> number of their latest
+    // message, while they are in the group.
+    private final Map<String, Map<String, Long>> groupSenders = new ConcurrentHashMap<>();
+    // Receipts waiting for the next flush, by recipient, reader, conversation
+    // and status; a higher one replaces a lower one. Guarded by itself.
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private static class Pending {
+        final String recipient;
+        final Frame receipt;
+        // The watermarks entry the receipt came from.
+        final String watermark;
+        final long seq;
+
+        Pending(String recipient, Frame receipt, String watermark, long seq) {
+            this.recipient = recipient;
+            this.receipt = receipt;
+            this.watermark = watermark;
+            this.seq = seq;
+        }
+    }
+
+    // deliver(recipient, frame) sends a receipt on.
+    public ReceiptRouter(long coalesceMillis, BiConsumer<String, Frame> deliver) {
+        this.coalesceMillis = coalesceMillis;
+        this.deliver = deliver;
+        if (coalesceMillis > 0) {
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "receipt-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static ReceiptRouter fromConfig(ServerConfig config, BiConsumer<String, Frame> deliver) {
+        return new ReceiptRouter(config.getLong("receipts.coalesceMillis", 200), deliver);
+    }
+
+    // Message seq of the group conversation groupKey came from sender.
+    public void sent(String groupKey, String sender, long seq) {
+        groupSenders.computeIfAbsent(groupKey, k -> new ConcurrentHashMap<>()).merge(sender, seq, Math::max);
+    }
+
+    // member left the group conversation groupKey.
+    public void left(String groupKey, String member) {
+        groupSenders.computeIfPresent(groupKey, (k, senders) -> {
+            senders.remove(member);
+            return senders.isEmpty() ? null : senders;
+        });
+    }
+
+    // The group conversation groupKey is gone (deleted or renamed).
+    public void forget(String groupKey) {
+        groupSenders.remove(groupKey);
+    }
+
+    // reader has got or seen everything up to seq in conversation, as named
+    // by reader.
+    public void receipt(String reader, String conversation, String status, long seq) {
+        boolean group = Conversation.isGroup(conversation);
+        if (group && !READ.equals(status))
+            return;
+        String key = Conversation.key(reader, conversation);
+        String watermark = reader + "|" + key + "|" + status;
+        long[] previous = new long[1];
+        watermarks.compute(watermark, (k, v) -> {
+            previous[0] = v == null ? 0 : v;
+            return Math.max(previous[0], seq);
+        });
+        if (previous[0] >= seq)
+            return;
+        if (!group) {
+            enqueue(new Pending(conversation, Frame.receipt(reader, reader, status, seq), watermark, seq));
+            return;
+        }
+        Map<String, Long> senders = groupSenders.get(key);
+        if (senders == null) {
+            watermarks.remove(watermark, seq);
+            return;
+        }
+        Frame receipt = Frame.receipt(reader, conversation, status, seq).share();
+        boolean sent = false;
+        for (Map.Entry<String, Long> sender : senders.entrySet()) {
+            if (!sender.getKey().equals(reader) && sender.getValue() > previous[0]) {
+                enqueue(new Pending(sender.getKey(), receipt, watermark, seq));
+                sent = true;
+            }
+        }
+        if (!sent) {
+            watermarks.remove(watermark, seq);
+        }
+    }
+
+    private void enqueue(Pending receipt) {
+        if (coalesceMillis <= 0) {
+            forward(receipt);
+            return;
+        }
+        String key = receipt.recipient + "|" + receipt.watermark;
+        synchronized (pending) {
+            pending.merge(key, receipt, (earlier, later) -> later.seq >= earlier.seq ? later : earlier);
+        }
+    }
+
+    private void forward(Pending p) {
+        try {
+            deliver.accept(p.recipient, p.receipt);
+        } finally {
+            // Unless a higher one has come in meanwhile.
+            watermarks.remove(p.watermark, p.seq);
+        }
+    }
+
+    private void flush() {
+        List<Pending> due;
+        synchronized (pending) {
+            if (pending.isEmpty())
+                return;
+            due = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Pending p : due) {
+            try {
+                forward(p);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
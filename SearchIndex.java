@@ -0,0 +1,910 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import protocol.Frame;
+import protocol.MessageType;
+
+// Full-text index of the messages (and file names) the server relays, for
+// SEARCH. Relaying only queues a message (add); a thread of its own splits it
+// into words and adds it to an in-memory segment, which is written to disk as
+// an immutable segment file every flushDocs messages or flushMillis. Another
+// thread merges the smallest adjacent segments once there are more than
+// maxSegments, so a search looks at a few files however many were written.
+//
+//   <dir>/conversations          conversation keys, the line number is the id
+//   <dir>/0000000000000001.seg   segments, by generation
+//
+// A segment file holds the generations it replaces (a merge), its documents
+// as fixed-width (doc, conversation, seq, words) entries sorted by doc, the
+// posting list of every word as varint (doc delta, count) pairs, and a
+// dictionary of the words, sorted, with their document counts and where their
+// postings are. Only the dictionary's offsets are kept in the heap; the rest
+// is mapped. Searches match documents with every word of the query and rank
+// them with BM25, newest first among equals.
+//
+// Messages still in memory when the server stops abruptly are not indexed
+// (at most flushMillis worth); the history has them.
+public class SearchIndex {
+    private static final int MAX_WORD_CHARS = 40;
+    private static final int DOC_BYTES = 20;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final File dir;
+    private final int flushDocs;
+    private final long flushMillis;
+    private final int maxSegments;
+    private final int maxResults;
+    private final BlockingQueue<Pending> queue;
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "search-merge");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+
+    // Conversation keys by id. Guarded by itself; ids are only ever added.
+    private final List<String> conversationKeys = new ArrayList<>();
+    private final Map<String, Integer> conversationIds = new ConcurrentHashMap<>();
+    private int savedConversations;
+
+    // The segments on disk, oldest documents first; replaced as a whole.
+    private volatile List<Segment> segments = Collections.emptyList();
+    // Documents not written to a segment yet. Guarded by this.
+    private Buffer buffer = new Buffer();
+    private int nextDoc;
+    private long nextGeneration = 1;
+
+    private static class Pending {
+        final String conversation;
+        final long seq;
+        final String text;
+
+        Pending(String conversation, long seq, String text) {
+            this.conversation = conversation;
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    // A match: the message numbered seq in the conversation with this key.
+    public static class Hit {
+        public final String conversation;
+        public final long seq;
+        final int doc;
+        final double score;
+
+        Hit(String conversation, long seq, int doc, double score) {
+            this.conversation = conversation;
+            this.seq = seq;
+            this.doc = doc;
+            this.score = score;
+        }
+    }
+
+    // One page of matches, best first; next is the offset of the following
+    // page, 0 if there is none.
+    public static class Hits {
+        public final List<Hit> hits;
+        public final int next;
+
+        Hits(List<Hit> hits, int next) {
+            this.hits = hits;
+            this.next = next;
+        }
+    }
+
+    public SearchIndex(File dir, int flushDocs, long flushMillis, int maxSegments, int maxResults,
+            int queueSize) {
+        this.dir = dir;
+        this.flushDocs = Math.max(1, flushDocs);
+        this.flushMillis = Math.max(1, flushMillis);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.maxResults = Math.max(1, maxResults);
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueSize));
+        dir.mkdirs();
+        load();
+        Thread indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        scheduleMerge();
+    }
+
+    public static SearchIndex fromConfig(ServerConfig config) {
+        return new SearchIndex(new File(config.get("search.dir", "search")),
+                config.getInt("search.flushDocs", 10000),
+                config.getLong("search.flushMillis", 5000),
+                config.getInt("search.maxSegments", 8),
+                config.getInt("search.maxResults", 1000),
+                config.getInt("search.queueSize", 100000));
+    }
+
+    // Queues a numbered message or file offer for indexing. Never blocks: if
+    // the indexer is that far behind, the message is not indexed.
+    public void add(String conversation, Frame frame) {
+        String text;
+        if (frame.getType() == MessageType.MSG || frame.getType() == MessageType.GROUP_MSG) {
+            text = frame.getText();
+        } else if (frame.getType() == MessageType.FILE_START) {
+            text = frame.getName();
+        } else {
+            return;
+        }
+        if (text != null && !queue.offer(new Pending(conversation, frame.getSeq(), text))) {
+            ServerMetrics.searchDropped.increment();
+        }
+    }
+
+    // Lower-case words: runs of letters and digits, at most MAX_WORD_CHARS.
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD_CHARS) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // The matches of every word of query in the conversations visible
+    // accepts (by key), from offset on; at most maxResults are ranked.
+    public Hits search(String query, Predicate<String> visible, int offset, int limit) {
+        Set<String> terms = new LinkedHashSet<>(words(query == null ? "" : query));
+        int wanted = Math.min(maxResults, Math.max(0, offset) + Math.max(1, limit));
+        if (terms.isEmpty() || offset < 0 || offset >= wanted)
+            return new Hits(Collections.<Hit>emptyList(), 0);
+        List<Segment> current = segments;
+        Buffer memory;
+        synchronized (this) {
+            memory = buffer.copy(terms);
+        }
+        // Collection-wide statistics for BM25.
+        long docs = memory.docCount();
+        long words = memory.totalWords;
+        Map<String, Long> df = new HashMap<>();
+        for (String term : terms) {
+            df.put(term, (long) memory.df(term));
+        }
+        for (Segment segment : current) {
+            docs += segment.docCount;
+            words += segment.totalWords;
+            for (String term : terms) {
+                df.merge(term, (long) segment.df(term), Long::sum);
+            }
+        }
+        if (docs == 0)
+            return new Hits(Collections.<Hit>emptyList(), 0);
+        double averageWords = Math.max(1.0, (double) words / docs);
+        Map<String, Double> idf = new HashMap<>();
+        for (String term : terms) {
+            long n = df.get(term);
+            if (n == 0)
+                return new Hits(Collections.<Hit>emptyList(), 0);
+            idf.put(term, Math.log(1 + (docs - n + 0.5) / (n + 0.5)));
+        }
+        // The best `wanted` matches, worst at the head.
+        PriorityQueue<Hit> best = new PriorityQueue<>(
+                (x, y) -> x.score != y.score ? Double.compare(x.score, y.score) : Integer.compare(x.doc, y.doc));
+        Map<Integer, Boolean> visibleIds = new HashMap<>();
+        int[] total = new int[1];
+        Scorer scorer = (doc, conversation, seq, length, counts) -> {
+            Boolean ok = visibleIds.get(conversation);
+            if (ok == null) {
+                ok = visible.test(conversationKey(conversation));
+                visibleIds.put(conversation, ok);
+            }
+            if (!ok)
+                return;
+            total[0]++;
+            double score = 0;
+            int i = 0;
+            for (String term : terms) {
+                double tf = counts[i++];
+                score += idf.get(term) * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageWords));
+            }
+            Hit hit = new Hit(null, seq, doc, score);
+            if (best.size() < wanted) {
+                best.add(hit);
+            } else if (best.comparator().compare(hit, best.peek()) > 0) {
+                best.poll();
+                best.add(hit);
+            }
+        };
+        List<String> termList = new ArrayList<>(terms);
+        try {
+            for (Segment segment : current) {
+                segment.match(termList, scorer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        memory.match(termList, scorer);
+        List<Hit> ranked = new ArrayList<>(best);
+        ranked.sort(best.comparator().reversed());
+        List<Hit> page = new ArrayList<>();
+        for (int i = offset; i < ranked.size(); i++) {
+            Hit hit = ranked.get(i);
+            page.add(new Hit(conversationKey(conversationOf(hit.doc, current, memory)), hit.seq, hit.doc, hit.score));
+        }
+        int next = ranked.size() == wanted && total[0] > wanted && wanted < maxResults ? wanted : 0;
+        return new Hits(page, next);
+    }
+
+    private int conversationOf(int doc, List<Segment> current, Buffer memory) {
+        for (Segment segment : current) {
+            int conversation = segment.conversationOf(doc);
+            if (conversation >= 0)
+                return conversation;
+        }
+        return memory.conversationOf(doc);
+    }
+
+    private String conversationKey(int id) {
+        synchronized (conversationKeys) {
+            return conversationKeys.get(id);
+        }
+    }
+
+    private int conversationId(String key) {
+        Integer id = conversationIds.get(key);
+        if (id != null)
+            return id;
+        synchronized (conversationKeys) {
+            conversationKeys.add(key);
+            id = conversationKeys.size() - 1;
+        }
+        conversationIds.put(key, id);
+        return id;
+    }
+
+    private void indexLoop() {
+        long flushed = System.currentTimeMillis();
+        while (true) {
+            try {
+                Pending pending = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (pending != null) {
+                    List<String> words = words(pending.text);
+                    if (!words.isEmpty()) {
+                        int conversation = conversationId(pending.conversation);
+                        synchronized (this) {
+                            buffer.add(nextDoc++, conversation, pending.seq, words);
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                int buffered;
+                synchronized (this) {
+                    buffered = buffer.docCount();
+                }
+                if (buffered >= flushDocs || buffered > 0 && now - flushed >= flushMillis) {
+                    flush();
+                    flushed = now;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Writes the in-memory documents as a new segment. Only the indexer
+    // thread adds documents, so the buffer cannot change meanwhile.
+    private void flush() throws IOException {
+        saveConversations();
+        Buffer full;
+        synchronized (this) {
+            full = buffer;
+        }
+        long generation = nextGeneration();
+        SegmentWriter writer = new SegmentWriter(generation, new long[0]);
+        for (int i = 0; i < full.docCount(); i++) {
+            writer.doc(full.docs[i], full.conversations[i], full.seqs[i], full.lengths[i]);
+        }
+        List<String> terms = new ArrayList<>(full.postings.keySet());
+        terms.sort(SearchIndex::compareUtf8);
+        for (String term : terms) {
+            int[] postings = full.postings.get(term);
+            writer.term(term);
+            for (int i = 0; i < full.postingCounts.get(term); i += 2) {
+                writer.posting(postings[i], postings[i + 1]);
+            }
+        }
+        Segment segment = writer.finish();
+        synchronized (this) {
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            segments = Collections.unmodifiableList(updated);
+            buffer = new Buffer();
+        }
+        if (segments.size() > maxSegments) {
+            scheduleMerge();
+        }
+    }
+
+    private void saveConversations() throws IOException {
+        List<String> added;
+        synchronized (conversationKeys) {
+            added = new ArrayList<>(conversationKeys.subList(savedConversations, conversationKeys.size()));
+        }
+        if (added.isEmpty())
+            return;
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "conversations"), true);
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (String key : added) {
+                writer.write(key);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        savedConversations += added.size();
+    }
+
+    private synchronized long nextGeneration() {
+        return nextGeneration++;
+    }
+
+    private File segmentFile(long generation) {
+        return new File(dir, String.format("%016d.seg", generation));
+    }
+
+    private void scheduleMerge() {
+        if (mergeScheduled.compareAndSet(false, true)) {
+            merger.execute(() -> {
+                mergeScheduled.set(false);
+                try {
+                    while (segments.size() > maxSegments) {
+                        merge();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Merges the adjacent segments with the fewest documents between them
+    // into one, so that merging stays cheap and every document is rewritten
+    // only a few times.
+    private void merge() throws IOException {
+        List<Segment> current = segments;
+        int width = Math.min(current.size(), 4);
+        int start = 0;
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i + width <= current.size(); i++) {
+            long docs = 0;
+            for (int j = i; j < i + width; j++) {
+                docs += current.get(j).docCount;
+            }
+            if (docs < fewest) {
+                fewest = docs;
+                start = i;
+            }
+        }
+        List<Segment> merged = current.subList(start, start + width);
+        long[] replaced = new long[width];
+        for (int i = 0; i < width; i++) {
+            replaced[i] = merged.get(i).generation;
+        }
+        SegmentWriter writer = new SegmentWriter(nextGeneration(), replaced);
+        for (Segment segment : merged) {
+            for (int i = 0; i < segment.docCount; i++) {
+                int at = segment.docsStart + i * DOC_BYTES;
+                writer.doc(segment.map.getInt(at), segment.map.getInt(at + 4), segment.map.getLong(at + 8),
+                        segment.map.getInt(at + 16));
+            }
+        }
+        // The segments' dictionaries are sorted; walk them together.
+        int[] positions = new int[width];
+        while (true) {
+            String term = null;
+            for (int i = 0; i < width; i++) {
+                if (positions[i] < merged.get(i).termCount) {
+                    String candidate = merged.get(i).term(positions[i]);
+                    if (term == null || compareUtf8(candidate, term) < 0) {
+                        term = candidate;
+                    }
+                }
+            }
+            if (term == null)
+                break;
+            writer.term(term);
+            for (int i = 0; i < width; i++) {
+                Segment segment = merged.get(i);
+                if (positions[i] < segment.termCount && segment.term(positions[i]).equals(term)) {
+                    segment.postings(positions[i], writer::posting);
+                    positions[i]++;
+                }
+            }
+        }
+        Segment segment = writer.finish();
+        synchronized (this) {
+            List<Segment> updated = new ArrayList<>();
+            boolean added = false;
+            for (Segment s : segments) {
+                if (merged.contains(s)) {
+                    if (!added) {
+                        updated.add(segment);
+                        added = true;
+                    }
+                } else {
+                    updated.add(s);
+                }
+            }
+            segments = Collections.unmodifiableList(updated);
+        }
+        // Searches that still hold the old segments keep reading their
+        // mappings.
+        for (Segment s : merged) {
+            Files.deleteIfExists(segmentFile(s.generation).toPath());
+        }
+    }
+
+    private void load() {
+        File conversationsFile = new File(dir, "conversations");
+        if (conversationsFile.isFile()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(conversationsFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    conversationIds.put(line, conversationKeys.size());
+                    conversationKeys.add(line);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        savedConversations = conversationKeys.size();
+        String[] names = dir.list((d, name) -> name.endsWith(".seg"));
+        if (names == null)
+            return;
+        Arrays.sort(names);
+        Map<Long, Segment> loaded = new HashMap<>();
+        for (String name : names) {
+            long generation = Long.parseLong(name.substring(0, name.length() - 4));
+            nextGeneration = Math.max(nextGeneration, generation + 1);
+            try {
+                loaded.put(generation, new Segment(generation, new File(dir, name)));
+            } catch (IOException | RuntimeException e) {
+                // Left behind by a crash while it was written.
+                System.out.println("Ignoring unreadable search segment " + name);
+            }
+        }
+        // A merge that finished before a crash may not have deleted what it
+        // replaced.
+        for (Segment segment : new ArrayList<>(loaded.values())) {
+            for (long generation : segment.replaced) {
+                if (loaded.remove(generation) != null) {
+                    try {
+                        Files.deleteIfExists(segmentFile(generation).toPath());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        List<Segment> ordered = new ArrayList<>(loaded.values());
+        ordered.sort((x, y) -> Integer.compare(x.firstDoc, y.firstDoc));
+        for (Segment segment : ordered) {
+            nextDoc = Math.max(nextDoc, segment.lastDoc + 1);
+        }
+        segments = Collections.unmodifiableList(ordered);
+    }
+
+    // Words compare by their UTF-8 bytes, the order of the dictionaries.
+    private static int compareUtf8(String x, String y) {
+        byte[] a = x.getBytes(StandardCharsets.UTF_8);
+        byte[] b = y.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    private interface Scorer {
+        void score(int doc, int conversation, long seq, int length, int[] counts);
+    }
+
+    private interface PostingSink {
+        void posting(int doc, int count) throws IOException;
+    }
+
+    // Documents that are only in memory: postings as (doc, count) pairs.
+    private static class Buffer {
+        int[] docs = new int[16];
+        int[] conversations = new int[16];
+        long[] seqs = new long[16];
+        int[] lengths = new int[16];
+        int size;
+        long totalWords;
+        final Map<String, int[]> postings = new HashMap<>();
+        final Map<String, Integer> postingCounts = new HashMap<>();
+
+        void add(int doc, int conversation, long seq, List<String> words) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                conversations = Arrays.copyOf(conversations, size * 2);
+                seqs = Arrays.copyOf(seqs, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            docs[size] = doc;
+            conversations[size] = conversation;
+            seqs[size] = seq;
+            lengths[size] = words.size();
+            size++;
+            totalWords += words.size();
+            Map<String, Integer> counts = new HashMap<>();
+            for (String word : words) {
+                counts.merge(word, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                String word = count.getKey();
+                int used = postingCounts.getOrDefault(word, 0);
+                int[] list = postings.get(word);
+                if (list == null || used == list.length) {
+                    list = list == null ? new int[4] : Arrays.copyOf(list, list.length * 2);
+                    postings.put(word, list);
+                }
+                list[used] = doc;
+                list[used + 1] = count.getValue();
+                postingCounts.put(word, used + 2);
+            }
+        }
+
+        int docCount() {
+            return size;
+        }
+
+        int df(String term) {
+            return postingCounts.getOrDefault(term, 0) / 2;
+        }
+
+        // The documents, and the postings of terms only, for a search to
+        // read without holding the lock.
+        Buffer copy(Set<String> terms) {
+            Buffer copy = new Buffer();
+            copy.docs = Arrays.copyOf(docs, size);
+            copy.conversations = Arrays.copyOf(conversations, size);
+            copy.seqs = Arrays.copyOf(seqs, size);
+            copy.lengths = Arrays.copyOf(lengths, size);
+            copy.size = size;
+            copy.totalWords = totalWords;
+            for (String term : terms) {
+                Integer used = postingCounts.get(term);
+                if (used != null) {
+                    copy.postings.put(term, Arrays.copyOf(postings.get(term), used));
+                    copy.postingCounts.put(term, used);
+                }
+            }
+            return copy;
+        }
+
+        int conversationOf(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            return i >= 0 ? conversations[i] : -1;
+        }
+
+        void match(List<String> terms, Scorer scorer) {
+            int[][] lists = new int[terms.size()][];
+            for (int t = 0; t < terms.size(); t++) {
+                lists[t] = postings.get(terms.get(t));
+                if (lists[t] == null)
+                    return;
+            }
+            intersect(lists, (doc, counts) -> {
+                int i = Arrays.binarySearch(docs, 0, size, doc);
+                scorer.score(doc, conversations[i], seqs[i], lengths[i], counts);
+            });
+        }
+    }
+
+    private interface Match {
+        void match(int doc, int[] counts);
+    }
+
+    // Calls match for the documents in all lists of (doc, count) pairs, each
+    // sorted by doc, with the counts in list order.
+    private static void intersect(int[][] lists, Match match) {
+        int[] at = new int[lists.length];
+        int[] counts = new int[lists.length];
+        while (at[0] < lists[0].length) {
+            int doc = lists[0][at[0]];
+            boolean all = true;
+            for (int t = 1; t < lists.length; t++) {
+                while (at[t] < lists[t].length && lists[t][at[t]] < doc) {
+                    at[t] += 2;
+                }
+                if (at[t] >= lists[t].length)
+                    return;
+                if (lists[t][at[t]] != doc) {
+                    all = false;
+                }
+            }
+            if (all) {
+                for (int t = 0; t < lists.length; t++) {
+                    counts[t] = lists[t][at[t] + 1];
+                }
+                match.match(doc, counts);
+            }
+            at[0] += 2;
+        }
+    }
+
+    // An immutable segment file, mapped.
+    private static class Segment {
+        final long generation;
+        final long[] replaced;
+        final MappedByteBuffer map;
+        final int docsStart;
+        final int docCount;
+        final int firstDoc;
+        final int lastDoc;
+        final long totalWords;
+        final int termCount;
+        // Where each dictionary entry starts.
+        final int[] terms;
+
+        Segment(long generation, File file) throws IOException {
+            this.generation = generation;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int position = 0;
+            replaced = new long[map.getInt(position)];
+            position += 4;
+            for (int i = 0; i < replaced.length; i++) {
+                replaced[i] = map.getLong(position);
+                position += 8;
+            }
+            docCount = map.getInt(position);
+            docsStart = position + 4;
+            firstDoc = docCount > 0 ? map.getInt(docsStart) : 0;
+            lastDoc = docCount > 0 ? map.getInt(docsStart + (docCount - 1) * DOC_BYTES) : -1;
+            long words = 0;
+            for (int i = 0; i < docCount; i++) {
+                words += map.getInt(docsStart + i * DOC_BYTES + 16);
+            }
+            totalWords = words;
+            int trailer = map.capacity() - 12;
+            int dictionary = (int) map.getLong(trailer);
+            termCount = map.getInt(trailer + 8);
+            terms = new int[termCount];
+            position = dictionary;
+            for (int i = 0; i < termCount; i++) {
+                terms[i] = position;
+                position += 2 + (map.getShort(position) & 0xFFFF) + 12;
+            }
+            if (position != trailer)
+                throw new IOException("Corrupt search segment " + file);
+        }
+
+        String term(int i) {
+            int at = terms[i];
+            byte[] bytes = new byte[map.getShort(at) & 0xFFFF];
+            ByteBuffer view = map.duplicate();
+            view.position(at + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // The dictionary entry of term, or -1.
+        int find(String term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compareUtf8(term(mid), term);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        int df(String term) {
+            int i = find(term);
+            return i < 0 ? 0 : map.getInt(terms[i] + 2 + (map.getShort(terms[i]) & 0xFFFF));
+        }
+
+        void postings(int i, PostingSink sink) throws IOException {
+            int at = terms[i] + 2 + (map.getShort(terms[i]) & 0xFFFF);
+            int df = map.getInt(at);
+            ByteBuffer src = map.duplicate();
+            src.position((int) map.getLong(at + 4));
+            int doc = 0;
+            for (int n = 0; n < df; n++) {
+                doc += readVarint(src);
+                sink.posting(doc, readVarint(src));
+            }
+        }
+
+        int conversationOf(int doc) {
+            if (doc < firstDoc || doc > lastDoc)
+                return -1;
+            int low = 0;
+            int high = docCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int found = map.getInt(docsStart + mid * DOC_BYTES);
+                if (found < doc) {
+                    low = mid + 1;
+                } else if (found > doc) {
+                    high = mid - 1;
+                } else {
+                    return map.getInt(docsStart + mid * DOC_BYTES + 4);
+                }
+            }
+            return -1;
+        }
+
+        void match(List<String> words, Scorer scorer) throws IOException {
+            int[][] lists = new int[words.size()][];
+            for (int t = 0; t < words.size(); t++) {
+                int i = find(words.get(t));
+                if (i < 0)
+                    return;
+                int[] list = new int[2 * map.getInt(terms[i] + 2 + (map.getShort(terms[i]) & 0xFFFF))];
+                int[] used = new int[1];
+                postings(i, (doc, count) -> {
+                    list[used[0]++] = doc;
+                    list[used[0]++] = count;
+                });
+                lists[t] = list;
+            }
+            // Matches come in document order, so the document table is
+            // walked once.
+            int[] row = new int[1];
+            intersect(lists, (doc, counts) -> {
+                while (map.getInt(docsStart + row[0] * DOC_BYTES) < doc) {
+                    row[0]++;
+                }
+                int at = docsStart + row[0] * DOC_BYTES;
+                scorer.score(doc, map.getInt(at + 4), map.getLong(at + 8), map.getInt(at + 16), counts);
+            });
+        }
+    }
+
+    // Writes a segment file: documents first (ascending), then the words in
+    // dictionary order, each followed by its postings (ascending). The file
+    // only gets its name once it is complete.
+    private class SegmentWriter {
+        private final long generation;
+        private final File file;
+        private final File temp;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final long docCountAt;
+        private final List<String> words = new ArrayList<>();
+        // Per word: its document count and where its postings start.
+        private final List<long[]> entries = new ArrayList<>();
+        private long[] entry;
+        private long position;
+        private int docCount;
+        private int lastDoc;
+
+        SegmentWriter(long generation, long[] replaced) throws IOException {
+            this.generation = generation;
+            this.file = segmentFile(generation);
+            this.temp = new File(dir, file.getName() + ".tmp");
+            this.fileOut = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(replaced.length);
+            for (long r : replaced) {
+                out.writeLong(r);
+            }
+            docCountAt = 4 + 8L * replaced.length;
+            out.writeInt(0);
+            position = docCountAt + 4;
+        }
+
+        void doc(int doc, int conversation, long seq, int length) throws IOException {
+            out.writeInt(doc);
+            out.writeInt(conversation);
+            out.writeLong(seq);
+            out.writeInt(length);
+            position += DOC_BYTES;
+            docCount++;
+        }
+
+        void term(String word) {
+            words.add(word);
+            entry = new long[] { 0, position };
+            entries.add(entry);
+            lastDoc = 0;
+        }
+
+        void posting(int doc, int count) throws IOException {
+            position += writeVarint(out, doc - lastDoc);
+            position += writeVarint(out, count);
+            lastDoc = doc;
+            entry[0]++;
+        }
+
+        Segment finish() throws IOException {
+            long dictionary = position;
+            for (int i = 0; i < words.size(); i++) {
+                byte[] bytes = words.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+                out.writeInt((int) entries.get(i)[0]);
+                out.writeLong(entries.get(i)[1]);
+            }
+            out.writeLong(dictionary);
+            out.writeInt(words.size());
+            out.flush();
+            // The document count was not known when the header was written.
+            fileOut.getChannel().write(ByteBuffer.allocate(4).putInt(0, docCount), docCountAt);
+            fileOut.getFD().sync();
+            out.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return new Segment(generation, file);
+        }
+    }
+
+    private static int writeVarint(DataOutputStream out, int value) throws IOException {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+            bytes++;
+        }
+        out.writeByte(value);
+        return bytes;
+    }
+
+    private static int readVarint(ByteBuffer src) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
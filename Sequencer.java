@@ -0,0 +1,135 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+// Hands out the sequence numbers of each conversation (see Conversation.key):
+// 1, 2, 3, ... in the order the server relays the messages. Numbers must never
+// be reused, even after a restart, or clients would take new messages for ones
+// they have already seen. Rather than writing every number down, the sequencer
+// reserves BLOCK numbers at a time and appends the end of the reservation to
+// a log, fsynced; after a restart each conversation continues after its last
+// reservation, so at most a block of numbers is skipped.
+//
+//   <file>      one "<reserved> <conversation key>" line per reservation
+//
+// The log is compacted to one line per conversation when the server starts.
+public class Sequencer {
+    private static final long BLOCK = 1000;
+
+    private final File file;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private FileOutputStream log;
+    private Writer writer;
+
+    private static class Counter {
+        long last;
+        long reserved;
+
+        Counter(long start) {
+            this.last = start;
+            this.reserved = start;
+        }
+    }
+
+    public Sequencer(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static Sequencer fromConfig(ServerConfig config) {
+        return new Sequencer(new File(config.get("seq.file", "sequences")));
+    }
+
+    // Gives the conversation's next message its number and passes it to
+    // relay, which queues the message for its recipients. The conversation
+    // stays locked until relay returns, so recipients get its messages in
+    // number order. Returns the number.
+    public long next(String key, LongConsumer relay) {
+        Counter counter = counters.computeIfAbsent(key, k -> new Counter(0));
+        synchronized (counter) {
+            if (counter.last == counter.reserved) {
+                reserve(key, counter.last + BLOCK);
+                counter.reserved = counter.last + BLOCK;
+            }
+            long seq = ++counter.last;
+            relay.accept(seq);
+            return seq;
+        }
+    }
+
+    // The number of the conversation's latest message, or 0.
+    public long last(String key) {
+        Counter counter = counters.get(key);
+        if (counter == null)
+            return 0;
+        synchronized (counter) {
+            return counter.last;
+        }
+    }
+
+    private synchronized void reserve(String key, long reserved) {
+        try {
+            writer.write(reserved + " " + key + "\n");
+            writer.flush();
+            log.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Reads the reservations, writes them back one per conversation, and
+    // opens the log for appending.
+    private void load() {
+        if (file.isFile()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space < 0)
+                        continue;
+                    try {
+                        long reserved = Long.parseLong(line.substring(0, space));
+                        Counter counter = counters.get(line.substring(space + 1));
+                        if (counter == null || counter.reserved < reserved) {
+                            counters.put(line.substring(space + 1), new Counter(reserved));
+                        }
+                    } catch (NumberFormatException e) {
+                        // A line cut short by a crash.
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            File compacted = new File(parent, file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(compacted);
+                    Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                    w.write(entry.getValue().reserved + " " + entry.getKey() + "\n");
+                }
+                w.flush();
+                out.getFD().sync();
+            }
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log = new FileOutputStream(file, true);
+            writer = new OutputStreamWriter(log, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open sequence log " + file, e);
+        }
+    }
+}
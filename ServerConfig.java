@@ -0,0 +1,74 @@
+import java.util.Properties;
+
+// Startup options for ChatServer. Every option can be given as a system
+// property (-Dchat.mode=nio) or on the command line (--mode=nio); the command
+// line wins.
+public class ServerConfig {
+    private static final String PREFIX = "chat.";
+    private final Properties props = new Properties();
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                config.props.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--"))
+                continue;
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                config.props.setProperty(arg.substring(2), "true");
+            } else {
+                config.props.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return config;
+    }
+
+    public String get(String name, String defaultValue) {
+        return props.getProperty(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = props.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+}
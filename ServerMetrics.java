@@ -0,0 +1,149 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import protocol.FrameCompressor;
+
+// Counters the server keeps about itself, printed periodically when
+// --metrics.interval=<seconds> is set.
+public class ServerMetrics {
+    public static final AtomicInteger connections = new AtomicInteger();
+
+    // Outbound queues (see OutboundQueue).
+    public static final AtomicLong queuedFrames = new AtomicLong();
+    public static final AtomicInteger maxQueueDepth = new AtomicInteger();
+    public static final AtomicInteger slowConsumers = new AtomicInteger();
+    public static final LongAdder droppedFrames = new LongAdder();
+    public static final LongAdder spilledFrames = new LongAdder();
+    public static final LongAdder slowConsumerDisconnects = new LongAdder();
+    // Frames written to the offline store (see OfflineStore).
+    public static final LongAdder offlineFrames = new LongAdder();
+    // Messages not indexed for SEARCH because the indexer was behind (see
+    // SearchIndex).
+    public static final LongAdder searchDropped = new LongAdder();
+
+    // Socket writes: each flush is one write (or gathering write) to a socket.
+    public static final LongAdder flushes = new LongAdder();
+    public static final LongAdder framesWritten = new LongAdder();
+
+    // Totals at the previous report, for the allocation rate.
+    private static long lastAllocatedBytes = -1;
+    private static long lastFramesWritten = 0;
+
+    private ServerMetrics() {
+    }
+
+    public static void recordQueueDepth(int depth) {
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth))
+                break;
+        }
+    }
+
+    public static void recordFlush(int frames) {
+        flushes.increment();
+        framesWritten.add(frames);
+    }
+
+    public static void startReporter(int intervalSeconds, String mode, boolean gcBeforeHeap) {
+        if (intervalSeconds <= 0)
+            return;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(snapshot(mode, gcBeforeHeap)), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    // Heap use includes garbage unless gcBeforeHeap requests a GC first, which
+    // makes the per-connection figure comparable between the threaded and
+    // virtual modes in a benchmark but pauses the server on every report.
+    // Platform thread stacks live outside the heap and are reflected in the
+    // thread count instead.
+    public static String snapshot(String mode, boolean gcBeforeHeap) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        if (gcBeforeHeap) {
+            System.gc();
+        }
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+        long nonHeapUsed = memory.getNonHeapMemoryUsage().getUsed();
+        int conns = connections.get();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        StringBuilder sb = new StringBuilder("[metrics] mode=").append(mode)
+                .append(" connections=").append(conns)
+                .append(" platformThreads=").append(threads)
+                .append(" heapUsedKB=").append(heapUsed / 1024)
+                .append(" nonHeapUsedKB=").append(nonHeapUsed / 1024);
+        if (conns > 0) {
+            sb.append(" heapPerConnectionB=").append(heapUsed / conns);
+        }
+        // The max depth is reset on every report so it shows the peak of the
+        // last interval.
+        sb.append(" queuedFrames=").append(queuedFrames.get())
+                .append(" maxQueueDepth=").append(maxQueueDepth.getAndSet(0))
+                .append(" slowConsumers=").append(slowConsumers.get())
+                .append(" dropped=").append(droppedFrames.sum())
+                .append(" spilled=").append(spilledFrames.sum())
+                .append(" slowDisconnects=").append(slowConsumerDisconnects.sum())
+                .append(" offlineStored=").append(offlineFrames.sum());
+        long flushCount = flushes.sum();
+        long frameCount = framesWritten.sum();
+        sb.append(" framesWritten=").append(frameCount)
+                .append(" flushes=").append(flushCount);
+        if (flushCount > 0) {
+            sb.append(String.format(" framesPerFlush=%.2f", (double) frameCount / flushCount));
+        }
+        long compressed = FrameCompressor.framesCompressed.sum();
+        if (compressed > 0) {
+            // Bytes saved by per-frame compression and what it cost.
+            sb.append(" compressedFrames=").append(compressed)
+                    .append(" compressedKB=").append(FrameCompressor.bytesBefore.sum() / 1024)
+                    .append("->").append(FrameCompressor.bytesAfter.sum() / 1024)
+                    .append(" compressMs=").append(FrameCompressor.compressNanos.sum() / 1000000)
+                    .append(" inflateMs=").append(FrameCompressor.inflateNanos.sum() / 1000000);
+        }
+        long unindexed = searchDropped.sum();
+        if (unindexed > 0) {
+            sb.append(" searchDropped=").append(unindexed);
+        }
+        long allocated = allocatedBytes();
+        if (allocated >= 0 && lastAllocatedBytes >= 0) {
+            long bytes = allocated - lastAllocatedBytes;
+            long frames = frameCount - lastFramesWritten;
+            sb.append(" allocatedKB=").append(bytes / 1024);
+            if (frames > 0) {
+                sb.append(" allocPerFrameB=").append(bytes / frames);
+            }
+        }
+        lastAllocatedBytes = allocated;
+        lastFramesWritten = frameCount;
+        return sb.toString();
+    }
+
+    // Heap allocated so far by the live platform threads, or -1 if the JVM
+    // cannot tell. Threads that have exited (and virtual threads) are not
+    // counted, so compare intervals of the same steady load.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import protocol.BinaryCodec;
+import protocol.FileTransfer;
+import protocol.Frame;
+import protocol.Handshake;
+import protocol.MessageType;
+
+// A minimal binary-protocol client for the benchmarks in this directory. It
+// asks for chunked files only, so frames arrive one by one, unbatched and
+// without sequence numbers.
+public class BenchClient implements AutoCloseable {
+    private final String username;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    // receiveBuffer is the socket's SO_RCVBUF, 0 for the system default.
+    public BenchClient(int port, String username, int receiveBuffer) throws IOException {
+        this.username = username;
+        socket = new Socket();
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        out.write(BinaryCodec.PREAMBLE);
+        send(new Handshake(Handshake.VERSION, Arrays.asList(Handshake.BINARY, Handshake.CHUNKED_FILES))
+                .toHello(username));
+        Frame welcome = read();
+        if (welcome.getType() != MessageType.WELCOME)
+            throw new IOException("Expected WELCOME, got " + welcome.getType());
+    }
+
+    public synchronized void send(Frame frame) throws IOException {
+        ByteBuffer buf = BinaryCodec.encode(frame);
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        out.flush();
+    }
+
+    public Frame read() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            if (length < 1 || length > BinaryCodec.MAX_FRAME_LENGTH)
+                throw new IOException("Invalid frame length " + length);
+            ByteBuffer buf = ByteBuffer.allocate(4 + length);
+            buf.putInt(0, length);
+            in.readFully(buf.array(), 4, length);
+            Frame frame = BinaryCodec.decode(buf);
+            if (frame != null)
+                return frame;
+        }
+    }
+
+    // Uploads data as a chunked file to target (a user, or a group if kind
+    // is GROUP_FILE), keeping the protocol's window of chunks in flight.
+    // Returns the status of the server's ACK.
+    public String upload(String transferId, String target, MessageType kind, byte[] data) throws IOException {
+        send(new FileTransfer(transferId, username, target, "bench.bin", kind, data.length,
+                FileTransfer.sha256(data)).toStartFrame());
+        long sent = 0;
+        while (true) {
+            Frame frame = read();
+            if (!transferId.equals(frame.getMsgId()))
+                continue;
+            if (frame.getType() == MessageType.ACK)
+                return frame.getName();
+            if (frame.getType() != MessageType.FILE_ACK)
+                continue;
+            long acked = Long.parseLong(frame.getName());
+            sent = Math.max(sent, acked);
+            long window = acked + (long) FileTransfer.WINDOW_CHUNKS * FileTransfer.CHUNK_BYTES;
+            while (sent < Math.min(data.length, window)) {
+                int length = (int) Math.min(FileTransfer.CHUNK_BYTES, data.length - sent);
+                send(Frame.fileChunk(transferId, sent,
+                        Arrays.copyOfRange(data, (int) sent, (int) sent + length)));
+                sent += length;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import protocol.Frame;
+import protocol.MessageId;
+import protocol.MessageType;
+
+// Chat latency behind file downloads, against a running server: a receiver
+// with a small socket buffer downloads several group files at a limited rate
+// while another client sends it a message every 20 ms; prints how long the
+// messages took to arrive.
+//
+//   java -cp out ChatLatencyBench [port] [sizeMB] [MB/s] [files]
+public class ChatLatencyBench {
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 12345;
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : 8) << 20;
+        double rate = (args.length > 2 ? Double.parseDouble(args[2]) : 10) * 1e6;
+        int files = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+        String suffix = Long.toString(System.nanoTime() % 100000);
+        String group = "lat" + suffix;
+        String receiverName = "lat-rx" + suffix;
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+
+        BenchClient receiver = new BenchClient(port, receiverName, 64 * 1024);
+        Thread.sleep(300);
+        MessageId ids = MessageId.randomNode();
+        try (BenchClient uploader = new BenchClient(port, "lat-up" + suffix, 0)) {
+            uploader.send(Frame.createGroup(group, "lat-up" + suffix, receiverName));
+            Thread.sleep(300);
+            for (int i = 0; i < files; i++) {
+                System.out.println("upload " + uploader.upload(ids.next(), group, MessageType.GROUP_FILE, data));
+            }
+        }
+
+        BenchClient sender = new BenchClient(port, "lat-tx" + suffix, 0);
+        Thread chatter = new Thread(() -> {
+            try {
+                for (int i = 0;; i++) {
+                    sender.send(Frame.message(MessageType.MSG, "m" + i, "lat-tx" + suffix, receiverName,
+                            Long.toString(System.nanoTime())));
+                    Thread.sleep(20);
+                }
+            } catch (Exception e) {
+                // Closed at the end.
+            }
+        });
+        chatter.setDaemon(true);
+        chatter.start();
+
+        List<Long> latencies = new ArrayList<>();
+        long total = (long) size * files;
+        long received = 0;
+        long start = System.nanoTime();
+        while (received < total) {
+            Frame frame = receiver.read();
+            if (frame.getType() == MessageType.FILE_START) {
+                receiver.send(Frame.fileAck(frame.getMsgId(), 0));
+            } else if (frame.getType() == MessageType.FILE_CHUNK) {
+                received += frame.getData().length;
+                receiver.send(Frame.fileAck(frame.getMsgId(), Long.parseLong(frame.getName())
+                        + frame.getData().length));
+            } else if (frame.getType() == MessageType.MSG) {
+                latencies.add(System.nanoTime() - Long.parseLong(frame.getText()));
+            }
+            // Read no faster than rate.
+            long due = start + (long) (received / rate * 1e9);
+            long now = System.nanoTime();
+            if (due > now) {
+                Thread.sleep((due - now) / 1000000, (int) ((due - now) % 1000000));
+            }
+        }
+        sender.close();
+        receiver.close();
+        Collections.sort(latencies);
+        if (latencies.isEmpty()) {
+            System.out.println("no messages arrived during the downloads");
+            return;
+        }
+        System.out.printf("download %.1f s, %d messages, p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                (System.nanoTime() - start) / 1e9, latencies.size(),
+                latencies.get(latencies.size() / 2) / 1e6,
+                latencies.get((int) (latencies.size() * 0.99)) / 1e6,
+                latencies.get(latencies.size() - 1) / 1e6);
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.Random;
+import protocol.Frame;
+import protocol.MessageId;
+import protocol.MessageType;
+
+// Download throughput from a running server: uploads one group file, then
+// downloads it once for each of the group's other members, over fresh binary
+// connections, and prints MB/s for each round (a transfer is released once
+// every recipient has it, so each round needs its own). Run the server with files.zeroCopy=true and =false
+// to compare the transferTo path with the copying one.
+//
+//   java -Xmx64m -cp out DownloadBench [port] [sizeMB] [rounds]
+public class DownloadBench {
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 12345;
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : 256) << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        String group = "bench" + System.nanoTime();
+        String transferId = MessageId.randomNode().next();
+        String[] members = new String[rounds + 1];
+        members[0] = "bench-up";
+        for (int round = 0; round < rounds; round++) {
+            members[round + 1] = "bench-down" + round;
+        }
+        try (BenchClient uploader = new BenchClient(port, "bench-up", 0)) {
+            uploader.send(Frame.createGroup(group, "bench-up", String.join(",", members)));
+            System.out.println("upload " + uploader.upload(transferId, group, MessageType.GROUP_FILE, data));
+        }
+        for (int round = 0; round < rounds; round++) {
+            try (BenchClient client = new BenchClient(port, members[round + 1], 4 << 20)) {
+                long start = System.nanoTime();
+                client.send(Frame.fileAck(transferId, 0));
+                long received = 0;
+                while (received < size) {
+                    Frame frame = client.read();
+                    if (frame.getType() == MessageType.FILE_CHUNK && transferId.equals(frame.getMsgId())) {
+                        received += frame.getData().length;
+                        client.send(Frame.fileAck(transferId, received));
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("round %d: %.0f MB/s%n", round, size / seconds / 1e6);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.File;
+import java.nio.file.Files;
+import protocol.Frame;
+import protocol.MessageType;
+
+// Checks when the history store starts a new segment, without a server: a
+// conversation that is idle for several sync intervals keeps appending to
+// the same segment, and a restart starts a new one. Exits with 1 on failure.
+//
+//   java -cp out HistorySegmentsCheck
+public class HistorySegmentsCheck {
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("history-check").toFile();
+        String key = "alice|bob";
+        HistoryStore store = new HistoryStore(dir, 1 << 20, 50, 0);
+        for (int seq = 1; seq <= 3; seq++) {
+            store.append(key, message(seq));
+            // Idle long enough for the syncer to close the segment's files.
+            Thread.sleep(300);
+        }
+        expect(segments(dir) == 1, "appends across sync intervals go to one segment, found " + segments(dir));
+        expect(store.page(key, 0, 10).count == 3, "all three messages are read back");
+
+        HistoryStore restarted = new HistoryStore(dir, 1 << 20, 50, 0);
+        restarted.append(key, message(4));
+        expect(segments(dir) == 2, "a restart starts a new segment, found " + segments(dir));
+        expect(restarted.page(key, 0, 10).count == 4, "all four messages are read back after the restart");
+        System.out.println("OK: one segment across idle sync intervals, a new one after a restart");
+    }
+
+    private static Frame message(long seq) {
+        return Frame.message(MessageType.MSG, "m" + seq, "alice", "bob", "hello " + seq).withSeq(seq);
+    }
+
+    private static int segments(File dir) {
+        int count = 0;
+        for (File conversation : dir.listFiles()) {
+            count += conversation.list((d, name) -> name.endsWith(".log")).length;
+        }
+        return count;
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
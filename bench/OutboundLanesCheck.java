@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.List;
+import protocol.Frame;
+import protocol.MessageType;
+
+// Checks the outbound queue's lane order without a server: with the bulk
+// lane full, control frames go out first, then chat, with one chunk after
+// every 16 chat frames; each lane keeps its own order, and a full bulk lane
+// neither spills nor marks the client slow. Exits with 1 on failure.
+//
+//   java -cp out OutboundLanesCheck
+public class OutboundLanesCheck {
+    public static void main(String[] args) {
+        int capacity = 64;
+        OutboundQueue queue = new OutboundQueue(capacity, OutboundQueue.OverflowPolicy.SPILL);
+        for (int i = 0; i < capacity; i++) {
+            expect(queue.offer(Frame.fileChunk("t", i, new byte[16])) == OutboundQueue.Result.QUEUED,
+                    "chunk " + i + " queued");
+        }
+        expect(queue.offer(Frame.fileChunk("t", capacity, new byte[16])) == OutboundQueue.Result.DROPPED,
+                "a full bulk lane refuses the next chunk");
+        expect(!queue.isSpilled(), "a full bulk lane does not spill");
+        for (int i = 0; i < 40; i++) {
+            queue.offer(Frame.message(MessageType.MSG, "m" + i, "alice", "bob", "hi"));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(Frame.ack("a" + i, "DELIVERED"));
+        }
+
+        List<String> order = new ArrayList<>();
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            order.add(frame.getType() == MessageType.FILE_CHUNK ? "c" + frame.getName() : frame.getMsgId());
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            expected.add("a" + i);
+        }
+        int chat = 0;
+        int chunk = 0;
+        while (chat < 40) {
+            for (int i = 0; i < 16 && chat < 40; i++) {
+                expected.add("m" + chat++);
+            }
+            if (chat < 40) {
+                expected.add("c" + chunk++);
+            }
+        }
+        while (chunk < capacity) {
+            expected.add("c" + chunk++);
+        }
+        expect(order.equals(expected), "poll order\n  got      " + order + "\n  expected " + expected);
+        System.out.println("OK: control first, one chunk per 16 chat frames, lanes in order");
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}